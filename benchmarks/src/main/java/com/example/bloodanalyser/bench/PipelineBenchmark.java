@@ -0,0 +1,63 @@
+package com.example.bloodanalyser.bench;
+
+import com.example.bloodanalyser.BloodCellAnalyser;
+import com.example.bloodanalyser.ComponentLabeller;
+import com.example.bloodanalyser.LabelMap;
+import com.example.bloodanalyser.RunLengthLabeller;
+import com.example.bloodanalyser.TiledSegmenter;
+import com.example.bloodanalyser.UnionFindLabeller;
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Dprism.order=sw", "--add-modules=jdk.incubator.vector"})
+public class PipelineBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class LabellerState {
+        @Param({"runLength", "unionFind", "tiled"})
+        public String labeller;
+
+        public ComponentLabeller create() {
+            return switch (labeller) {
+                case "unionFind" -> new UnionFindLabeller();
+                case "tiled" -> new TiledSegmenter();
+                default -> new RunLengthLabeller();
+            };
+        }
+    }
+
+    @Benchmark
+    public WritableImage convertToTriColor(SlideState slide) {
+        return slide.processor.convertToTriColor(slide.image);
+    }
+
+    @Benchmark
+    public LabelMap classify(SlideState slide) {
+        return slide.processor.classify(slide.argb, slide.width, slide.height);
+    }
+
+    @Benchmark
+    public BloodCellAnalyser.AnalysisResult analyseImage(SlideState slide, LabellerState labeller) {
+        return new BloodCellAnalyser(30, 3000, false, labeller.create()).analyseImage(slide.labelMap);
+    }
+
+    @Benchmark
+    public WritableImage createAnalysisImage(SlideState slide) {
+        return new BloodCellAnalyser(30, 3000, true).createAnalysisImage(slide.image, slide.cells);
+    }
+}
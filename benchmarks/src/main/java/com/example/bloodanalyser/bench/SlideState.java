@@ -0,0 +1,53 @@
+package com.example.bloodanalyser.bench;
+
+import com.example.bloodanalyser.BloodCellAnalyser;
+import com.example.bloodanalyser.ImageProcessor;
+import com.example.bloodanalyser.LabelMap;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+@State(Scope.Benchmark)
+public class SlideState {
+    /** 12MP and 50MP slide scans. */
+    @Param({"4000x3000", "8160x6120"})
+    public String resolution;
+
+    @Param({"600"})
+    public double cellsPerMegapixel;
+
+    @Param({"0.1"})
+    public double clusterRatio;
+
+    @Param({"0.02"})
+    public double wbcRatio;
+
+    public int width;
+    public int height;
+    public int[] argb;
+    public WritableImage image;
+    public ImageProcessor processor;
+    public LabelMap labelMap;
+    public List<BloodCellAnalyser.CellInfo> cells;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+
+        argb = SyntheticSlide.generate(width, height, cellsPerMegapixel, clusterRatio, wbcRatio, 42);
+        image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+
+        processor = new ImageProcessor(30, 40);
+        labelMap = processor.classify(argb, width, height);
+        cells = new BloodCellAnalyser(30, 3000, true).analyseImage(labelMap).getCells();
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.bloodanalyser.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates ARGB slides that look like stained smears to the analyser: a near-white
+ * background with sensor noise, round red cells (some clumped into clusters) and
+ * larger purple white cells.
+ */
+public final class SyntheticSlide {
+    private static final int BACKGROUND = 0xF0EBF0;
+    private static final int RED_CELL = 0xC8A032;
+    private static final int WHITE_CELL = 0x6E3296;
+
+    private SyntheticSlide() {
+    }
+
+    /**
+     * @param cellsPerMegapixel number of cells (or clusters) placed per million pixels
+     * @param clusterRatio      fraction of red cells drawn as a clump of 2-4 overlapping cells
+     * @param wbcRatio          fraction of cells that are white blood cells
+     */
+    public static int[] generate(int width, int height, double cellsPerMegapixel,
+                                 double clusterRatio, double wbcRatio, long seed) {
+        Random random = new Random(seed);
+        int[] argb = new int[width * height];
+        Arrays.fill(argb, BACKGROUND);
+
+        long cells = Math.round(cellsPerMegapixel * width * (double) height / 1_000_000);
+        for (long i = 0; i < cells; i++) {
+            int cx = random.nextInt(width);
+            int cy = random.nextInt(height);
+            if (random.nextDouble() < wbcRatio) {
+                disc(argb, width, height, cx, cy, 12 + random.nextInt(5), WHITE_CELL);
+            } else if (random.nextDouble() < clusterRatio) {
+                int parts = 2 + random.nextInt(3);
+                for (int p = 0; p < parts; p++) {
+                    disc(argb, width, height, cx + random.nextInt(17) - 8, cy + random.nextInt(17) - 8,
+                            8 + random.nextInt(3), RED_CELL);
+                }
+            } else {
+                disc(argb, width, height, cx, cy, 8 + random.nextInt(3), RED_CELL);
+            }
+        }
+
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xFF000000 | jitter(argb[i], random);
+        }
+        return argb;
+    }
+
+    private static void disc(int[] argb, int width, int height, int cx, int cy, int radius, int rgb) {
+        int r2 = radius * radius;
+        for (int y = Math.max(0, cy - radius); y <= Math.min(height - 1, cy + radius); y++) {
+            int dy = y - cy;
+            for (int x = Math.max(0, cx - radius); x <= Math.min(width - 1, cx + radius); x++) {
+                int dx = x - cx;
+                if (dx * dx + dy * dy <= r2) {
+                    argb[y * width + x] = rgb;
+                }
+            }
+        }
+    }
+
+    private static int jitter(int rgb, Random random) {
+        int r = clamp(((rgb >> 16) & 0xFF) + random.nextInt(13) - 6);
+        int g = clamp(((rgb >> 8) & 0xFF) + random.nextInt(13) - 6);
+        int b = clamp((rgb & 0xFF) + random.nextInt(13) - 6);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
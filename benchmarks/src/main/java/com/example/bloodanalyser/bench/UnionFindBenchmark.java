@@ -0,0 +1,71 @@
+package com.example.bloodanalyser.bench;
+
+import com.example.bloodanalyser.LabelMap;
+import com.example.bloodanalyser.UnionFind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw union and find cost on the neighbour pattern the reference labeller produces.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Dprism.order=sw"})
+@State(Scope.Benchmark)
+public class UnionFindBenchmark {
+    private UnionFind merged;
+
+    @Setup(Level.Trial)
+    public void setUp(SlideState slide) {
+        merged = union(slide);
+    }
+
+    @Benchmark
+    public UnionFind union(SlideState slide) {
+        int width = slide.width;
+        int height = slide.height;
+        byte[] labels = slide.labelMap.getLabels();
+
+        UnionFind unionFind = new UnionFind(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = y * width + x;
+                byte label = labels[index];
+                if (label == LabelMap.WHITE) continue;
+
+                if (x + 1 < width && labels[index + 1] == label) {
+                    unionFind.union(index, index + 1);
+                }
+                if (y + 1 < height && labels[index + width] == label) {
+                    unionFind.union(index, index + width);
+                }
+            }
+        }
+        return unionFind;
+    }
+
+    @Benchmark
+    public long find(SlideState slide) {
+        byte[] labels = slide.labelMap.getLabels();
+        long sum = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] != LabelMap.WHITE) {
+                sum += merged.find(i);
+            }
+        }
+        return sum;
+    }
+}
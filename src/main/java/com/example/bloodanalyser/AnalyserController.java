@@ -1,22 +1,43 @@
 package com.example.bloodanalyser;
 
+import javafx.animation.PauseTransition;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelReader;
 import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseEvent;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.layout.VBox;
 
 public class AnalyserController {
-    @FXML private ImageView originalImageView;
-    @FXML private ImageView tricolourImageView;
-    @FXML private ImageView analysisImageView;
+    private static final int PREVIEW_SIZE = 360;
+    private static final Duration PREVIEW_DEBOUNCE = Duration.millis(60);
+    private static final Path CACHE_DIRECTORY = Path.of(System.getProperty("user.home"), ".blood-analyser", "cache");
+    private static final long CACHE_MEMORY_BUDGET = 256L << 20;
+    private static final long CACHE_DISK_BUDGET = 1L << 30;
+    // How far from a cell's box the cursor may be for the cell still to be reported
+    private static final double HOVER_REACH = 3;
+
+    @FXML private TiledImageView originalView;
+    @FXML private TiledImageView tricolourView;
+    @FXML private TiledImageView analysisView;
     @FXML private MenuItem openMenuItem;
+    @FXML private MenuItem saveSegmentationMenuItem;
     @FXML private TabPane tabPane;
 
     @FXML private MenuItem convertMenuItem;
@@ -24,39 +45,98 @@ public class AnalyserController {
     @FXML private MenuItem toggleNumberingMenuItem;
     @FXML private MenuItem colourThresholdsMenuItem;
     @FXML private MenuItem cellSizeMenuItem;
+    @FXML private MenuItem noiseFilterMenuItem;
     @FXML private MenuItem exitMenuItem;
 
+    @FXML private ProgressBar progressBar;
+    @FXML private Label statusLabel;
+    @FXML private Button cancelButton;
+
     private Image originalImage;
-    private WritableImage tricolourImage;
-    private WritableImage analysisImage;
+    private File imageFile;
+    private Long imageHash;
+    private ColourFeatureMap colourFeatures;
+    // Built on the preview thread ahead of any preview task that uses it
+    private CompletableFuture<ColourFeatureMap> previewFeatures;
+    private LabelMap labelMap;
+    // The settings labelMap was classified with
+    private int labelRedThreshold;
+    private int labelPurpleThreshold;
+    private MaskFilter labelFilter;
+    private Segmentation segmentation;
 
     private boolean showNumbering = false;
     private int redThreshold = 30;
     private int purpleThreshold = 40;
     private int minCellSize = 30;
     private int maxCellSize = 3000;
+    private int openRadius = 0;
+    private int closeRadius = 0;
+    private boolean fillHoles = false;
 
     private BloodCellAnalyser.AnalysisResult analysisResult;
+    private final Tooltip cellTooltip = new Tooltip();
+    private double selectionStartX;
+    private double selectionStartY;
+    private boolean selecting;
+
+    private final TiledSegmenter segmenter = new TiledSegmenter();
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "threshold-preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Task<WritableImage> previewTask;
+    // Only used on the preview thread
+    private final AnalysisContext previewContext = new AnalysisContext();
+    private final AnalysisService analysisService = new AnalysisService(segmenter);
+    private final ResultCache resultCache = openResultCache();
 
     public void initialize() {
         openMenuItem.setOnAction(e -> loadImage());
+        saveSegmentationMenuItem.setOnAction(e -> saveSegmentation());
 
         convertMenuItem.setOnAction(e -> convertToTricolour());
         analyzeMenuItem.setOnAction(e -> analyseBloodCells());
         toggleNumberingMenuItem.setOnAction(e -> toggleNumbering());
         colourThresholdsMenuItem.setOnAction(e -> showColourThresholdDialog());
         cellSizeMenuItem.setOnAction(e -> showCellSizeDialog());
+        noiseFilterMenuItem.setOnAction(e -> showNoiseFilterDialog());
         exitMenuItem.setOnAction(e -> exitApplication());
 
+        progressBar.progressProperty().bind(analysisService.progressProperty());
+        progressBar.visibleProperty().bind(analysisService.runningProperty());
+        statusLabel.textProperty().bind(analysisService.messageProperty());
+        statusLabel.visibleProperty().bind(analysisService.runningProperty());
+        cancelButton.visibleProperty().bind(analysisService.runningProperty());
+        cancelButton.setOnAction(e -> analysisService.cancel());
+        analysisService.setOnSucceeded(e -> applyOutcome(analysisService.getValue()));
+        analysisService.setOnFailed(e -> showAlert("Analysis Failed",
+                String.valueOf(analysisService.getException().getMessage())));
+
+        analysisView.setOnMouseMoved(this::showCellUnderCursor);
+        analysisView.setOnMouseExited(e -> cellTooltip.hide());
+        analysisView.setOnMousePressed(this::beginSelection);
+        analysisView.setOnMouseDragged(this::updateSelection);
+        analysisView.setOnMouseReleased(this::endSelection);
+
         updateToggleNumberingText();
     }
 
+    private static ResultCache openResultCache() {
+        try {
+            return new ResultCache(CACHE_DIRECTORY, CACHE_MEMORY_BUDGET, CACHE_DISK_BUDGET);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     private void updateToggleNumberingText() {
         toggleNumberingMenuItem.setText(showNumbering ? "Hide Numbering" : "Show Numbering");
     }
 
     private void exitApplication() {
-        Stage stage = (Stage) originalImageView.getScene().getWindow();
+        Stage stage = (Stage) originalView.getScene().getWindow();
         stage.close();
     }
 
@@ -67,21 +147,25 @@ public class AnalyserController {
                 new FileChooser.ExtensionFilter("Image Files", "*.png", "*.jpg", "*.jpeg")
         );
 
-        Stage stage = (Stage) originalImageView.getScene().getWindow();
+        Stage stage = (Stage) originalView.getScene().getWindow();
         File selectedFile = fileChooser.showOpenDialog(stage);
 
         if (selectedFile != null) {
+            analysisService.cancel();
             originalImage = new Image(selectedFile.toURI().toString());
-            originalImageView.setImage(originalImage);
-            originalImageView.setFitWidth(originalImage.getWidth());
-            originalImageView.setFitHeight(originalImage.getHeight());
+            imageFile = selectedFile;
+            imageHash = null;
+            originalView.setSource(TileSource.of(originalImage));
 
-            tricolourImage = null;
-            analysisImage = null;
-            tricolourImageView.setImage(null);
-            analysisImageView.setImage(null);
+            colourFeatures = null;
+            previewFeatures = null;
+            labelMap = null;
+            segmentation = null;
+            tricolourView.setSource(null);
+            analysisView.setSource(null);
 
             analysisResult = null;
+            clearSelection();
 
             tabPane.getSelectionModel().select(0);
 
@@ -89,39 +173,110 @@ public class AnalyserController {
         }
     }
 
+    private void saveSegmentation() {
+        if (analysisResult == null || labelMap == null) {
+            showAlert("No Analysis", "Please analyse the blood cells first.");
+            return;
+        }
+
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save Segmentation");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Segmentation Files", "*.seg"));
+        File selectedFile = fileChooser.showSaveDialog(originalView.getScene().getWindow());
+
+        if (selectedFile != null) {
+            try {
+                SegmentationFile.write(selectedFile.toPath(), labelMap, analysisResult);
+            } catch (IOException e) {
+                showAlert("Save Failed", String.valueOf(e.getMessage()));
+            } catch (IllegalArgumentException e) {
+                showAlert("Analysis Out of Date", "Please analyse the blood cells again before saving.");
+            }
+        }
+    }
+
     private void convertToTricolour() {
         if (originalImage == null) {
             showAlert("No Image", "Please load an image first.");
             return;
         }
 
-        ImageProcessor processor = new ImageProcessor(redThreshold, purpleThreshold);
-        tricolourImage = processor.convertToTriColor(originalImage);
-
-        tricolourImageView.setImage(tricolourImage);
-        tricolourImageView.setFitWidth(tricolourImage.getWidth());
-        tricolourImageView.setFitHeight(tricolourImage.getHeight());
+        runPipeline(true, false);
+    }
 
-        tabPane.getSelectionModel().select(1);
+    private void ensurePreviewFeatures() {
+        if (previewFeatures != null) {
+            return;
+        }
+        PixelReader reader = originalImage.getPixelReader();
+        int width = (int) originalImage.getWidth();
+        int height = (int) originalImage.getHeight();
+        previewFeatures = CompletableFuture.supplyAsync(
+                () -> ColourFeatureMap.preview(reader, width, height, PREVIEW_SIZE), previewExecutor);
     }
 
     private void analyseBloodCells() {
-        if (tricolourImage == null) {
+        if (labelMap == null) {
             showAlert("No Tricolour Image", "Please convert to tricolour first.");
             return;
         }
 
-        BloodCellAnalyser analyser = new BloodCellAnalyser(minCellSize, maxCellSize, showNumbering);
-        analysisResult = analyser.analyseImage(tricolourImage);
-        analysisImage = analyser.createAnalysisImage(originalImage, analysisResult.getCells());
+        runPipeline(false, true);
+    }
+
+    private void runPipeline(boolean classify, boolean analyse) {
+        MaskFilter filter = new MaskFilter(openRadius, closeRadius, fillHoles);
+        // The label map may predate the current settings, for instance when this request supersedes
+        // a classification still in flight; analysing it would cache a result under the wrong key
+        if (labelMap == null || labelRedThreshold != redThreshold || labelPurpleThreshold != purpleThreshold
+                || !filter.equals(labelFilter)) {
+            classify = true;
+        }
+
+        AnalysisService.Request request = new AnalysisService.Request();
+        request.originalImage = originalImage;
+        request.imageFile = imageFile;
+        request.imageHash = imageHash;
+        request.cache = resultCache;
+        request.colourFeatures = colourFeatures;
+        request.labelMap = labelMap;
+        request.segmentation = segmentation;
+        request.redThreshold = redThreshold;
+        request.purpleThreshold = purpleThreshold;
+        request.minCellSize = minCellSize;
+        request.maxCellSize = maxCellSize;
+        request.filter = filter;
+        request.showNumbering = showNumbering;
+        request.classify = classify;
+        request.analyse = analyse;
+        analysisService.submit(request);
+    }
+
+    private void applyOutcome(AnalysisService.Outcome outcome) {
+        imageHash = outcome.imageHash;
+        colourFeatures = outcome.colourFeatures;
+        boolean classified = outcome.labelMap != labelMap;
+        labelMap = outcome.labelMap;
+        labelRedThreshold = outcome.redThreshold;
+        labelPurpleThreshold = outcome.purpleThreshold;
+        labelFilter = outcome.filter;
+        segmentation = outcome.segmentation;
+
+        if (classified) {
+            tricolourView.setSource(TileSource.of(labelMap));
 
-        analysisImageView.setImage(analysisImage);
-        analysisImageView.setFitWidth(analysisImage.getWidth());
-        analysisImageView.setFitHeight(analysisImage.getHeight());
+            tabPane.getSelectionModel().select(1);
+        }
+
+        if (outcome.analysisResult != null) {
+            analysisResult = outcome.analysisResult;
+            clearSelection();
+            showAnalysisOverlay();
 
-        tabPane.getSelectionModel().select(2);
+            tabPane.getSelectionModel().select(2);
 
-        showAnalysisResults();
+            showAnalysisResults();
+        }
     }
 
     private void showAnalysisResults() {
@@ -142,12 +297,102 @@ public class AnalyserController {
         alert.showAndWait();
     }
 
+    private void showCellUnderCursor(MouseEvent event) {
+        if (analysisResult == null) {
+            return;
+        }
+        double x = analysisView.toImageX(event.getX());
+        double y = analysisView.toImageY(event.getY());
+        CellIndex index = analysisResult.getCellIndex();
+        BloodCellAnalyser.CellInfo cell = index.at((int) x, (int) y);
+        if (cell == null) {
+            List<BloodCellAnalyser.CellInfo> nearest = index.nearest(x, y, 1);
+            if (!nearest.isEmpty() && distance(nearest.get(0), x, y) <= HOVER_REACH) {
+                cell = nearest.get(0);
+            }
+        }
+
+        if (cell == null) {
+            cellTooltip.hide();
+            return;
+        }
+        String text = String.format("Cell %d: %s, %d pixels", cell.id, cell.color, cell.size);
+        if (cell.isCluster) {
+            text += String.format("\nCluster of about %d cells", cell.estimatedCellCount);
+        }
+        cellTooltip.setText(text);
+        cellTooltip.show(analysisView, event.getScreenX() + 12, event.getScreenY() + 12);
+    }
+
+    // Shift-drag selects a region; a plain drag pans the view
+    private void beginSelection(MouseEvent event) {
+        selecting = analysisResult != null && event.isShiftDown();
+        if (!selecting) {
+            analysisView.setSelection(null);
+            return;
+        }
+        selectionStartX = analysisView.toImageX(event.getX());
+        selectionStartY = analysisView.toImageY(event.getY());
+        cellTooltip.hide();
+        updateSelection(event);
+    }
+
+    private void updateSelection(MouseEvent event) {
+        if (!selecting) {
+            return;
+        }
+        analysisView.setSelection(selectionAt(event));
+        event.consume();
+    }
+
+    private void endSelection(MouseEvent event) {
+        if (!selecting) {
+            return;
+        }
+        selecting = false;
+        Rectangle2D region = selectionAt(event);
+        analysisView.setSelection(region);
+        List<BloodCellAnalyser.CellInfo> selected = analysisResult.getCellIndex().within(
+                (int) region.getMinX(), (int) region.getMinY(), (int) region.getMaxX(), (int) region.getMaxY());
+        BloodCellAnalyser.AnalysisResult counts = BloodCellAnalyser.count(selected);
+
+        cellTooltip.setText(String.format("%d cells selected\nRed: %d, White: %d, Total: %d",
+                selected.size(), counts.getRedCellCount(), counts.getWhiteCellCount(), counts.getTotalCellCount()));
+        cellTooltip.show(analysisView, event.getScreenX() + 12, event.getScreenY() + 12);
+    }
+
+    // The selected region in image coordinates, clipped to the image
+    private Rectangle2D selectionAt(MouseEvent event) {
+        TileSource image = analysisView.getSource();
+        double x = Math.max(0, Math.min(image.getWidth() - 1, analysisView.toImageX(event.getX())));
+        double y = Math.max(0, Math.min(image.getHeight() - 1, analysisView.toImageY(event.getY())));
+        double startX = Math.max(0, Math.min(image.getWidth() - 1, selectionStartX));
+        double startY = Math.max(0, Math.min(image.getHeight() - 1, selectionStartY));
+        return new Rectangle2D(Math.min(startX, x), Math.min(startY, y), Math.abs(x - startX), Math.abs(y - startY));
+    }
+
+    private void clearSelection() {
+        selecting = false;
+        analysisView.setSelection(null);
+        cellTooltip.hide();
+    }
+
+    private void showAnalysisOverlay() {
+        analysisView.setSource(TileSource.overlay(TileSource.of(originalImage), analysisResult, showNumbering));
+    }
+
+    private static double distance(BloodCellAnalyser.CellInfo cell, double x, double y) {
+        double dx = Math.max(0, Math.max(cell.minX - x, x - cell.maxX));
+        double dy = Math.max(0, Math.max(cell.minY - y, y - cell.maxY));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
     private void toggleNumbering() {
         showNumbering = !showNumbering;
         updateToggleNumberingText();
 
-        if (analysisResult != null && tricolourImage != null) {
-            analyseBloodCells();
+        if (analysisResult != null) {
+            showAnalysisOverlay();
         }
     }
 
@@ -169,14 +414,22 @@ public class AnalyserController {
         Label redLabel = new Label("Red Threshold: " + redThreshold);
         Label purpleLabel = new Label("Purple Threshold: " + purpleThreshold);
 
+        ImageView previewView = new ImageView();
+        previewView.setPreserveRatio(true);
+        previewView.setFitWidth(PREVIEW_SIZE);
+        PauseTransition previewDebounce = new PauseTransition(PREVIEW_DEBOUNCE);
+        previewDebounce.setOnFinished(e -> updateThresholdPreview(previewView));
+
         redSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
             redThreshold = newVal.intValue();
             redLabel.setText("Red Threshold: " + redThreshold);
+            previewDebounce.playFromStart();
         });
 
         purpleSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
             purpleThreshold = newVal.intValue();
             purpleLabel.setText("Purple Threshold: " + purpleThreshold);
+            previewDebounce.playFromStart();
         });
 
         VBox content = new VBox(10);
@@ -184,6 +437,11 @@ public class AnalyserController {
                 redLabel, redSlider,
                 purpleLabel, purpleSlider
         );
+        if (originalImage != null) {
+            ensurePreviewFeatures();
+            content.getChildren().add(previewView);
+            updateThresholdPreview(previewView);
+        }
         dialog.getDialogPane().setContent(content);
 
         dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
@@ -192,14 +450,35 @@ public class AnalyserController {
 
         if (result.isPresent() && result.get() == ButtonType.OK) {
             if (originalImage != null) {
-                convertToTricolour();
-                if (tricolourImage != null) {
-                    analyseBloodCells();
-                }
+                runPipeline(true, true);
             }
         }
     }
 
+    private void updateThresholdPreview(ImageView previewView) {
+        if (previewTask != null) {
+            previewTask.cancel();
+        }
+
+        CompletableFuture<ColourFeatureMap> pendingFeatures = previewFeatures;
+        int red = redThreshold;
+        int purple = purpleThreshold;
+        Task<WritableImage> task = new Task<>() {
+            @Override
+            protected WritableImage call() {
+                ColourFeatureMap features = pendingFeatures.join();
+                int pixels = features.getWidth() * features.getHeight();
+                byte[] labels = previewContext.labels(pixels);
+                features.classify(red, purple, labels);
+                return ImageProcessor.toTriColourImage(
+                        new LabelMap(features.getWidth(), features.getHeight(), labels), previewContext.pixels(pixels));
+            }
+        };
+        task.setOnSucceeded(e -> previewView.setImage(task.getValue()));
+        previewTask = task;
+        previewExecutor.execute(task);
+    }
+
     private void showCellSizeDialog() {
         Dialog<ButtonType> dialog = new Dialog<>();
         dialog.setTitle("Cell Size Parameters");
@@ -240,12 +519,66 @@ public class AnalyserController {
         Optional<ButtonType> result = dialog.showAndWait();
 
         if (result.isPresent() && result.get() == ButtonType.OK) {
-            if (tricolourImage != null) {
-                analyseBloodCells();
+            if (labelMap != null) {
+                runPipeline(false, true);
             }
         }
     }
 
+    private void showNoiseFilterDialog() {
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setTitle("Noise Filter");
+        dialog.setHeaderText("Clean up the tricolour image before counting");
+
+        Slider openSlider = radiusSlider(openRadius);
+        Slider closeSlider = radiusSlider(closeRadius);
+        CheckBox fillHolesBox = new CheckBox("Fill holes inside cells");
+        fillHolesBox.setSelected(fillHoles);
+
+        Label openLabel = new Label("Speck Removal Radius: " + openRadius);
+        Label closeLabel = new Label("Gap Closing Radius: " + closeRadius);
+
+        openSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
+            openRadius = newVal.intValue();
+            openLabel.setText("Speck Removal Radius: " + openRadius);
+        });
+
+        closeSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
+            closeRadius = newVal.intValue();
+            closeLabel.setText("Gap Closing Radius: " + closeRadius);
+        });
+
+        fillHolesBox.selectedProperty().addListener((obs, oldVal, newVal) -> fillHoles = newVal);
+
+        VBox content = new VBox(10);
+        content.getChildren().addAll(
+                openLabel, openSlider,
+                closeLabel, closeSlider,
+                fillHolesBox
+        );
+        dialog.getDialogPane().setContent(content);
+
+        dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+
+        Optional<ButtonType> result = dialog.showAndWait();
+
+        if (result.isPresent() && result.get() == ButtonType.OK) {
+            if (labelMap != null) {
+                runPipeline(true, analysisResult != null);
+            }
+        }
+    }
+
+    private static Slider radiusSlider(int value) {
+        Slider slider = new Slider(0, 3, value);
+        slider.setShowTickLabels(true);
+        slider.setShowTickMarks(true);
+        slider.setMajorTickUnit(1);
+        slider.setMinorTickCount(0);
+        slider.setSnapToTicks(true);
+        return slider;
+    }
+
     private void showAlert(String title, String message) {
         Alert alert = new Alert(AlertType.WARNING);
         alert.setTitle(title);
@@ -0,0 +1,103 @@
+package com.example.bloodanalyser;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide aggregate of {@link PipelineMetrics}, exposed over JMX so slow slides and
+ * regressing stages are visible in a running application or batch job.
+ */
+public class AnalyserMetrics implements AnalyserMetricsMXBean {
+    private static final AnalyserMetrics INSTANCE = register(new AnalyserMetrics());
+
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private long images;
+    private long pixels;
+    private long totalNanos;
+    private long lastNanos;
+    private long slowestNanos;
+    private String slowestImage = "";
+    private String lastImageMetrics = "";
+
+    public static AnalyserMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void record(String image, PipelineMetrics metrics) {
+        long nanos = metrics.getTotalNanos();
+        images++;
+        pixels += metrics.getPixels();
+        totalNanos += nanos;
+        lastNanos = nanos;
+        lastImageMetrics = metrics.toJson();
+        if (nanos > slowestNanos) {
+            slowestNanos = nanos;
+            slowestImage = image;
+        }
+        for (PipelineMetrics.StageTiming stage : metrics.getStages()) {
+            stageNanos.merge(stage.name(), stage.wallNanos(), Long::sum);
+        }
+    }
+
+    @Override
+    public synchronized long getImagesAnalysed() {
+        return images;
+    }
+
+    @Override
+    public synchronized long getPixelsAnalysed() {
+        return pixels;
+    }
+
+    @Override
+    public synchronized double getAverageMillis() {
+        return images == 0 ? 0 : totalNanos / 1e6 / images;
+    }
+
+    @Override
+    public synchronized double getLastMillis() {
+        return lastNanos / 1e6;
+    }
+
+    @Override
+    public synchronized double getSlowestMillis() {
+        return slowestNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String getSlowestImage() {
+        return slowestImage;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getStageMillis() {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        stageNanos.forEach((stage, nanos) -> millis.put(stage, nanos / 1e6));
+        return millis;
+    }
+
+    @Override
+    public synchronized String getLastImageMetrics() {
+        return lastImageMetrics;
+    }
+
+    @Override
+    public synchronized void reset() {
+        stageNanos.clear();
+        images = pixels = totalNanos = lastNanos = slowestNanos = 0;
+        slowestImage = lastImageMetrics = "";
+    }
+
+    private static AnalyserMetrics register(AnalyserMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("com.example.bloodanalyser:type=AnalyserMetrics"));
+        } catch (JMException e) {
+            // still usable in-process, just not visible to JMX clients
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.bloodanalyser;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link AnalyserMetrics}, registered as
+ * {@code com.example.bloodanalyser:type=AnalyserMetrics}.
+ */
+public interface AnalyserMetricsMXBean {
+    long getImagesAnalysed();
+
+    long getPixelsAnalysed();
+
+    double getAverageMillis();
+
+    double getLastMillis();
+
+    double getSlowestMillis();
+
+    String getSlowestImage();
+
+    /** Total wall time per stage in milliseconds, summed over all images. */
+    Map<String, Double> getStageMillis();
+
+    /** Stage timings of the last image, as the JSON emitted by {@link PipelineMetrics#toJson()}. */
+    String getLastImageMetrics();
+
+    void reset();
+}
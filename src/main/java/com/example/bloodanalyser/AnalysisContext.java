@@ -0,0 +1,54 @@
+package com.example.bloodanalyser;
+
+/**
+ * Scratch buffers for repeated analyses on one thread. Each buffer grows to the largest image
+ * seen so far and is handed out again on the next request, so analysing images of the same
+ * size allocates no new pixel-sized arrays. A buffer's contents are only valid until it is
+ * requested again; anything kept past that, such as a cached label map, needs its own array.
+ * Long-lived contexts call {@link #trim} so one large image does not pin its buffers for good.
+ * Instances are not thread-safe.
+ */
+public class AnalysisContext {
+    private int[] pixels = new int[0];
+    private byte[] labels = new byte[0];
+    private RunLengthLabeller labeller = new RunLengthLabeller();
+
+    /**
+     * An ARGB buffer of at least {@code count} pixels, with undefined contents.
+     */
+    public int[] pixels(int count) {
+        if (pixels.length < count) {
+            pixels = new int[count];
+        }
+        return pixels;
+    }
+
+    /**
+     * A label buffer of at least {@code count} pixels, with undefined contents.
+     */
+    public byte[] labels(int count) {
+        if (labels.length < count) {
+            labels = new byte[count];
+        }
+        return labels;
+    }
+
+    /**
+     * Drops the buffers if they grew past {@code maxPixels}, together with the labeller, whose
+     * tables grew with them.
+     */
+    public void trim(long maxPixels) {
+        if (pixels.length > maxPixels || labels.length > maxPixels) {
+            pixels = new int[0];
+            labels = new byte[0];
+            labeller = new RunLengthLabeller();
+        }
+    }
+
+    /**
+     * A labeller whose run tables are kept between calls.
+     */
+    public RunLengthLabeller labeller() {
+        return labeller;
+    }
+}
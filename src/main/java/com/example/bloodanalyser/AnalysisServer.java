@@ -0,0 +1,430 @@
+package com.example.bloodanalyser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP front end to the analysis core.
+ * <p>
+ * {@code POST /analyse} takes an encoded slide image as the request body, with optional
+ * {@code red}, {@code purple}, {@code min}, {@code max}, {@code pyramid} and {@code filter}
+ * query parameters, and answers with the analysis result as JSON; {@code GET /health} reports
+ * the load.
+ * Connections are served on virtual threads, while decoding and analysis run on a fixed pool
+ * of platform threads. At most {@code threads + queue} requests are admitted at a time, their
+ * uploads included, and any further request is answered with 429 before its body is read.
+ * An image with more than the pixel limit is answered with 413 before it is decoded, so memory
+ * is bounded by the admitted uploads plus, per worker thread, the buffers for one image of the
+ * pixel limit, however many clients there are. Between requests each worker keeps only buffers
+ * small enough that all of them together fit in a quarter of the heap.
+ */
+public class AnalysisServer {
+    private static final String USAGE = "Usage: AnalysisServer [--port n] [--bind address] [--threads n]"
+            + " [--queue n] [--max-upload mb] [--max-pixels megapixels] [--cache dir] [--cache-size mb]";
+    private static final int DEFAULT_RED = 30;
+    private static final int DEFAULT_PURPLE = 40;
+    private static final int DEFAULT_MIN = 30;
+    private static final int DEFAULT_MAX = 3000;
+    // An ARGB int and a label byte per pixel
+    private static final int BYTES_PER_PIXEL = 5;
+
+    private final HttpServer server;
+    private final ExecutorService connections;
+    private final ThreadPoolExecutor workers;
+    private final Semaphore admission;
+    private final int threads;
+    private final long maxUploadBytes;
+    private final long maxPixels;
+    private final long retainedPixels;
+    private final ResultCache cache;
+    private final ThreadLocal<AnalysisContext> contexts = ThreadLocal.withInitial(AnalysisContext::new);
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxPixels largest width times height of an image that is decoded
+     * @param cache     results by upload content hash; null disables caching
+     */
+    public AnalysisServer(InetSocketAddress address, int threads, int queueSize, long maxUploadBytes,
+                          long maxPixels, ResultCache cache) throws IOException {
+        this.threads = threads;
+        this.maxUploadBytes = maxUploadBytes;
+        this.maxPixels = maxPixels;
+        // The buffers kept between requests by all workers together take at most a quarter of the heap
+        this.retainedPixels = Math.min(maxPixels,
+                Runtime.getRuntime().maxMemory() / 4 / Math.max(1, threads) / BYTES_PER_PIXEL);
+        this.cache = cache;
+        // Admission bounds the work queue, so it never holds more than queueSize requests
+        admission = new Semaphore(threads + Math.max(0, queueSize));
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        connections = Executors.newVirtualThreadPerTaskExecutor();
+
+        server = HttpServer.create(address, 0);
+        server.setExecutor(connections);
+        server.createContext("/analyse", this::handleAnalyse);
+        server.createContext("/health", this::handleHealth);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        String bind = "127.0.0.1";
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queue = -1;
+        long maxUploadMegabytes = 256;
+        long maxMegapixels = 128;
+        Path cacheDir = null;
+        long cacheMegabytes = 1024;
+
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) {
+                System.err.println("Missing value for " + args[i] + "\n" + USAGE);
+                System.exit(2);
+            }
+            switch (args[i++]) {
+                case "--port" -> port = Integer.parseInt(value);
+                case "--bind" -> bind = value;
+                case "--threads" -> threads = Integer.parseInt(value);
+                case "--queue" -> queue = Integer.parseInt(value);
+                case "--max-upload" -> maxUploadMegabytes = Long.parseLong(value);
+                case "--max-pixels" -> maxMegapixels = Long.parseLong(value);
+                case "--cache" -> cacheDir = Path.of(value);
+                case "--cache-size" -> cacheMegabytes = Long.parseLong(value);
+                default -> {
+                    System.err.println("Unknown option " + args[i - 1] + "\n" + USAGE);
+                    System.exit(2);
+                }
+            }
+        }
+        if (queue < 0) {
+            queue = threads * 2;
+        }
+
+        ResultCache cache = cacheDir == null ? null : new ResultCache(cacheDir, 64L << 20, cacheMegabytes << 20);
+        AnalysisServer server = new AnalysisServer(new InetSocketAddress(bind, port), threads, queue,
+                maxUploadMegabytes << 20, maxMegapixels * 1_000_000, cache);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+        server.start();
+        InetSocketAddress address = server.getAddress();
+        System.err.printf(Locale.ROOT, "Listening on http://%s:%d/analyse with %d threads and a queue of %d%n",
+                address.getHostString(), address.getPort(), threads, queue);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waits up to {@code delaySeconds} for exchanges in progress, then
+     * shuts the worker pool down.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        connections.shutdown();
+        workers.shutdown();
+    }
+
+    /** The bound address; useful after binding to port 0. */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handleAnalyse(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                reject(exchange, 405, "Use POST with the image as the request body");
+                return;
+            }
+            Parameters parameters;
+            try {
+                parameters = Parameters.parse(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                reject(exchange, 400, e.getMessage());
+                return;
+            }
+            if (contentLength(exchange) > maxUploadBytes) {
+                reject(exchange, 413, "Image is larger than " + maxUploadBytes + " bytes");
+                return;
+            }
+            if (!admission.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                reject(exchange, 429, "Server is busy");
+                return;
+            }
+
+            try {
+                byte[] image = readBody(exchange.getRequestBody());
+                if (image == null) {
+                    reject(exchange, 413, "Image is larger than " + maxUploadBytes + " bytes");
+                    return;
+                }
+                Future<String> result = workers.submit(() -> analyse(image, parameters));
+                send(exchange, 200, result.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof TooManyPixelsException) {
+                    sendError(exchange, 413, e.getCause().getMessage());
+                } else if (e.getCause() instanceof IOException) {
+                    sendError(exchange, 400, e.getCause().getMessage());
+                } else if (e.getCause() instanceof UncheckedIOException) {
+                    // The cache failed, not the upload
+                    sendError(exchange, 500, e.getCause().getMessage());
+                } else {
+                    sendError(exchange, 500, "Analysis failed: " + e.getCause());
+                }
+            } catch (RejectedExecutionException e) {
+                // stop() shut the workers down after this request was admitted
+                sendError(exchange, 503, "Server is shutting down");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendError(exchange, 503, "Server is shutting down");
+            } finally {
+                admission.release();
+            }
+        }
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            send(exchange, 200, String.format(Locale.ROOT,
+                    "{\"status\":\"ok\",\"threads\":%d,\"active\":%d,\"queued\":%d,\"available\":%d,\"rejected\":%d}",
+                    threads, workers.getActiveCount(), workers.getQueue().size(), admission.availablePermits(),
+                    rejected.get()));
+        }
+    }
+
+    private String analyse(byte[] image, Parameters parameters) throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics();
+        long hash = ContentHash.of(image);
+        ResultCache.Key key = new ResultCache.Key(hash, parameters.red(), parameters.purple(),
+                parameters.min(), parameters.max(), parameters.filter(), true, parameters.pyramidStep());
+        ResultCache.Entry entry = null;
+        if (cache != null) {
+            try (PipelineMetrics.Stage stage = metrics.begin("cache lookup")) {
+                entry = cache.get(key);
+                stage.setItems(entry == null ? 0 : 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Result cache lookup failed: " + e.getMessage(), e);
+            }
+        }
+
+        boolean cached = entry != null;
+        if (!cached) {
+            try {
+                entry = analysePixels(image, parameters, metrics);
+            } finally {
+                contexts.get().trim(retainedPixels);
+            }
+            if (cache != null) {
+                try (PipelineMetrics.Stage stage = metrics.begin("cache store")) {
+                    cache.put(key, entry);
+                    stage.setItems(1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Result cache store failed: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        metrics.setPixels((long) entry.getWidth() * entry.getHeight());
+        String name = String.format("%016x", hash);
+        AnalyserMetrics.getInstance().record(name, metrics);
+        return toJson(name, entry, cached, metrics);
+    }
+
+    private ResultCache.Entry analysePixels(byte[] image, Parameters parameters, PipelineMetrics metrics)
+            throws IOException {
+        AnalysisContext context = contexts.get();
+        int width;
+        int height;
+        int[] argb;
+        try (PipelineMetrics.Stage stage = metrics.begin("decode");
+             ImageIOImageSource source = new ImageIOImageSource(image)) {
+            width = source.getWidth();
+            height = source.getHeight();
+            if ((long) width * height > maxPixels) {
+                throw new TooManyPixelsException("Image has " + (long) width * height
+                        + " pixels, more than " + maxPixels);
+            }
+            argb = context.pixels(Math.multiplyExact(width, height));
+            source.read(argb);
+            stage.setItems((long) width * height);
+        }
+
+        ImageProcessor processor = new ImageProcessor(parameters.red(), parameters.purple());
+        BloodCellAnalyser analyser = new BloodCellAnalyser(parameters.min(), parameters.max(), false,
+                context.labeller());
+        LabelMap labelMap = new LabelMap(width, height, context.labels(width * height));
+        BloodCellAnalyser.AnalysisResult result;
+        if (parameters.pyramidStep() > 0) {
+            Segmentation segmentation = new PyramidAnalyser(processor, analyser, parameters.pyramidStep())
+                    .segment(argb, labelMap, metrics);
+            result = analyser.analyseSegmentation(segmentation, metrics);
+        } else {
+            try (PipelineMetrics.Stage stage = metrics.begin("classify")) {
+                processor.classify(argb, width, height, labelMap.getLabels());
+                stage.setItems((long) width * height);
+            }
+            if (!parameters.filter().isIdentity()) {
+                try (PipelineMetrics.Stage stage = metrics.begin("filter")) {
+                    parameters.filter().apply(labelMap);
+                    stage.setItems((long) width * height);
+                }
+            }
+            result = analyser.analyseImage(labelMap, metrics);
+        }
+        return new ResultCache.Entry(width, height, result, null);
+    }
+
+    private static String toJson(String contentHash, ResultCache.Entry entry, boolean cached,
+                                 PipelineMetrics metrics) {
+        BloodCellAnalyser.AnalysisResult result = entry.getResult();
+        StringBuilder sb = new StringBuilder(256 + 160 * result.getCells().size());
+        sb.append(String.format(Locale.ROOT,
+                "{\"contentHash\":\"%s\",\"width\":%d,\"height\":%d,\"redCells\":%d,\"whiteCells\":%d,"
+                        + "\"totalCells\":%d,\"cached\":%b,\"cells\":[",
+                contentHash, entry.getWidth(), entry.getHeight(), result.getRedCellCount(),
+                result.getWhiteCellCount(), result.getTotalCellCount(), cached));
+        List<BloodCellAnalyser.CellInfo> cells = result.getCells();
+        for (int i = 0; i < cells.size(); i++) {
+            BloodCellAnalyser.CellInfo cell = cells.get(i);
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.ROOT,
+                    "{\"id\":%d,\"type\":\"%s\",\"size\":%d,\"minX\":%d,\"minY\":%d,\"maxX\":%d,\"maxY\":%d,"
+                            + "\"cluster\":%b,\"estimatedCount\":%d,",
+                    cell.id, cell.color, cell.size, cell.minX, cell.minY, cell.maxX, cell.maxY,
+                    cell.isCluster, cell.estimatedCellCount));
+            appendShape(sb, cell);
+            if (!cell.subCells.isEmpty()) {
+                sb.append(",\"subCells\":[");
+                for (int j = 0; j < cell.subCells.size(); j++) {
+                    BloodCellAnalyser.CellInfo part = cell.subCells.get(j);
+                    if (j > 0) sb.append(',');
+                    sb.append(String.format(Locale.ROOT,
+                            "{\"size\":%d,\"minX\":%d,\"minY\":%d,\"maxX\":%d,\"maxY\":%d,",
+                            part.size, part.minX, part.minY, part.maxX, part.maxY));
+                    appendShape(sb, part);
+                    sb.append('}');
+                }
+                sb.append(']');
+            }
+            sb.append('}');
+        }
+        return sb.append("],\"metrics\":").append(metrics.toJson()).append('}').toString();
+    }
+
+    private static void appendShape(StringBuilder sb, BloodCellAnalyser.CellInfo cell) {
+        sb.append(String.format(Locale.ROOT,
+                "\"centroidX\":%.2f,\"centroidY\":%.2f,\"perimeter\":%d,\"equivalentDiameter\":%.2f,"
+                        + "\"eccentricity\":%.4f,\"circularity\":%.4f",
+                cell.getCentroidX(), cell.getCentroidY(), cell.getPerimeter(), cell.getEquivalentDiameter(),
+                cell.getEccentricity(), cell.getCircularity()));
+    }
+
+    // -1 when unknown; chunked uploads are only checked against the limit while reading
+    private static long contentLength(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return length == null ? -1 : Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Null if the body is larger than the upload limit
+    private byte[] readBody(InputStream body) throws IOException {
+        byte[] bytes = body.readNBytes((int) Math.min(maxUploadBytes + 1, Integer.MAX_VALUE - 8));
+        return bytes.length > maxUploadBytes ? null : bytes;
+    }
+
+    // For answers sent without reading the whole upload: the rest of it would be taken for the next request
+    private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().set("Connection", "close");
+        sendError(exchange, status, message);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "{\"error\":\"" + BatchAnalyser.escapeJson(String.valueOf(message)) + "\"}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // An upload that decodes to more pixels than the limit, answered with 413
+    private static class TooManyPixelsException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooManyPixelsException(String message) {
+            super(message);
+        }
+    }
+
+    record Parameters(int red, int purple, int min, int max, int pyramidStep, MaskFilter filter) {
+        static Parameters parse(String query) {
+            int red = DEFAULT_RED, purple = DEFAULT_PURPLE, min = DEFAULT_MIN, max = DEFAULT_MAX;
+            String pyramid = null;
+            MaskFilter filter = MaskFilter.NONE;
+            if (query != null && !query.isEmpty()) {
+                for (String pair : query.split("&")) {
+                    int eq = pair.indexOf('=');
+                    String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+                    String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                    switch (name) {
+                        case "red" -> red = parseInt(name, value);
+                        case "purple" -> purple = parseInt(name, value);
+                        case "min" -> min = parseInt(name, value);
+                        case "max" -> max = parseInt(name, value);
+                        case "pyramid" -> pyramid = value;
+                        case "filter" -> filter = MaskFilter.parse(value);
+                        default -> throw new IllegalArgumentException("Unknown parameter " + name);
+                    }
+                }
+            }
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException("Need 0 <= min <= max");
+            }
+            int pyramidStep = pyramid == null ? 0
+                    : pyramid.equalsIgnoreCase("auto") ? PyramidAnalyser.defaultStep(min) : parseInt("pyramid", pyramid);
+            if (pyramid != null && pyramidStep < 1) {
+                throw new IllegalArgumentException("pyramid must be auto or a step of at least 1");
+            }
+            if (pyramidStep > 0 && !filter.isIdentity()) {
+                throw new IllegalArgumentException("filter cannot be combined with pyramid");
+            }
+            return new Parameters(red, purple, min, max, pyramidStep, filter);
+        }
+
+        private static int parseInt(String name, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parameter " + name + " is not an integer: " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.bloodanalyser;
+
+import javafx.concurrent.Service;
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs the classify, label and measure stages off the JavaFX Application Thread.
+ * Submitting a new request cancels the one in flight; its outcome is never delivered.
+ * When a result cache is supplied, results for an already analysed file are reused.
+ */
+public class AnalysisService extends Service<AnalysisService.Outcome> {
+    private final TiledSegmenter segmenter;
+    private Request request;
+
+    public AnalysisService(TiledSegmenter segmenter) {
+        this.segmenter = segmenter;
+    }
+
+    public void submit(Request request) {
+        this.request = request;
+        restart();
+    }
+
+    @Override
+    protected Task<Outcome> createTask() {
+        Request request = this.request;
+        return new Task<>() {
+            private int stage;
+            private int stageCount;
+            private final PipelineMetrics metrics = new PipelineMetrics();
+            private PipelineMetrics.Stage timing;
+
+            @Override
+            protected Outcome call() {
+                boolean caching = request.cache != null && request.imageFile != null;
+                stageCount = (caching ? 1 : 0) + (request.classify ? 1 : 0)
+                        + (request.analyse ? (caching ? 3 : 2) : 0);
+                Outcome outcome = new Outcome();
+                outcome.colourFeatures = request.colourFeatures;
+                outcome.labelMap = request.labelMap;
+                outcome.segmentation = request.segmentation;
+                outcome.imageHash = request.imageHash;
+                outcome.redThreshold = request.redThreshold;
+                outcome.purpleThreshold = request.purpleThreshold;
+                outcome.filter = request.filter;
+                outcome.metrics = metrics;
+
+                ResultCache.Key key = null;
+                ResultCache.Entry cached = null;
+                if (caching) {
+                    beginStage("cache lookup", "Checking result cache");
+                    key = cacheKey(outcome);
+                    cached = key == null ? null : lookup(key);
+                    if (isCancelled()) return null;
+                }
+
+                if (request.classify) {
+                    beginStage("classify", "Classifying pixels");
+                    if (cached != null && cached.getLabelMap() != null) {
+                        outcome.labelMap = cached.getLabelMap();
+                    } else {
+                        if (outcome.colourFeatures == null) {
+                            Image image = request.originalImage;
+                            outcome.colourFeatures = ColourFeatureMap.of(ImageProcessor.readPixels(image),
+                                    (int) image.getWidth(), (int) image.getHeight());
+                        }
+                        outcome.labelMap = segmenter.classify(outcome.colourFeatures,
+                                request.redThreshold, request.purpleThreshold);
+                        if (request.filter != null) {
+                            request.filter.apply(outcome.labelMap);
+                        }
+                    }
+                    timing.setItems((long) outcome.labelMap.getWidth() * outcome.labelMap.getHeight());
+                    outcome.segmentation = null;
+                    if (isCancelled()) return null;
+                }
+
+                if (request.analyse) {
+                    BloodCellAnalyser analyser = new BloodCellAnalyser(request.minCellSize, request.maxCellSize,
+                            request.showNumbering, segmenter);
+
+                    if (cached != null) {
+                        stage += 3;
+                        outcome.analysisResult = cached.getResult();
+                    } else {
+                        beginStage("label", "Labelling cells");
+                        if (outcome.segmentation == null
+                                || outcome.segmentation.getLabelMap() != outcome.labelMap) {
+                            outcome.segmentation = analyser.segment(outcome.labelMap);
+                        }
+                        timing.setItems(outcome.segmentation.getComponents().size());
+                        if (isCancelled()) return null;
+
+                        beginStage("measure", "Measuring cells");
+                        outcome.analysisResult = analyser.analyseSegmentation(outcome.segmentation);
+                        outcome.analysisResult.setMetrics(metrics);
+                        timing.setItems(outcome.analysisResult.getCells().size());
+                        if (isCancelled()) return null;
+
+                        if (caching) {
+                            beginStage("cache store", "Saving to result cache");
+                            store(key, outcome);
+                        }
+                    }
+
+                    // Built here so neither hovering nor drawing the overlay builds it on the FX thread
+                    outcome.analysisResult.getCellIndex();
+                }
+                endStage();
+
+                Image image = request.originalImage;
+                metrics.setPixels((long) image.getWidth() * (long) image.getHeight());
+                AnalyserMetrics.getInstance().record(
+                        request.imageFile != null ? request.imageFile.toString() : "", metrics);
+
+                updateProgress(stageCount, stageCount);
+                updateMessage("Done");
+                return outcome;
+            }
+
+            // An unreadable file or cache only costs a recomputation, so failures are treated as misses
+            private ResultCache.Key cacheKey(Outcome outcome) {
+                if (outcome.imageHash == null) {
+                    try {
+                        outcome.imageHash = ContentHash.ofFile(request.imageFile.toPath());
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+                return new ResultCache.Key(outcome.imageHash, request.redThreshold, request.purpleThreshold,
+                        request.minCellSize, request.maxCellSize, request.filter);
+            }
+
+            private ResultCache.Entry lookup(ResultCache.Key key) {
+                try {
+                    return request.cache.get(key);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+
+            private void store(ResultCache.Key key, Outcome outcome) {
+                if (key == null || outcome.labelMap == null) return;
+                try {
+                    request.cache.put(key, new ResultCache.Entry(outcome.labelMap.getWidth(),
+                            outcome.labelMap.getHeight(), outcome.analysisResult, outcome.labelMap));
+                } catch (IOException e) {
+                    // keep the fresh result even if it could not be persisted
+                }
+            }
+
+            private void beginStage(String name, String message) {
+                endStage();
+                timing = metrics.begin(name);
+                updateMessage(message);
+                updateProgress(stage++, stageCount);
+            }
+
+            private void endStage() {
+                if (timing != null) {
+                    timing.close();
+                    timing = null;
+                }
+            }
+        };
+    }
+
+    public static class Request {
+        Image originalImage;
+        File imageFile;
+        Long imageHash;
+        ResultCache cache;
+        ColourFeatureMap colourFeatures;
+        LabelMap labelMap;
+        Segmentation segmentation;
+        int redThreshold;
+        int purpleThreshold;
+        int minCellSize;
+        int maxCellSize;
+        // Applied to freshly classified label maps; null leaves them as classified
+        MaskFilter filter;
+        boolean showNumbering;
+        boolean classify;
+        boolean analyse;
+    }
+
+    public static class Outcome {
+        Long imageHash;
+        // The settings labelMap was classified with
+        int redThreshold;
+        int purpleThreshold;
+        MaskFilter filter;
+        PipelineMetrics metrics;
+        ColourFeatureMap colourFeatures;
+        LabelMap labelMap;
+        Segmentation segmentation;
+        BloodCellAnalyser.AnalysisResult analysisResult;
+    }
+}
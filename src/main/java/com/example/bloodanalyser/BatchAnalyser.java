@@ -0,0 +1,498 @@
+package com.example.bloodanalyser;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Headless entry point that analyses every slide image under a directory and streams
+ * one result line per image as soon as it finishes.
+ */
+public class BatchAnalyser {
+    private static final String USAGE = "Usage: BatchAnalyser <input-dir> [--out file] [--format csv|jsonl]"
+            + " [--threads n] [--queue n] [--red n] [--purple n] [--min n] [--max n] [--band rows]"
+            + " [--pyramid step|auto] [--filter open,close[,holes]] [--off-heap memory|dir] [--cache dir]"
+            + " [--cache-size mb] [--segmentations dir] [--metrics file]";
+
+    private final int redThreshold;
+    private final int purpleThreshold;
+    private final int minCellSize;
+    private final int maxCellSize;
+    private final int threads;
+    private final int queueSize;
+    private final boolean json;
+    private int bandHeight;
+    private int pyramidStep;
+    private MaskFilter filter = MaskFilter.NONE;
+    private boolean offHeap;
+    private Path scratchDir;
+    private ResultCache cache;
+    private Path segmentationDir;
+    private Writer metricsWriter;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+    private final ThreadLocal<AnalysisContext> contexts = ThreadLocal.withInitial(AnalysisContext::new);
+
+    public BatchAnalyser(int redThreshold, int purpleThreshold, int minCellSize, int maxCellSize,
+                         int threads, int queueSize, boolean json) {
+        this.redThreshold = redThreshold;
+        this.purpleThreshold = purpleThreshold;
+        this.minCellSize = minCellSize;
+        this.maxCellSize = maxCellSize;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.json = json;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        Path inputDir = Path.of(args[0]);
+        Path out = null;
+        boolean json = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queue = 0;
+        int red = 30, purple = 40, min = 30, max = 3000;
+        int band = 0;
+        String pyramid = null;
+        MaskFilter filter = MaskFilter.NONE;
+        String offHeap = null;
+        Path cacheDir = null;
+        long cacheMegabytes = 1024;
+        Path segmentationDir = null;
+        Path metricsOut = null;
+
+        for (int i = 1; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) {
+                exitWithUsage("Missing value for " + args[i]);
+            }
+            switch (args[i++]) {
+                case "--out" -> out = Path.of(value);
+                case "--format" -> {
+                    switch (value.toLowerCase(Locale.ROOT)) {
+                        case "csv" -> json = false;
+                        case "jsonl", "json" -> json = true;
+                        default -> exitWithUsage("Unknown format " + value);
+                    }
+                }
+                case "--threads" -> threads = parsePositive("--threads", value);
+                case "--queue" -> queue = parsePositive("--queue", value);
+                case "--red" -> red = Integer.parseInt(value);
+                case "--purple" -> purple = Integer.parseInt(value);
+                case "--min" -> min = Integer.parseInt(value);
+                case "--max" -> max = Integer.parseInt(value);
+                case "--band" -> band = Integer.parseInt(value);
+                case "--pyramid" -> pyramid = value;
+                case "--filter" -> filter = MaskFilter.parse(value);
+                case "--off-heap" -> offHeap = value;
+                case "--cache" -> cacheDir = Path.of(value);
+                case "--cache-size" -> cacheMegabytes = Long.parseLong(value);
+                case "--segmentations" -> segmentationDir = Path.of(value);
+                case "--metrics" -> metricsOut = Path.of(value);
+                default -> exitWithUsage("Unknown option " + args[i - 1]);
+            }
+        }
+        if (segmentationDir != null && band > 0) {
+            System.err.println("--segmentations needs whole label maps and cannot be combined with --band");
+            System.exit(2);
+        }
+        if (pyramid != null && band > 0) {
+            System.err.println("--pyramid needs whole decoded slides and cannot be combined with --band");
+            System.exit(2);
+        }
+        if (!filter.isIdentity() && (band > 0 || pyramid != null)) {
+            System.err.println("--filter needs whole label maps and cannot be combined with --band or --pyramid");
+            System.exit(2);
+        }
+        if (offHeap != null && (band > 0 || pyramid != null || !filter.isIdentity() || segmentationDir != null)) {
+            System.err.println("--off-heap cannot be combined with --band, --pyramid, --filter or --segmentations");
+            System.exit(2);
+        }
+        if (queue == 0) {
+            queue = threads * 2;
+        }
+
+        BatchAnalyser batch = new BatchAnalyser(red, purple, min, max, threads, queue, json);
+        batch.setBandHeight(band);
+        batch.setFilter(filter);
+        if (offHeap != null) {
+            batch.setOffHeap(true, offHeap.equalsIgnoreCase("memory") ? null : Path.of(offHeap));
+        }
+        if (pyramid != null) {
+            batch.setPyramidStep(pyramid.equalsIgnoreCase("auto")
+                    ? PyramidAnalyser.defaultStep(min) : Integer.parseInt(pyramid));
+        }
+        if (cacheDir != null) {
+            batch.setCache(new ResultCache(cacheDir, 64L << 20, cacheMegabytes << 20));
+        }
+        if (segmentationDir != null) {
+            Files.createDirectories(segmentationDir);
+            batch.setSegmentationDir(segmentationDir);
+        }
+        try (Writer writer = out == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(out, StandardCharsets.UTF_8);
+             Writer metricsWriter = metricsOut == null ? null : Files.newBufferedWriter(metricsOut, StandardCharsets.UTF_8)) {
+            batch.setMetricsWriter(metricsWriter);
+            batch.run(inputDir, writer);
+        }
+    }
+
+    private static void exitWithUsage(String problem) {
+        System.err.println(problem + "\n" + USAGE);
+        System.exit(2);
+    }
+
+    private static int parsePositive(String option, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        exitWithUsage(option + " needs a positive count: " + value);
+        return 0;
+    }
+
+    /**
+     * Analyses slides in bands of the given height instead of decoding them whole; 0 disables streaming.
+     */
+    public void setBandHeight(int bandHeight) {
+        this.bandHeight = bandHeight;
+    }
+
+    /**
+     * Finds cells on every {@code step}-th row and column first and only analyses their surroundings
+     * at full resolution, see {@link PyramidAnalyser}; 0 analyses every pixel.
+     */
+    public void setPyramidStep(int pyramidStep) {
+        this.pyramidStep = pyramidStep;
+    }
+
+    /**
+     * Cleans up each label map before labelling; {@link MaskFilter#NONE} labels it as classified.
+     * Only applies to slides analysed whole, without streaming or the pyramid.
+     */
+    public void setFilter(MaskFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Keeps each slide's label map and union-find off-heap, see {@link OffHeapAnalyser}, for slides
+     * too large for arrays. The storage is backed by scratch files in {@code scratchDir} when it is
+     * not null.
+     */
+    public void setOffHeap(boolean offHeap, Path scratchDir) {
+        this.offHeap = offHeap;
+        this.scratchDir = scratchDir;
+    }
+
+    /**
+     * Looks slides up by content hash before decoding them and stores new results; null disables caching.
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Writes a {@link SegmentationFile} per slide into the directory, at the slide's path relative
+     * to the input directory with {@code .seg} appended; null disables it.
+     */
+    public void setSegmentationDir(Path segmentationDir) {
+        this.segmentationDir = segmentationDir;
+    }
+
+    /**
+     * Writes one JSON line of per-stage timings per slide to the writer; null disables it.
+     * Timings are recorded in {@link AnalyserMetrics} either way.
+     */
+    public void setMetricsWriter(Writer metricsWriter) {
+        this.metricsWriter = metricsWriter;
+    }
+
+    public void run(Path inputDir, Writer writer) throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(inputDir)) {
+            files = walk.filter(Files::isRegularFile).filter(BatchAnalyser::isImage).sorted().toList();
+        }
+
+        if (!json) {
+            writer.write("file,width,height,red_cells,white_cells,total_cells,components,millis\n");
+            writer.flush();
+        }
+
+        // Full queue blocks the producer, so at most threads + queueSize decoded slides exist at once
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                (task, pool) -> {
+                    try {
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while queueing " + task, e);
+                    }
+                });
+
+        long start = System.nanoTime();
+        try {
+            if (bandHeight == 0 && !offHeap && cache == null) {
+                // Decodes ahead of the workers into as many buffers as there can be slides in flight.
+                // A cache has to see the file before it is decoded, and streaming and the off-heap
+                // backend decode band by band.
+                try (ImagePrefetcher prefetcher = new ImagePrefetcher(files, threads + Math.max(1, queueSize))) {
+                    ImagePrefetcher.Decoded image;
+                    while ((image = prefetcher.next()) != null) {
+                        ImagePrefetcher.Decoded decoded = image;
+                        executor.execute(() -> analyse(inputDir, decoded.getFile(), decoded, writer));
+                    }
+                }
+            } else {
+                for (Path file : files) {
+                    executor.execute(() -> analyse(inputDir, file, null, writer));
+                }
+            }
+        } finally {
+            // Slides already queued are finished either way, and the workers exit afterwards
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.err.printf(Locale.ROOT,
+                "Analysed %d images (%d failed, %d cached) in %.2f s: %.2f images/s, %.2f MP/s%n",
+                processed.get(), failed.get(), cacheHits.get(), seconds,
+                processed.get() / seconds, pixels.get() / 1e6 / seconds);
+    }
+
+    // Mirrors the input tree and keeps the extension, so slide.png and slide.tif in any two
+    // directories get files of their own
+    private Path segmentationFile(Path inputDir, Path file) {
+        Path relative = file.equals(inputDir) ? file.getFileName() : inputDir.relativize(file);
+        return segmentationDir.resolve(relative.toString() + ".seg");
+    }
+
+    private void analyse(Path inputDir, Path file, ImagePrefetcher.Decoded image, Writer writer) {
+        PipelineMetrics metrics = image == null ? new PipelineMetrics() : image.getMetrics();
+        long start = System.nanoTime() - metrics.getTotalNanos();
+        try {
+            ResultCache.Key key = null;
+            ResultCache.Entry entry = null;
+            if (cache != null) {
+                try (PipelineMetrics.Stage stage = metrics.begin("cache lookup")) {
+                    key = new ResultCache.Key(ContentHash.ofFile(file), redThreshold, purpleThreshold,
+                            minCellSize, maxCellSize, filter, bandHeight == 0 && !offHeap, pyramidStep);
+                    entry = lookup(key, file);
+                    if (entry != null && segmentationDir != null && entry.getLabelMap() == null) {
+                        entry = null;
+                    }
+                    stage.setItems(entry == null ? 0 : 1);
+                }
+            }
+
+            if (entry != null) {
+                cacheHits.incrementAndGet();
+            } else {
+                if (image != null) {
+                    entry = analysePixels(image.getPixels(), image.getWidth(), image.getHeight(), metrics);
+                } else {
+                    entry = bandHeight > 0 ? analyseStreaming(file, metrics)
+                            : offHeap ? analyseOffHeap(file, metrics) : analyseDecoded(file, metrics);
+                }
+                pixels.addAndGet((long) entry.getWidth() * entry.getHeight());
+                if (cache != null) {
+                    store(key, entry, file, metrics);
+                }
+            }
+            if (segmentationDir != null) {
+                try (PipelineMetrics.Stage stage = metrics.begin("save segmentation")) {
+                    Path segmentationFile = segmentationFile(inputDir, file);
+                    Files.createDirectories(segmentationFile.getParent());
+                    SegmentationFile.write(segmentationFile, entry.getLabelMap(), entry.getResult());
+                    stage.setItems((long) entry.getWidth() * entry.getHeight());
+                }
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            metrics.setPixels((long) entry.getWidth() * entry.getHeight());
+            AnalyserMetrics.getInstance().record(file.toString(), metrics);
+            writeLine(writer, formatLine(file, entry.getWidth(), entry.getHeight(), entry.getResult(), millis));
+            if (metricsWriter != null) {
+                writeLine(metricsWriter, "{\"file\":\"" + escapeJson(file.toString()) + "\",\"metrics\":"
+                        + metrics.toJson() + "}");
+            }
+            processed.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.err.println("Failed to analyse " + file + ": " + e.getMessage());
+        } finally {
+            if (image != null) {
+                image.close();
+            }
+        }
+    }
+
+    // A cache that cannot be read or written only costs the time to recompute, never the slide
+    private ResultCache.Entry lookup(ResultCache.Key key, Path file) {
+        try {
+            return cache.get(key);
+        } catch (IOException e) {
+            System.err.println("Cache lookup failed for " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void store(ResultCache.Key key, ResultCache.Entry entry, Path file, PipelineMetrics metrics) {
+        try (PipelineMetrics.Stage stage = metrics.begin("cache store")) {
+            cache.put(key, entry);
+            stage.setItems(1);
+        } catch (IOException e) {
+            System.err.println("Cache store failed for " + file + ": " + e.getMessage());
+        }
+    }
+
+    private ResultCache.Entry analyseDecoded(Path file, PipelineMetrics metrics) throws IOException {
+        int width;
+        int height;
+        int[] argb;
+        try (PipelineMetrics.Stage stage = metrics.begin("decode");
+             ImageIOImageSource source = new ImageIOImageSource(file)) {
+            width = source.getWidth();
+            height = source.getHeight();
+            argb = contexts.get().pixels(Math.multiplyExact(width, height));
+            source.read(argb);
+            stage.setItems((long) width * height);
+        }
+        return analysePixels(argb, width, height, metrics);
+    }
+
+    private ResultCache.Entry analysePixels(int[] argb, int width, int height, PipelineMetrics metrics) {
+        AnalysisContext context = contexts.get();
+        ImageProcessor processor = new ImageProcessor(redThreshold, purpleThreshold);
+        BloodCellAnalyser analyser = new BloodCellAnalyser(minCellSize, maxCellSize, false, context.labeller());
+        // A label map that outlives this call, for its segmentation file, cannot live in the shared buffer
+        byte[] labels = segmentationDir != null ? new byte[width * height] : context.labels(width * height);
+        if (pyramidStep > 0) {
+            Segmentation segmentation = new PyramidAnalyser(processor, analyser, pyramidStep)
+                    .segment(argb, new LabelMap(width, height, labels), metrics);
+            BloodCellAnalyser.AnalysisResult result = analyser.analyseSegmentation(segmentation, metrics);
+            return new ResultCache.Entry(width, height, result,
+                    segmentationDir != null ? segmentation.getLabelMap() : null);
+        }
+
+        LabelMap labelMap;
+        try (PipelineMetrics.Stage stage = metrics.begin("classify")) {
+            labelMap = processor.classify(argb, width, height, labels);
+            stage.setItems((long) width * height);
+        }
+        if (!filter.isIdentity()) {
+            try (PipelineMetrics.Stage stage = metrics.begin("filter")) {
+                filter.apply(labelMap);
+                stage.setItems((long) width * height);
+            }
+        }
+        BloodCellAnalyser.AnalysisResult result = analyser.analyseImage(labelMap, metrics);
+        return new ResultCache.Entry(width, height, result, segmentationDir != null ? labelMap : null);
+    }
+
+    private ResultCache.Entry analyseStreaming(Path file, PipelineMetrics metrics) throws IOException {
+        try (RowBandSource source = RowBandSource.open(file);
+             PipelineMetrics.Stage stage = metrics.begin("stream")) {
+            StreamingAnalyser analyser = new StreamingAnalyser(new ImageProcessor(redThreshold, purpleThreshold),
+                    new BloodCellAnalyser(minCellSize, maxCellSize, false), bandHeight);
+            BloodCellAnalyser.AnalysisResult result = analyser.analyse(source);
+            result.setMetrics(metrics);
+            stage.setItems((long) source.getWidth() * source.getHeight());
+            return new ResultCache.Entry(source.getWidth(), source.getHeight(), result, null);
+        }
+    }
+
+    private ResultCache.Entry analyseOffHeap(Path file, PipelineMetrics metrics) throws IOException {
+        try (RowBandSource source = RowBandSource.open(file);
+             PipelineMetrics.Stage stage = metrics.begin("off-heap")) {
+            OffHeapAnalyser analyser = new OffHeapAnalyser(new ImageProcessor(redThreshold, purpleThreshold),
+                    new BloodCellAnalyser(minCellSize, maxCellSize, false), scratchDir);
+            BloodCellAnalyser.AnalysisResult result = analyser.analyse(source);
+            result.setMetrics(metrics);
+            stage.setItems((long) source.getWidth() * source.getHeight());
+            return new ResultCache.Entry(source.getWidth(), source.getHeight(), result, null);
+        }
+    }
+
+    private String formatLine(Path file, int width, int height, BloodCellAnalyser.AnalysisResult result, long millis) {
+        if (json) {
+            return String.format(Locale.ROOT,
+                    "{\"file\":\"%s\",\"width\":%d,\"height\":%d,\"redCells\":%d,\"whiteCells\":%d,"
+                            + "\"totalCells\":%d,\"components\":%d,\"millis\":%d}",
+                    escapeJson(file.toString()), width, height, result.getRedCellCount(),
+                    result.getWhiteCellCount(), result.getTotalCellCount(), result.getCells().size(), millis);
+        }
+        return String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%d,%d",
+                escapeCsv(file.toString()), width, height, result.getRedCellCount(),
+                result.getWhiteCellCount(), result.getTotalCellCount(), result.getCells().size(), millis);
+    }
+
+    private static void writeLine(Writer writer, String line) throws IOException {
+        synchronized (writer) {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg")
+                || name.endsWith(".tif") || name.endsWith(".tiff");
+    }
+
+    static String escapeJson(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String escapeCsv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -1,13 +1,8 @@
 package com.example.bloodanalyser;
 
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
-import javafx.scene.text.Font;
-import javafx.scene.text.Text;
-import javafx.scene.text.TextAlignment;
 
 import java.util.*;
 
@@ -15,79 +10,102 @@ public class BloodCellAnalyser {
     private final int minCellSize;
     private final int maxCellSize;
     private final boolean showNumbering;
+    private final ComponentLabeller labeller;
+    private final ClusterSplitter clusterSplitter;
 
     public BloodCellAnalyser(int minCellSize, int maxCellSize, boolean showNumbering) {
+        this(minCellSize, maxCellSize, showNumbering, new RunLengthLabeller());
+    }
+
+    public BloodCellAnalyser(int minCellSize, int maxCellSize, boolean showNumbering, ComponentLabeller labeller) {
+        this(minCellSize, maxCellSize, showNumbering, labeller, new ClusterSplitter());
+    }
+
+    /**
+     * @param clusterSplitter splits clusters when the label map is at hand; null keeps the size estimate
+     */
+    public BloodCellAnalyser(int minCellSize, int maxCellSize, boolean showNumbering, ComponentLabeller labeller,
+                             ClusterSplitter clusterSplitter) {
         this.minCellSize = minCellSize;
         this.maxCellSize = maxCellSize;
         this.showNumbering = showNumbering;
+        this.labeller = labeller;
+        this.clusterSplitter = clusterSplitter;
     }
 
-    public AnalysisResult analyseImage(WritableImage tricolourImage) {
-        int width = (int) tricolourImage.getWidth();
-        int height = (int) tricolourImage.getHeight();
+    public AnalysisResult analyseImage(LabelMap labelMap) {
+        return analyseComponents(labeller.label(labelMap), labelMap);
+    }
 
-        UnionFind unionFind = new UnionFind(width, height);
-        PixelReader pixelReader = tricolourImage.getPixelReader();
+    /**
+     * Same as {@link #analyseImage(LabelMap)}, timing the label and measure stages into {@code metrics}.
+     */
+    public AnalysisResult analyseImage(LabelMap labelMap, PipelineMetrics metrics) {
+        List<CellInfo> components;
+        try (PipelineMetrics.Stage stage = metrics.begin("label")) {
+            components = labeller.label(labelMap);
+            stage.setItems(components.size());
+        }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color color = pixelReader.getColor(x, y);
+        return analyseComponents(components, labelMap, metrics);
+    }
 
-                if (isWhite(color)) continue;
+    public Segmentation segment(LabelMap labelMap) {
+        return new Segmentation(labelMap, labeller.label(labelMap));
+    }
 
-                int currentIndex = y * width + x;
+    public AnalysisResult analyseSegmentation(Segmentation segmentation) {
+        return analyseComponents(segmentation.getComponents(), segmentation.getLabelMap());
+    }
 
-                if (x + 1 < width) {
-                    Color rightColor = pixelReader.getColor(x + 1, y);
-                    if (isSameType(color, rightColor)) {
-                        unionFind.union(currentIndex, (y * width) + (x + 1));
-                    }
-                }
+    /**
+     * Same as {@link #analyseSegmentation(Segmentation)}, timing the measure and split stages into {@code metrics}.
+     */
+    public AnalysisResult analyseSegmentation(Segmentation segmentation, PipelineMetrics metrics) {
+        return analyseComponents(segmentation.getComponents(), segmentation.getLabelMap(), metrics);
+    }
 
-                if (y + 1 < height) {
-                    Color bottomColor = pixelReader.getColor(x, y + 1);
-                    if (isSameType(color, bottomColor)) {
-                        unionFind.union(currentIndex, ((y + 1) * width) + x);
-                    }
-                }
-            }
+    /**
+     * Analyses components without their label map, so clusters keep the size-based estimate.
+     */
+    public AnalysisResult analyseComponents(List<CellInfo> components, int width) {
+        return count(measure(components, width));
+    }
+
+    private AnalysisResult analyseComponents(List<CellInfo> components, LabelMap labelMap) {
+        List<CellInfo> cells = measure(components, labelMap.getWidth());
+        if (clusterSplitter != null) {
+            clusterSplitter.split(labelMap, cells);
         }
+        return count(cells);
+    }
 
-        Map<Integer, CellInfo> cellMap = new HashMap<>();
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color color = pixelReader.getColor(x, y);
-
-                if (isWhite(color)) continue;
-
-                int index = y * width + x;
-                int root  = unionFind.find(index);
-                CellInfo ci = cellMap.get(root);
-                if (ci == null) {
-                    ci = new CellInfo();
-                    ci.color = isPurple(color) ? CellType.WHITE : CellType.RED;
-                    ci.minX = ci.maxX = x;
-                    ci.minY = ci.maxY = y;
-                    ci.size = 0;
-                    cellMap.put(root, ci);
-                }
-                ci.size++;
-                ci.minX = Math.min(ci.minX, x);
-                ci.maxX = Math.max(ci.maxX, x);
-                ci.minY = Math.min(ci.minY, y);
-                ci.maxY = Math.max(ci.maxY, y);
+    private AnalysisResult analyseComponents(List<CellInfo> components, LabelMap labelMap, PipelineMetrics metrics) {
+        List<CellInfo> cells;
+        try (PipelineMetrics.Stage stage = metrics.begin("measure")) {
+            cells = measure(components, labelMap.getWidth());
+            stage.setItems(cells.size());
+        }
 
+        if (clusterSplitter != null) {
+            try (PipelineMetrics.Stage stage = metrics.begin("split clusters")) {
+                clusterSplitter.split(labelMap, cells);
+                stage.setItems(cells.stream().filter(c -> c.isCluster).count());
             }
         }
 
-        List<CellInfo> validCells = cellMap.values().stream()
-                .filter(cell -> cell.size >= minCellSize && cell.size <= maxCellSize)
-                .sorted(Comparator.comparingInt(c -> c.minX + c.minY * width))
-                .toList();
+        AnalysisResult result = count(cells);
+        result.setMetrics(metrics);
+        return result;
+    }
 
-        int redCellCount = 0;
-        int whiteCellCount = 0;
+    // Works on copies, so the same unfiltered components can be re-filtered with other size limits.
+    private List<CellInfo> measure(List<CellInfo> components, int width) {
+        List<CellInfo> validCells = components.stream()
+                .filter(this::isValidSize)
+                .map(CellInfo::copy)
+                .sorted(Comparator.comparingLong(c -> c.minX + (long) c.minY * width))
+                .toList();
 
         int id = 1;
         for (CellInfo cell : validCells) {
@@ -97,222 +115,165 @@ public class BloodCellAnalyser {
             int height1 = cell.maxY - cell.minY + 1;
             double aspectRatio = (double) width1 / height1;
 
-            if (cell.color == CellType.RED) {
-                if (cell.size > 500 || (aspectRatio < 0.7 || aspectRatio > 1.3) || (width1 > 30 || height1 > 30)) {
-                    cell.isCluster = true;
-                    int estCount = Math.max(2, cell.size / 300);
-                    cell.estimatedCellCount = estCount;
-                    redCellCount += estCount;
-                } else {
-                    cell.estimatedCellCount = 1;
-                    redCellCount++;
-                }
+            if (cell.color == CellType.RED
+                    && (cell.size > 500 || (aspectRatio < 0.7 || aspectRatio > 1.3) || (width1 > 30 || height1 > 30))) {
+                cell.isCluster = true;
+                cell.estimatedCellCount = Math.max(2, cell.size / 300);
             } else {
                 cell.estimatedCellCount = 1;
+            }
+        }
+        return validCells;
+    }
+
+    static AnalysisResult count(List<CellInfo> cells) {
+        int redCellCount = 0;
+        int whiteCellCount = 0;
+        for (CellInfo cell : cells) {
+            if (cell.color == CellType.RED) {
+                redCellCount += cell.estimatedCellCount;
+            } else {
                 whiteCellCount++;
             }
         }
+        return new AnalysisResult(cells, redCellCount, whiteCellCount);
+    }
 
-        return new AnalysisResult(validCells, redCellCount, whiteCellCount);
+    boolean isValidSize(CellInfo cell) {
+        return cell.size >= minCellSize && cell.size <= maxCellSize;
     }
 
     public WritableImage createAnalysisImage(Image originalImage, List<CellInfo> cells) {
+        return createAnalysisImage(originalImage, cells,
+                new int[(int) originalImage.getWidth() * (int) originalImage.getHeight()]);
+    }
+
+    /**
+     * Same as {@link #createAnalysisImage(Image, List)}, using {@code argb} as the scratch buffer.
+     */
+    public WritableImage createAnalysisImage(Image originalImage, List<CellInfo> cells, int[] argb) {
         int width = (int) originalImage.getWidth();
         int height = (int) originalImage.getHeight();
 
-        WritableImage result = new WritableImage(width, height);
-        PixelReader pixelReader = originalImage.getPixelReader();
-        PixelWriter pixelWriter = result.getPixelWriter();
+        ImageProcessor.readPixels(originalImage, argb);
+        new OverlayRenderer(showNumbering).draw(argb, width, height, cells);
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                pixelWriter.setColor(x, y, pixelReader.getColor(x, y));
-            }
-        }
+        WritableImage result = new WritableImage(width, height);
+        result.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+        return result;
+    }
 
-        for (CellInfo cell : cells) {
-            drawCellRectangle(pixelWriter, cell, width, height);
+    public enum CellType {
+        RED, WHITE;
 
-            if (showNumbering) {
-                int centerX = cell.minX + (cell.maxX - cell.minX) / 2;
-                int centerY = cell.minY + (cell.maxY - cell.minY) / 2;
-                drawCellNumber(pixelWriter, cell.id, centerX, centerY, width, height);
-            }
+        static CellType of(byte label) {
+            return label == LabelMap.PURPLE ? WHITE : RED;
         }
-
-        return result;
     }
 
-    private void drawCellRectangle(PixelWriter pixelWriter, CellInfo cell, int imageWidth, int imageHeight) {
-        Color color;
-        if (cell.color == CellType.RED) {
-            color = cell.isCluster ? Color.BLUE : Color.GREEN;
-        } else {
-            color = Color.PURPLE;
+    public static class CellInfo {
+        CellType color;
+        int minX, minY, maxX, maxY;
+        int size;
+        int id;
+        boolean isCluster = false;
+        int estimatedCellCount = 1;
+        // Individual cells of a split cluster, in image coordinates
+        List<CellInfo> subCells = List.of();
+        // Raw moments and boundary pixel count, accumulated while labelling
+        long sumX, sumY, sumXX, sumYY, sumXY;
+        int perimeter;
+
+        CellInfo copy() {
+            CellInfo copy = new CellInfo();
+            copy.color = color;
+            copy.minX = minX;
+            copy.minY = minY;
+            copy.maxX = maxX;
+            copy.maxY = maxY;
+            copy.size = size;
+            copy.id = id;
+            copy.isCluster = isCluster;
+            copy.estimatedCellCount = estimatedCellCount;
+            copy.subCells = subCells;
+            copy.sumX = sumX;
+            copy.sumY = sumY;
+            copy.sumXX = sumXX;
+            copy.sumYY = sumYY;
+            copy.sumXY = sumXY;
+            copy.perimeter = perimeter;
+            return copy;
         }
 
-        int minX = Math.max(0, cell.minX - 1);
-        int minY = Math.max(0, cell.minY - 1);
-        int maxX = Math.min(imageWidth - 1, cell.maxX + 1);
-        int maxY = Math.min(imageHeight - 1, cell.maxY + 1);
+        // Moves the cell by (dx, dy), such as from crop to image coordinates
+        void translate(int dx, int dy) {
+            sumXX += 2L * dx * sumX + (long) dx * dx * size;
+            sumYY += 2L * dy * sumY + (long) dy * dy * size;
+            sumXY += (long) dx * sumY + (long) dy * sumX + (long) dx * dy * size;
+            sumX += (long) dx * size;
+            sumY += (long) dy * size;
+            minX += dx;
+            maxX += dx;
+            minY += dy;
+            maxY += dy;
+        }
 
-        for (int x = minX; x <= maxX; x++) {
-            pixelWriter.setColor(x, minY, color);
-            pixelWriter.setColor(x, maxY, color);
+        public double getCentroidX() {
+            return size == 0 ? 0 : (double) sumX / size;
         }
 
-        for (int y = minY; y <= maxY; y++) {
-            pixelWriter.setColor(minX, y, color);
-            pixelWriter.setColor(maxX, y, color);
+        public double getCentroidY() {
+            return size == 0 ? 0 : (double) sumY / size;
         }
-    }
 
-    private void drawCellNumber(PixelWriter pixelWriter, int number, int x, int y, int imageWidth, int imageHeight) {
-        String text = String.valueOf(number);
-        boolean[][][] digitPatterns = {
-                // Digit 0
-                {
-                        {true, true, true},
-                        {true, false, true},
-                        {true, false, true},
-                        {true, false, true},
-                        {true, true, true}
-                },
-                // Digit 1
-                {
-                        {false, true, false},
-                        {true, true, false},
-                        {false, true, false},
-                        {false, true, false},
-                        {true, true, true}
-                },
-                // Digit 2
-                {
-                        {true, true, true},
-                        {false, false, true},
-                        {true, true, true},
-                        {true, false, false},
-                        {true, true, true}
-                },
-                // Digit 3
-                {
-                        {true, true, true},
-                        {false, false, true},
-                        {true, true, true},
-                        {false, false, true},
-                        {true, true, true}
-                },
-                // Digit 4
-                {
-                        {true, false, true},
-                        {true, false, true},
-                        {true, true, true},
-                        {false, false, true},
-                        {false, false, true}
-                },
-                // Digit 5
-                {
-                        {true, true, true},
-                        {true, false, false},
-                        {true, true, true},
-                        {false, false, true},
-                        {true, true, true}
-                },
-                // Digit 6
-                {
-                        {true, true, true},
-                        {true, false, false},
-                        {true, true, true},
-                        {true, false, true},
-                        {true, true, true}
-                },
-                // Digit 7
-                {
-                        {true, true, true},
-                        {false, false, true},
-                        {false, true, false},
-                        {true, false, false},
-                        {true, false, false}
-                },
-                // Digit 8
-                {
-                        {true, true, true},
-                        {true, false, true},
-                        {true, true, true},
-                        {true, false, true},
-                        {true, true, true}
-                },
-                // Digit 9
-                {
-                        {true, true, true},
-                        {true, false, true},
-                        {true, true, true},
-                        {false, false, true},
-                        {true, true, true}
-                }
-        };
-
-        int digitWidth = 3;
-        int digitHeight = 5;
-        int spacing = 1;
-        int totalWidth = text.length() * (digitWidth + spacing) - spacing;
-
-        int startX = x - totalWidth / 2;
-        int startY = y - digitHeight / 2;
-
-        for (int bgX = startX - 1; bgX <= startX + totalWidth; bgX++) {
-            for (int bgY = startY - 1; bgY <= startY + digitHeight; bgY++) {
-                if (bgX >= 0 && bgX < imageWidth && bgY >= 0 && bgY < imageHeight) {
-                    pixelWriter.setColor(bgX, bgY, Color.BLACK);
-                }
-            }
+        /** Second-order central moment along x: the sum of squared x distances from the centroid. */
+        public double getMu20() {
+            return size == 0 ? 0 : sumXX - (double) sumX * sumX / size;
         }
 
-        for (int i = 0; i < text.length(); i++) {
-            int digit = Character.getNumericValue(text.charAt(i));
-            if (digit >= 0 && digit <= 9) {
-                int digitX = startX + i * (digitWidth + spacing);
-
-                for (int dy = 0; dy < digitHeight; dy++) {
-                    for (int dx = 0; dx < digitWidth; dx++) {
-                        int px = digitX + dx;
-                        int py = startY + dy;
-
-                        if (px >= 0 && px < imageWidth && py >= 0 && py < imageHeight) {
-                            if (digitPatterns[digit][dy][dx]) {
-                                pixelWriter.setColor(px, py, Color.WHITE);
-                            }
-                        }
-                    }
-                }
-            }
+        /** Second-order central moment along y. */
+        public double getMu02() {
+            return size == 0 ? 0 : sumYY - (double) sumY * sumY / size;
         }
-    }
 
-    private boolean isWhite(Color color) {
-        return color.getRed() > 0.9 && color.getGreen() > 0.9 && color.getBlue() > 0.9;
-    }
+        /** Mixed second-order central moment. */
+        public double getMu11() {
+            return size == 0 ? 0 : sumXY - (double) sumX * sumY / size;
+        }
 
-    private boolean isPurple(Color color) {
-        return color.getBlue() > 0.5 && color.getRed() < 0.5;
-    }
+        /** Number of pixels with a 4-neighbour outside the component. */
+        public int getPerimeter() {
+            return perimeter;
+        }
 
-    private boolean isSameType(Color c1, Color c2) {
-        if (isWhite(c1) || isWhite(c2)) return false;
-        return isPurple(c1) == isPurple(c2);
-    }
+        /** Diameter of the disc with the same area. */
+        public double getEquivalentDiameter() {
+            return Math.sqrt(4.0 * size / Math.PI);
+        }
 
-    public enum CellType {
-        RED, WHITE
-    }
+        /**
+         * Eccentricity of the ellipse with the same second moments: 0 for a disc, approaching 1
+         * for an elongated shape such as two touching cells.
+         */
+        public double getEccentricity() {
+            double mu20 = getMu20();
+            double mu02 = getMu02();
+            double mu11 = getMu11();
+            double mean = (mu20 + mu02) / 2;
+            double spread = Math.sqrt((mu20 - mu02) * (mu20 - mu02) / 4 + mu11 * mu11);
+            double major = mean + spread;
+            double minor = Math.max(0, mean - spread);
+            return major <= 0 ? 0 : Math.sqrt(1 - minor / major);
+        }
 
-    public static class CellInfo {
-        CellType color;
-        int minX, minY, maxX, maxY;
-        int size;
-        int id;
-        boolean isCluster = false;
-        int estimatedCellCount = 1;
+        /**
+         * 4&pi; area / perimeter^2 on the boundary pixel count: highest for compact round shapes,
+         * lower for ragged or elongated ones. Counting boundary pixels underestimates the true
+         * perimeter, so the value is only comparable between cells and can exceed 1.
+         */
+        public double getCircularity() {
+            return perimeter == 0 ? 0 : 4 * Math.PI * size / ((double) perimeter * perimeter);
+        }
 
         @Override
         public String toString() {
@@ -325,6 +286,8 @@ public class BloodCellAnalyser {
         private final List<CellInfo> cells;
         private final int redCellCount;
         private final int whiteCellCount;
+        private PipelineMetrics metrics;
+        private CellIndex cellIndex;
 
         public AnalysisResult(List<CellInfo> cells, int redCellCount, int whiteCellCount) {
             this.cells = cells;
@@ -347,5 +310,22 @@ public class BloodCellAnalyser {
         public int getTotalCellCount() {
             return redCellCount + whiteCellCount;
         }
+
+        /** Spatial index over the cells' bounding boxes, built on first use. */
+        public synchronized CellIndex getCellIndex() {
+            if (cellIndex == null) {
+                cellIndex = new CellIndex(cells);
+            }
+            return cellIndex;
+        }
+
+        /** Stage timings of the run that produced this result, or null if it was not instrumented. */
+        public PipelineMetrics getMetrics() {
+            return metrics;
+        }
+
+        void setMetrics(PipelineMetrics metrics) {
+            this.metrics = metrics;
+        }
     }
 }
\ No newline at end of file
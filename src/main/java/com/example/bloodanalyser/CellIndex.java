@@ -0,0 +1,203 @@
+package com.example.bloodanalyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over the bounding boxes of analysed cells, for point, rectangle and
+ * nearest-cell lookups without scanning the whole cell list.
+ * <p>
+ * Each cell is listed in every grid bucket its box overlaps; buckets are stored as one
+ * flat index array with per-bucket offsets. The bucket size follows the typical cell
+ * size, so a point query looks at a handful of boxes. Instances are immutable.
+ */
+public class CellIndex {
+    private static final int MIN_BUCKET_SIZE = 4;
+    // Keeps the number of buckets within a small multiple of the number of cells
+    private static final int MAX_BUCKETS_PER_CELL = 4;
+
+    private final List<BloodCellAnalyser.CellInfo> cells;
+    private final int bucketSize;
+    private final int columns;
+    private final int rows;
+    private final int[] bucketStart;
+    private final int[] entries;
+
+    public CellIndex(List<BloodCellAnalyser.CellInfo> cells) {
+        this.cells = cells;
+
+        int width = 1;
+        int height = 1;
+        long sides = 0;
+        for (BloodCellAnalyser.CellInfo cell : cells) {
+            width = Math.max(width, cell.maxX + 1);
+            height = Math.max(height, cell.maxY + 1);
+            sides += Math.max(cell.maxX - cell.minX, cell.maxY - cell.minY) + 1;
+        }
+        int typical = cells.isEmpty() ? MIN_BUCKET_SIZE : (int) (sides / cells.size());
+        int sparse = (int) Math.ceil(Math.sqrt((double) width * height
+                / ((long) MAX_BUCKETS_PER_CELL * Math.max(1, cells.size()))));
+        bucketSize = Math.max(MIN_BUCKET_SIZE, Math.max(typical, sparse));
+        columns = (width + bucketSize - 1) / bucketSize;
+        rows = (height + bucketSize - 1) / bucketSize;
+
+        bucketStart = new int[columns * rows + 1];
+        for (BloodCellAnalyser.CellInfo cell : cells) {
+            for (int row = cell.minY / bucketSize; row <= cell.maxY / bucketSize; row++) {
+                for (int column = cell.minX / bucketSize; column <= cell.maxX / bucketSize; column++) {
+                    bucketStart[row * columns + column + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < columns * rows; i++) {
+            bucketStart[i + 1] += bucketStart[i];
+        }
+        entries = new int[bucketStart[columns * rows]];
+        int[] fill = Arrays.copyOf(bucketStart, columns * rows);
+        for (int i = 0; i < cells.size(); i++) {
+            BloodCellAnalyser.CellInfo cell = cells.get(i);
+            for (int row = cell.minY / bucketSize; row <= cell.maxY / bucketSize; row++) {
+                for (int column = cell.minX / bucketSize; column <= cell.maxX / bucketSize; column++) {
+                    entries[fill[row * columns + column]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * The cell whose bounding box contains the pixel, preferring the smallest box where boxes
+     * overlap, or null if there is none.
+     */
+    public BloodCellAnalyser.CellInfo at(int x, int y) {
+        if (x < 0 || y < 0 || x >= columns * bucketSize || y >= rows * bucketSize) {
+            return null;
+        }
+        int bucket = (y / bucketSize) * columns + x / bucketSize;
+        BloodCellAnalyser.CellInfo best = null;
+        long bestArea = Long.MAX_VALUE;
+        for (int i = bucketStart[bucket]; i < bucketStart[bucket + 1]; i++) {
+            BloodCellAnalyser.CellInfo cell = cells.get(entries[i]);
+            if (x >= cell.minX && x <= cell.maxX && y >= cell.minY && y <= cell.maxY) {
+                long area = (long) (cell.maxX - cell.minX + 1) * (cell.maxY - cell.minY + 1);
+                if (area < bestArea) {
+                    best = cell;
+                    bestArea = area;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The cells whose bounding boxes intersect the rectangle, inclusive of its edges, in the
+     * order of the indexed list.
+     */
+    public List<BloodCellAnalyser.CellInfo> within(int minX, int minY, int maxX, int maxY) {
+        int firstColumn = Math.max(0, minX) / bucketSize;
+        int firstRow = Math.max(0, minY) / bucketSize;
+        int lastColumn = Math.min(columns - 1, maxX / bucketSize);
+        int lastRow = Math.min(rows - 1, maxY / bucketSize);
+
+        int[] found = new int[16];
+        int count = 0;
+        for (int row = firstRow; row <= lastRow && maxY >= 0; row++) {
+            for (int column = firstColumn; column <= lastColumn && maxX >= 0; column++) {
+                int bucket = row * columns + column;
+                for (int i = bucketStart[bucket]; i < bucketStart[bucket + 1]; i++) {
+                    BloodCellAnalyser.CellInfo cell = cells.get(entries[i]);
+                    if (cell.maxX < minX || cell.minX > maxX || cell.maxY < minY || cell.minY > maxY) {
+                        continue;
+                    }
+                    // A box spanning several buckets is reported only from the bucket holding
+                    // the top-left corner of its overlap with the rectangle
+                    if (Math.max(minX, cell.minX) / bucketSize != column
+                            || Math.max(minY, cell.minY) / bucketSize != row) {
+                        continue;
+                    }
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = entries[i];
+                }
+            }
+        }
+        Arrays.sort(found, 0, count);
+
+        List<BloodCellAnalyser.CellInfo> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(cells.get(found[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Up to {@code k} cells nearest to the point, closest first, measuring the distance to
+     * each bounding box (zero inside it).
+     */
+    public List<BloodCellAnalyser.CellInfo> nearest(double x, double y, int k) {
+        k = Math.min(k, cells.size());
+        int[] best = new int[k];
+        double[] bestDistance = new double[k];
+        int count = 0;
+
+        int centreColumn = clamp((int) Math.floor(x / bucketSize), columns);
+        int centreRow = clamp((int) Math.floor(y / bucketSize), rows);
+        int maxRing = Math.max(Math.max(centreColumn, columns - 1 - centreColumn),
+                Math.max(centreRow, rows - 1 - centreRow));
+        for (int ring = 0; ring <= maxRing && k > 0; ring++) {
+            // Everything closer than this lies in the rings already searched
+            double reach = (double) (ring - 1) * bucketSize;
+            if (count == k && ring > 0 && bestDistance[k - 1] <= reach * reach) {
+                break;
+            }
+            for (int row = centreRow - ring; row <= centreRow + ring; row++) {
+                if (row < 0 || row >= rows) continue;
+                boolean edgeRow = row == centreRow - ring || row == centreRow + ring;
+                int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+                for (int column = centreColumn - ring; column <= centreColumn + ring; column += step) {
+                    if (column < 0 || column >= columns) continue;
+                    int bucket = row * columns + column;
+                    for (int i = bucketStart[bucket]; i < bucketStart[bucket + 1]; i++) {
+                        int index = entries[i];
+                        double distance = distanceSquared(cells.get(index), x, y);
+                        if (count == k && distance >= bestDistance[k - 1]) continue;
+                        if (contains(best, count, index)) continue;
+
+                        int slot = count < k ? count++ : k - 1;
+                        while (slot > 0 && bestDistance[slot - 1] > distance) {
+                            best[slot] = best[slot - 1];
+                            bestDistance[slot] = bestDistance[slot - 1];
+                            slot--;
+                        }
+                        best[slot] = index;
+                        bestDistance[slot] = distance;
+                    }
+                }
+            }
+        }
+
+        List<BloodCellAnalyser.CellInfo> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(cells.get(best[i]));
+        }
+        return result;
+    }
+
+    private static double distanceSquared(BloodCellAnalyser.CellInfo cell, double x, double y) {
+        double dx = Math.max(0, Math.max(cell.minX - x, x - cell.maxX));
+        double dy = Math.max(0, Math.max(cell.minY - y, y - cell.maxY));
+        return dx * dx + dy * dy;
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) return true;
+        }
+        return false;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+}
@@ -0,0 +1,372 @@
+package com.example.bloodanalyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Splits red components flagged as clusters into individual cells: a 3-4 chamfer distance
+ * transform of the component, one marker per distance maximum separated from deeper ones by
+ * a valley, and a marker-based watershed flooding from the markers.
+ * <p>
+ * Clusters are processed in parallel, each with scratch buffers the size of its bounding box.
+ */
+public class ClusterSplitter {
+    private static final int STRAIGHT = 3;
+    private static final int DIAGONAL = 4;
+    private static final int DEFAULT_MIN_CELL_RADIUS = 3;
+    private static final int MIN_VALLEY_DEPTH = STRAIGHT;
+
+    private final ForkJoinPool pool;
+    private final int minCellRadius;
+
+    public ClusterSplitter() {
+        this(ForkJoinPool.commonPool(), DEFAULT_MIN_CELL_RADIUS);
+    }
+
+    /**
+     * @param minCellRadius distance maxima closer than this many pixels to the background are not cells
+     */
+    public ClusterSplitter(ForkJoinPool pool, int minCellRadius) {
+        this.pool = pool;
+        this.minCellRadius = minCellRadius;
+    }
+
+    /**
+     * Replaces the estimated count of every red cluster in {@code cells} with the number of
+     * cells found in it and records them as its sub-cells. A cluster that turns out to hold a
+     * single cell is no longer a cluster; one without any cell-sized maximum is left as it is.
+     */
+    public void split(LabelMap labelMap, List<BloodCellAnalyser.CellInfo> cells) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (BloodCellAnalyser.CellInfo cell : cells) {
+            if (cell.isCluster && cell.color == BloodCellAnalyser.CellType.RED) {
+                tasks.add(() -> {
+                    splitCell(labelMap, cell);
+                    return null;
+                });
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Cluster splitting was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cluster splitting failed", e.getCause());
+        }
+    }
+
+    private void splitCell(LabelMap labelMap, BloodCellAnalyser.CellInfo cell) {
+        // One pixel of background padding on every side keeps the neighbour loops free of bounds checks
+        int width = cell.maxX - cell.minX + 3;
+        int height = cell.maxY - cell.minY + 3;
+        boolean[] mask = componentMask(labelMap, cell, width, height);
+        boolean[] filled = fillHoles(mask, width, height);
+
+        int[] distance = distanceTransform(filled, width, height);
+        int[] markers = findMarkers(filled, distance, width, height);
+        if (markers.length == 0) {
+            return;
+        }
+
+        int[] region = watershed(filled, distance, markers, width, height);
+        cell.subCells = subCells(mask, region, markers.length, width, height, cell.minX - 1, cell.minY - 1);
+        cell.estimatedCellCount = markers.length;
+        cell.isCluster = markers.length > 1;
+    }
+
+    // Other components of the same colour can reach into the bounding box, so the component is
+    // picked out as the one whose size and bounding box match the cell.
+    private static boolean[] componentMask(LabelMap labelMap, BloodCellAnalyser.CellInfo cell, int width, int height) {
+        byte[] labels = labelMap.getLabels();
+        int imageWidth = labelMap.getWidth();
+
+        boolean[] candidate = new boolean[width * height];
+        for (int y = 1; y < height - 1; y++) {
+            int source = (cell.minY + y - 1) * imageWidth + cell.minX - 1;
+            for (int x = 1; x < width - 1; x++) {
+                candidate[y * width + x] = labels[source + x] == LabelMap.RED;
+            }
+        }
+
+        int[] neighbours = {-1, 1, -width, width};
+        int[] queue = new int[width * height];
+        for (int seed = 0; seed < candidate.length; seed++) {
+            if (!candidate[seed]) continue;
+
+            int head = 0, tail = 0;
+            queue[tail++] = seed;
+            candidate[seed] = false;
+            int minX = width, maxX = 0, minY = height, maxY = 0;
+            while (head < tail) {
+                int p = queue[head++];
+                minX = Math.min(minX, p % width);
+                maxX = Math.max(maxX, p % width);
+                minY = Math.min(minY, p / width);
+                maxY = Math.max(maxY, p / width);
+                for (int offset : neighbours) {
+                    int q = p + offset;
+                    if (candidate[q]) {
+                        candidate[q] = false;
+                        queue[tail++] = q;
+                    }
+                }
+            }
+
+            if (tail == cell.size && minX == 1 && minY == 1 && maxX == width - 2 && maxY == height - 2) {
+                boolean[] mask = new boolean[width * height];
+                for (int i = 0; i < tail; i++) {
+                    mask[queue[i]] = true;
+                }
+                return mask;
+            }
+        }
+        throw new IllegalArgumentException("Cell does not belong to this label map: " + cell);
+    }
+
+    // Holes (such as a cell's pale centre) would otherwise put distance minima inside cells
+    private static boolean[] fillHoles(boolean[] mask, int width, int height) {
+        boolean[] outside = new boolean[width * height];
+        int[] queue = new int[width * height];
+        int tail = 0;
+        for (int x = 0; x < width; x++) {
+            outside[x] = outside[(height - 1) * width + x] = true;
+            queue[tail++] = x;
+            queue[tail++] = (height - 1) * width + x;
+        }
+        for (int y = 1; y < height - 1; y++) {
+            outside[y * width] = outside[y * width + width - 1] = true;
+            queue[tail++] = y * width;
+            queue[tail++] = y * width + width - 1;
+        }
+
+        for (int head = 0; head < tail; head++) {
+            int p = queue[head];
+            int x = p % width;
+            int y = p / width;
+            if (x > 0) tail = visitOutside(mask, outside, queue, tail, p - 1);
+            if (x < width - 1) tail = visitOutside(mask, outside, queue, tail, p + 1);
+            if (y > 0) tail = visitOutside(mask, outside, queue, tail, p - width);
+            if (y < height - 1) tail = visitOutside(mask, outside, queue, tail, p + width);
+        }
+
+        boolean[] filled = new boolean[width * height];
+        for (int i = 0; i < filled.length; i++) {
+            filled[i] = !outside[i];
+        }
+        return filled;
+    }
+
+    private static int visitOutside(boolean[] mask, boolean[] outside, int[] queue, int tail, int q) {
+        if (!mask[q] && !outside[q]) {
+            outside[q] = true;
+            queue[tail++] = q;
+        }
+        return tail;
+    }
+
+    private static int[] distanceTransform(boolean[] mask, int width, int height) {
+        int[] distance = new int[width * height];
+        int infinity = Integer.MAX_VALUE / 2;
+        for (int i = 0; i < distance.length; i++) {
+            distance[i] = mask[i] ? infinity : 0;
+        }
+
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int p = y * width + x;
+                if (!mask[p]) continue;
+                int d = distance[p];
+                d = Math.min(d, distance[p - 1] + STRAIGHT);
+                d = Math.min(d, distance[p - width] + STRAIGHT);
+                d = Math.min(d, distance[p - width - 1] + DIAGONAL);
+                d = Math.min(d, distance[p - width + 1] + DIAGONAL);
+                distance[p] = d;
+            }
+        }
+        for (int y = height - 2; y >= 1; y--) {
+            for (int x = width - 2; x >= 1; x--) {
+                int p = y * width + x;
+                if (!mask[p]) continue;
+                int d = distance[p];
+                d = Math.min(d, distance[p + 1] + STRAIGHT);
+                d = Math.min(d, distance[p + width] + STRAIGHT);
+                d = Math.min(d, distance[p + width + 1] + DIAGONAL);
+                d = Math.min(d, distance[p + width - 1] + DIAGONAL);
+                distance[p] = d;
+            }
+        }
+        return distance;
+    }
+
+    // Maxima by dynamics: pixels are added from the deepest level down and joined with their
+    // neighbours in a union-find. When two regions meet, the lower peak becomes a marker only if
+    // it rises at least MIN_VALLEY_DEPTH above the meeting level, so plateaus, ridges and shallow
+    // bumps along a cell's outline collapse into one marker.
+    private int[] findMarkers(boolean[] mask, int[] distance, int width, int height) {
+        int minDistance = minCellRadius * STRAIGHT;
+        int maxLevel = 0;
+        int count = 0;
+        for (int p = 0; p < mask.length; p++) {
+            if (mask[p]) {
+                maxLevel = Math.max(maxLevel, distance[p]);
+                count++;
+            }
+        }
+
+        // Counting sort by descending distance, raster order within a level
+        int[] start = new int[maxLevel + 2];
+        for (int p = 0; p < mask.length; p++) {
+            if (mask[p]) start[maxLevel - distance[p] + 1]++;
+        }
+        for (int level = 1; level < start.length; level++) {
+            start[level] += start[level - 1];
+        }
+        int[] order = new int[count];
+        for (int p = 0; p < mask.length; p++) {
+            if (mask[p]) order[start[maxLevel - distance[p]]++] = p;
+        }
+
+        int[] parent = new int[mask.length];
+        int[] peak = new int[mask.length];
+        Arrays.fill(parent, -1);
+        int[] neighbours = {-1, 1, -width, width};
+        int[] markers = new int[16];
+        int accepted = 0;
+
+        for (int p : order) {
+            parent[p] = p;
+            peak[p] = p;
+            int level = distance[p];
+            for (int offset : neighbours) {
+                int q = p + offset;
+                if (parent[q] < 0) continue;
+                int rootP = find(parent, p);
+                int rootQ = find(parent, q);
+                if (rootP == rootQ) continue;
+
+                int high = peak[rootP];
+                int low = peak[rootQ];
+                if (distance[low] > distance[high] || (distance[low] == distance[high] && low < high)) {
+                    int swap = high; high = low; low = swap;
+                }
+                if (distance[low] - level >= MIN_VALLEY_DEPTH && distance[low] >= minDistance) {
+                    if (accepted == markers.length) {
+                        markers = Arrays.copyOf(markers, accepted * 2);
+                    }
+                    markers[accepted++] = low;
+                }
+                parent[rootQ] = rootP;
+                peak[rootP] = high;
+            }
+        }
+
+        // The deepest peak of the component is never outranked
+        if (count > 0 && distance[order[0]] >= minDistance) {
+            if (accepted == markers.length) {
+                markers = Arrays.copyOf(markers, accepted + 1);
+            }
+            markers[accepted++] = peak[find(parent, order[0])];
+        }
+        return Arrays.copyOf(markers, accepted);
+    }
+
+    private static int find(int[] parent, int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    // Priority flood on the distance map, deepest level first, using one bucket list per level
+    private static int[] watershed(boolean[] mask, int[] distance, int[] markers, int width, int height) {
+        int maxLevel = 0;
+        for (int marker : markers) {
+            maxLevel = Math.max(maxLevel, distance[marker]);
+        }
+
+        int[] region = new int[width * height];
+        int[] head = new int[maxLevel + 1];
+        int[] next = new int[width * height];
+        Arrays.fill(head, -1);
+
+        for (int i = 0; i < markers.length; i++) {
+            int p = markers[i];
+            region[p] = i + 1;
+            next[p] = head[distance[p]];
+            head[distance[p]] = p;
+        }
+
+        int[] neighbours = {-1, 1, -width, width};
+        for (int level = maxLevel; level > 0; level--) {
+            while (head[level] >= 0) {
+                int p = head[level];
+                head[level] = next[p];
+                for (int offset : neighbours) {
+                    int q = p + offset;
+                    if (!mask[q] || region[q] != 0) continue;
+                    region[q] = region[p];
+                    int queueLevel = Math.min(level, distance[q]);
+                    next[q] = head[queueLevel];
+                    head[queueLevel] = q;
+                }
+            }
+        }
+        return region;
+    }
+
+    // Only pixels of the component itself count towards the sub-cells, not filled holes
+    private static List<BloodCellAnalyser.CellInfo> subCells(boolean[] mask, int[] region, int regions, int width, int height,
+                                                            int originX, int originY) {
+        BloodCellAnalyser.CellInfo[] parts = new BloodCellAnalyser.CellInfo[regions];
+        for (int i = 0; i < regions; i++) {
+            parts[i] = new BloodCellAnalyser.CellInfo();
+            parts[i].color = BloodCellAnalyser.CellType.RED;
+            parts[i].size = 0;
+            parts[i].minX = parts[i].minY = Integer.MAX_VALUE;
+            parts[i].maxX = parts[i].maxY = Integer.MIN_VALUE;
+        }
+
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int r = region[y * width + x];
+                if (r == 0 || !mask[y * width + x]) continue;
+                BloodCellAnalyser.CellInfo part = parts[r - 1];
+                part.size++;
+                part.minX = Math.min(part.minX, originX + x);
+                part.maxX = Math.max(part.maxX, originX + x);
+                part.minY = Math.min(part.minY, originY + y);
+                part.maxY = Math.max(part.maxY, originY + y);
+                long imageX = originX + x;
+                long imageY = originY + y;
+                part.sumX += imageX;
+                part.sumY += imageY;
+                part.sumXX += imageX * imageX;
+                part.sumYY += imageY * imageY;
+                part.sumXY += imageX * imageY;
+                int p = y * width + x;
+                if (!inPart(mask, region, p - 1, r) || !inPart(mask, region, p + 1, r)
+                        || !inPart(mask, region, p - width, r) || !inPart(mask, region, p + width, r)) {
+                    part.perimeter++;
+                }
+            }
+        }
+        return List.of(parts);
+    }
+
+    private static boolean inPart(boolean[] mask, int[] region, int p, int part) {
+        return mask[p] && region[p] == part;
+    }
+}
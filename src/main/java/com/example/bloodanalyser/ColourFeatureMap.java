@@ -0,0 +1,102 @@
+package com.example.bloodanalyser;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+
+/**
+ * Per-pixel colour features computed once per image, so the slide can be re-classified
+ * for any pair of thresholds without touching the RGB values again.
+ * <p>
+ * For each pixel it stores the largest purple and red threshold that still classifies it
+ * as purple or red. The luminance gates are folded in by storing {@link #NEVER}.
+ * Classifying is then two comparisons per pixel, with results identical to
+ * {@link ImageProcessor#classifyPixel(int)}.
+ */
+public class ColourFeatureMap {
+    static final short NEVER = Short.MIN_VALUE;
+
+    private final int width;
+    private final int height;
+    private final short[] purpleBound;
+    private final short[] redBound;
+
+    private ColourFeatureMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.purpleBound = new short[width * height];
+        this.redBound = new short[width * height];
+    }
+
+    public static ColourFeatureMap of(int[] argb, int width, int height) {
+        ColourFeatureMap features = new ColourFeatureMap(width, height);
+        for (int i = 0; i < width * height; i++) {
+            features.set(i, argb[i]);
+        }
+        return features;
+    }
+
+    /**
+     * Builds the features of a nearest-neighbour downscale whose longer side is at most {@code maxSize},
+     * reading only the sampled rows of the image.
+     */
+    public static ColourFeatureMap preview(PixelReader reader, int width, int height, int maxSize) {
+        int step = Math.max(1, (Math.max(width, height) + maxSize - 1) / maxSize);
+        int previewWidth = (width + step - 1) / step;
+        int previewHeight = (height + step - 1) / step;
+
+        ColourFeatureMap features = new ColourFeatureMap(previewWidth, previewHeight);
+        int[] row = new int[width];
+        for (int y = 0; y < previewHeight; y++) {
+            reader.getPixels(0, y * step, width, 1, PixelFormat.getIntArgbInstance(), row, 0, width);
+            for (int x = 0; x < previewWidth; x++) {
+                features.set(y * previewWidth + x, row[x * step]);
+            }
+        }
+        return features;
+    }
+
+    // A pixel is purple while 2 * threshold < purpleness2, i.e. threshold <= floor((purpleness2 - 1) / 2);
+    // same scaled integers as ImageProcessor.classifyPixel.
+    private void set(int index, int argb) {
+        int red = (argb >> 16) & 0xFF;
+        int green = (argb >> 8) & 0xFF;
+        int blue = argb & 0xFF;
+
+        int luminance = 299 * red + 587 * green + 114 * blue;
+        int redness = 2 * red - green - blue;
+        int purpleness = 2 * (red + blue) - 3 * green;
+
+        purpleBound[index] = luminance < 200_000 ? (short) Math.floorDiv(purpleness - 1, 2) : NEVER;
+        redBound[index] = luminance > 100_000 && luminance < 220_000 ? (short) Math.floorDiv(redness - 1, 2) : NEVER;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public LabelMap classify(int redThreshold, int purpleThreshold) {
+        LabelMap labelMap = new LabelMap(width, height);
+        classify(redThreshold, purpleThreshold, labelMap.getLabels());
+        return labelMap;
+    }
+
+    public void classify(int redThreshold, int purpleThreshold, byte[] labels) {
+        classifyRange(redThreshold, purpleThreshold, labels, 0, purpleBound.length);
+    }
+
+    public void classifyRange(int redThreshold, int purpleThreshold, byte[] labels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (purpleBound[i] != NEVER && purpleThreshold <= purpleBound[i]) {
+                labels[i] = LabelMap.PURPLE;
+            } else if (redBound[i] != NEVER && redThreshold <= redBound[i]) {
+                labels[i] = LabelMap.RED;
+            } else {
+                labels[i] = LabelMap.WHITE;
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.bloodanalyser;
+
+import java.util.List;
+
+/**
+ * Finds the 4-connected components of same-class foreground pixels in a label map.
+ * Implementations return every component, unfiltered, ordered by the raster position
+ * of its first pixel.
+ */
+public interface ComponentLabeller {
+    List<BloodCellAnalyser.CellInfo> label(LabelMap labelMap);
+}
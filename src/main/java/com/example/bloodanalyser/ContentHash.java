@@ -0,0 +1,86 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Fast non-cryptographic 64-bit hash (single-lane xxHash64 round and avalanche) used to
+ * recognise slides that have already been analysed. Data can be fed incrementally.
+ */
+public class ContentHash {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] pending = new byte[8];
+    private int pendingCount;
+    private long state = PRIME5;
+    private long length;
+
+    public static long of(byte[] data) {
+        ContentHash hash = new ContentHash();
+        hash.update(data, 0, data.length);
+        return hash.value();
+    }
+
+    public static long ofFile(Path file) throws IOException {
+        ContentHash hash = new ContentHash();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                hash.update(buffer, 0, read);
+            }
+        }
+        return hash.value();
+    }
+
+    public void update(byte[] data, int offset, int count) {
+        length += count;
+        int end = offset + count;
+
+        while (pendingCount > 0 && pendingCount < 8 && offset < end) {
+            pending[pendingCount++] = data[offset++];
+        }
+        if (pendingCount == 8) {
+            round((long) LONG_LE.get(pending, 0));
+            pendingCount = 0;
+        }
+
+        for (; offset + 8 <= end; offset += 8) {
+            round((long) LONG_LE.get(data, offset));
+        }
+        while (offset < end) {
+            pending[pendingCount++] = data[offset++];
+        }
+    }
+
+    public long value() {
+        long h = state ^ (length * PRIME1);
+        for (int i = 0; i < pendingCount; i++) {
+            h ^= (pending[i] & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private void round(long word) {
+        long k = Long.rotateLeft(word * PRIME2, 31) * PRIME1;
+        state ^= k;
+        state = Long.rotateLeft(state, 27) * PRIME1 + PRIME4;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.bloodanalyser;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Decodes image files through an ImageIO reader. When the reader can produce packed int
+ * pixels (PNG and JPEG in RGB or RGBA) it decodes straight into the caller's buffer;
+ * other layouts go through an intermediate image. Instances are not thread-safe.
+ */
+public class ImageIOImageSource implements ImageSource {
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    public ImageIOImageSource(Path file) throws IOException {
+        this(ImageIO.createImageInputStream(file.toFile()), file.toString());
+    }
+
+    /**
+     * Decodes an encoded image held in memory, such as an upload.
+     */
+    public ImageIOImageSource(byte[] encoded) throws IOException {
+        this(ImageIO.createImageInputStream(new ByteArrayInputStream(encoded)), "uploaded image");
+    }
+
+    private ImageIOImageSource(ImageInputStream input, String name) throws IOException {
+        this.input = input;
+        if (input == null) {
+            throw new IOException("Cannot open " + name);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("Unsupported image format: " + name);
+        }
+        reader = readers.next();
+        reader.setInput(input, false, true);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void read(int x, int y, int width, int height, int subsampling, int[] argb) throws IOException {
+        int outWidth = ImageSource.outputSize(width, subsampling);
+        int outHeight = ImageSource.outputSize(height, subsampling);
+        if (argb.length < outWidth * outHeight) {
+            throw new IllegalArgumentException("Pixel buffer is smaller than " + outWidth + "x" + outHeight);
+        }
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(x, y, width, height));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+        BufferedImage destination = packedDestination(argb, outWidth, outHeight);
+        if (destination == null) {
+            reader.read(0, param).getRGB(0, 0, outWidth, outHeight, argb, 0, outWidth);
+            return;
+        }
+        param.setDestination(destination);
+        reader.read(0, param);
+        if (!destination.getColorModel().hasAlpha()) {
+            for (int i = 0; i < outWidth * outHeight; i++) {
+                argb[i] |= 0xFF000000;
+            }
+        }
+    }
+
+    // An image over argb in one of the reader's own packed int layouts, or null if it has none
+    private BufferedImage packedDestination(int[] argb, int width, int height) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            int bufferedType = type.getBufferedImageType();
+            if ((bufferedType == BufferedImage.TYPE_INT_RGB || bufferedType == BufferedImage.TYPE_INT_ARGB)
+                    && type.getColorModel() instanceof DirectColorModel model) {
+                WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(argb, width * height),
+                        width, height, width, model.getMasks(), null);
+                return new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.bloodanalyser;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Reads bands of a TIFF file through an ImageIO reader with a source region per band; TIFF
+ * strips and tiles are addressable, so each band decodes only its own rows. Other formats
+ * would be decoded from the start for every band and are rejected; see
+ * {@link RowBandSource#open(Path)} for PNG.
+ */
+public class ImageIORowBandSource implements RowBandSource {
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    public ImageIORowBandSource(Path file) throws IOException {
+        input = ImageIO.createImageInputStream(file.toFile());
+        if (input == null) {
+            throw new IOException("Cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("Unsupported image format: " + file);
+        }
+        reader = readers.next();
+        if (!reader.getFormatName().equalsIgnoreCase("tif") && !reader.getFormatName().equalsIgnoreCase("tiff")) {
+            reader.dispose();
+            input.close();
+            throw new IOException(reader.getFormatName().toUpperCase(Locale.ROOT)
+                    + " files cannot be read band by band: " + file);
+        }
+        reader.setInput(input, false, true);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRows(int y, int rows, int[] argb) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, y, width, rows));
+        BufferedImage band = reader.read(0, param);
+        band.getRGB(0, 0, width, rows, argb, 0, width);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decodes a list of image files in order on a background thread, so the next slide is being
+ * decoded while the current one is analysed.
+ * <p>
+ * Pixels are decoded into a fixed number of reusable buffers; at most that many decoded
+ * images exist at once, including those still being analysed. Closing a {@link Decoded}
+ * hands its buffer back for the next file.
+ */
+public class ImagePrefetcher implements AutoCloseable {
+    private final List<Path> files;
+    private final BlockingQueue<Decoded> ready;
+    private final BlockingQueue<int[]> free;
+    private final Thread decoder;
+    // Queued when the decoder thread dies, so next() fails instead of waiting forever
+    private final Decoded stopped = new Decoded(null, 0, 0, null, null, null);
+    private volatile Throwable failure;
+    private int taken;
+
+    public ImagePrefetcher(List<Path> files, int buffers) {
+        this.files = files;
+        this.ready = new ArrayBlockingQueue<>(Math.max(1, buffers));
+        this.free = new ArrayBlockingQueue<>(Math.max(1, buffers));
+        for (int i = 0; i < Math.max(1, buffers); i++) {
+            free.add(new int[0]);
+        }
+        decoder = new Thread(this::decodeAll, "image-prefetch");
+        decoder.setDaemon(true);
+        decoder.start();
+    }
+
+    /**
+     * Waits for the next file in list order, or returns null once every file was handed out.
+     * A file that cannot be decoded is still handed out, and reports its error from
+     * {@link Decoded#getPixels()}; an IOException here means the decoder itself stopped.
+     */
+    public Decoded next() throws IOException, InterruptedException {
+        if (taken == files.size()) {
+            return null;
+        }
+        Decoded decoded = ready.take();
+        if (decoded == stopped) {
+            ready.add(stopped);
+            throw new IOException("Image decoding stopped", failure);
+        }
+        taken++;
+        return decoded;
+    }
+
+    private void decodeAll() {
+        try {
+            for (Path file : files) {
+                int[] buffer = free.take();
+                PipelineMetrics metrics = new PipelineMetrics();
+                Decoded decoded;
+                try (PipelineMetrics.Stage stage = metrics.begin("decode");
+                     ImageIOImageSource source = new ImageIOImageSource(file)) {
+                    long pixels = (long) source.getWidth() * source.getHeight();
+                    if (buffer.length < pixels) {
+                        buffer = new int[Math.toIntExact(pixels)];
+                    }
+                    source.read(buffer);
+                    stage.setItems(pixels);
+                    decoded = new Decoded(file, source.getWidth(), source.getHeight(), buffer, metrics, null);
+                } catch (IOException | RuntimeException e) {
+                    IOException error = e instanceof IOException io ? io : new IOException(e.getMessage(), e);
+                    decoded = new Decoded(file, 0, 0, buffer, metrics, error);
+                } catch (Error e) {
+                    // Typically no memory for a buffer this large; smaller slides after it may still fit
+                    decoded = new Decoded(file, 0, 0, buffer, metrics, new IOException(e.toString(), e));
+                }
+                ready.put(decoded);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            failure = e;
+            try {
+                ready.put(stopped);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops decoding; images already handed out stay valid.
+     */
+    @Override
+    public void close() {
+        decoder.interrupt();
+    }
+
+    public class Decoded implements AutoCloseable {
+        private final Path file;
+        private final int width;
+        private final int height;
+        private final int[] argb;
+        private final PipelineMetrics metrics;
+        private final IOException error;
+        private boolean closed;
+
+        private Decoded(Path file, int width, int height, int[] argb, PipelineMetrics metrics, IOException error) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+            this.metrics = metrics;
+            this.error = error;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * The decoded pixels, row-major with a stride of the width; the buffer may be longer
+         * than width x height. Throws the decoding error if the file could not be read.
+         */
+        public int[] getPixels() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            return argb;
+        }
+
+        /** Metrics of this image so far, holding its decode stage. */
+        public PipelineMetrics getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed && argb != null) {
+                closed = true;
+                free.add(argb);
+            }
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package com.example.bloodanalyser;
 
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 
 public class ImageProcessor {
+    private static final boolean VECTORISED = vectorSupported();
+
+    private static final int WHITE_ARGB = 0xFFFFFFFF;
+    private static final int RED_ARGB = 0xFFFF0000;
+    private static final int PURPLE_ARGB = 0xFF800080;
+
     private final int redThreshold;
     private final int purpleThreshold;
 
@@ -16,37 +20,123 @@ public class ImageProcessor {
     }
 
     public WritableImage convertToTriColor(Image originalImage){
-        int width = (int) originalImage.getWidth();
-        int height = (int) originalImage.getHeight();
+        return toTriColourImage(classify(originalImage));
+    }
+
+    public LabelMap classify(Image originalImage) {
+        return classify(readPixels(originalImage), (int) originalImage.getWidth(), (int) originalImage.getHeight());
+    }
+
+    public LabelMap classify(int[] argb, int width, int height) {
+        return classify(argb, width, height, new byte[width * height]);
+    }
+
+    /**
+     * Classifies into {@code labels}, which must hold at least width x height pixels.
+     */
+    public LabelMap classify(int[] argb, int width, int height, byte[] labels) {
+        LabelMap labelMap = new LabelMap(width, height, labels);
+        classifyRange(argb, labels, 0, width * height);
+        return labelMap;
+    }
+
+    public void classifyRange(int[] argb, byte[] labels, int from, int to) {
+        if (VECTORISED) {
+            from = VectorClassifier.classifyRange(argb, labels, from, to, redThreshold, purpleThreshold);
+        }
+        for (int i = from; i < to; i++) {
+            labels[i] = classifyPixel(argb[i]);
+        }
+    }
+
+    // Same tests as luminance/redness/purpleness in 0..255 doubles, scaled to exact integers:
+    // luminance = 0.299r + 0.587g + 0.114b, redness = r - (g + b) / 2, purpleness = (r + b) - 1.5g
+    public byte classifyPixel(int argb) {
+        int red = (argb >> 16) & 0xFF;
+        int green = (argb >> 8) & 0xFF;
+        int blue = argb & 0xFF;
+
+        int luminance = 299 * red + 587 * green + 114 * blue;
+        int redness = 2 * red - green - blue;
+        int purpleness = 2 * (red + blue) - 3 * green;
+
+        // Purple pixels are a class of their own and become white cells. The original Color path
+        // meant the same but merged them with red, as 8-bit Color.PURPLE failed its red < 0.5 test
+        if (purpleness > 2 * purpleThreshold && luminance < 200_000) {
+            return LabelMap.PURPLE;
+        } else if (redness > 2 * redThreshold && luminance > 100_000 && luminance < 220_000) {
+            return LabelMap.RED;
+        }
+        return LabelMap.WHITE;
+    }
+
+    /**
+     * Whether {@link #classifyRange} uses the Vector API. Needs {@code --add-modules jdk.incubator.vector}
+     * and 256-bit vectors; {@code -Dbloodanalyser.scalar=true} forces the scalar loop.
+     */
+    public static boolean isVectorised() {
+        return VECTORISED;
+    }
+
+    private static boolean vectorSupported() {
+        if (Boolean.getBoolean("bloodanalyser.scalar")
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return VectorClassifier.isSupported();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    public static int[] readPixels(Image image) {
+        return readPixels(image, new int[(int) image.getWidth() * (int) image.getHeight()]);
+    }
+
+    public static int[] readPixels(Image image, int[] argb) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+
+        image.getPixelReader().getPixels(0, 0, width, height,
+                PixelFormat.getIntArgbInstance(), argb, 0, width);
+        return argb;
+    }
+
+    public static WritableImage toTriColourImage(LabelMap labelMap) {
+        return toTriColourImage(labelMap, new int[labelMap.getWidth() * labelMap.getHeight()]);
+    }
+
+    /**
+     * Same as {@link #toTriColourImage(LabelMap)}, using {@code argb} as the scratch buffer.
+     */
+    public static WritableImage toTriColourImage(LabelMap labelMap, int[] argb) {
+        int width = labelMap.getWidth();
+        int height = labelMap.getHeight();
+        toTriColour(labelMap, 0, 0, width, height, argb);
 
         WritableImage tricolourImage = new WritableImage(width, height);
-        PixelReader pixelReader = originalImage.getPixelReader();
-        PixelWriter pixelWriter = tricolourImage.getPixelWriter();
-
-        for (int y = 0; y < height; y++){
-            for(int x = 0; x < width; x++){
-                Color color = pixelReader.getColor(x, y);
-
-                double red = color.getRed() * 255;
-                double green = color.getGreen() * 255;
-                double blue = color.getBlue() * 255;
-
-                double luminance = 0.299 * red + 0.587 * green + 0.114 * blue;
-                double redness = red - (green + blue) / 2;
-                double purpleness = (red + blue) - green * 1.5;
-
-                Color newColor;
-                if (purpleness > purpleThreshold && luminance < 200) {
-                    newColor = Color.PURPLE;
-                } else if (redness > redThreshold && luminance > 100 && luminance < 220) {
-                    newColor = Color.RED;
-                } else {
-                    newColor = Color.WHITE;
-                }
-
-                pixelWriter.setColor(x, y, newColor);
+        tricolourImage.getPixelWriter().setPixels(0, 0, width, height,
+                PixelFormat.getIntArgbInstance(), argb, 0, width);
+        return tricolourImage;
+    }
+
+    /**
+     * Writes the tricolour pixels of a region of the label map into {@code argb}, row-major with a
+     * stride of {@code width}.
+     */
+    public static void toTriColour(LabelMap labelMap, int x, int y, int width, int height, int[] argb) {
+        byte[] labels = labelMap.getLabels();
+        for (int row = 0; row < height; row++) {
+            int from = (y + row) * labelMap.getWidth() + x;
+            int to = row * width;
+            for (int column = 0; column < width; column++) {
+                argb[to + column] = switch (labels[from + column]) {
+                    case LabelMap.PURPLE -> PURPLE_ARGB;
+                    case LabelMap.RED -> RED_ARGB;
+                    default -> WHITE_ARGB;
+                };
             }
         }
-        return tricolourImage;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+
+/**
+ * Decodes an image, or a subsampled region of it, into a caller-supplied ARGB buffer without
+ * going through JavaFX, so headless runs never start the toolkit.
+ */
+public interface ImageSource extends AutoCloseable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Decodes the region at ({@code x}, {@code y}) of {@code width} x {@code height} pixels, keeping
+     * every {@code subsampling}-th pixel of every {@code subsampling}-th row, into {@code argb}
+     * row-major with a stride of {@link #outputSize outputSize(width, subsampling)}.
+     */
+    void read(int x, int y, int width, int height, int subsampling, int[] argb) throws IOException;
+
+    /**
+     * Decodes the whole image at full resolution.
+     */
+    default void read(int[] argb) throws IOException {
+        read(0, 0, getWidth(), getHeight(), 1, argb);
+    }
+
+    @Override
+    void close() throws IOException;
+
+    /** Number of pixels kept along a side of {@code size} pixels when keeping every {@code subsampling}-th. */
+    static int outputSize(int size, int subsampling) {
+        return (size + subsampling - 1) / subsampling;
+    }
+}
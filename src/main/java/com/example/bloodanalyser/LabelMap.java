@@ -0,0 +1,43 @@
+package com.example.bloodanalyser;
+
+/**
+ * Per-pixel colour classes of a slide, one byte per pixel in row-major order.
+ */
+public class LabelMap {
+    public static final byte WHITE = 0;
+    public static final byte RED = 1;
+    public static final byte PURPLE = 2;
+
+    private final int width;
+    private final int height;
+    private final byte[] labels;
+
+    public LabelMap(int width, int height, byte[] labels) {
+        if (labels.length < width * height) {
+            throw new IllegalArgumentException("Label buffer is smaller than " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+    }
+
+    public LabelMap(int width, int height) {
+        this(width, height, new byte[width * height]);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte[] getLabels() {
+        return labels;
+    }
+
+    public byte get(int x, int y) {
+        return labels[y * width + x];
+    }
+}
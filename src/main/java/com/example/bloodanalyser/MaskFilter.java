@@ -0,0 +1,292 @@
+package com.example.bloodanalyser;
+
+/**
+ * Morphological clean-up of a label map before labelling: an opening that drops specks,
+ * a closing that bridges small gaps and optional filling of enclosed holes, each applied to
+ * the red and purple classes separately.
+ * <p>
+ * Each class is packed into one bit per pixel, 64 pixels to a {@code long} and rows padded to
+ * whole words, so a shift and an AND or OR handle 64 pixels at once. Erosion and dilation use a
+ * square of side {@code 2 * radius + 1}, as {@code radius} steps of 3x3 split into a row and a
+ * column pass; pixels outside the image count as inside the class for erosion and outside it
+ * for dilation. Closing and hole filling only take white pixels, so neither class overwrites
+ * the other.
+ *
+ * @param openRadius  radius of the opening; 0 keeps specks
+ * @param closeRadius radius of the closing; 0 keeps gaps
+ * @param fillHoles   whether white regions enclosed by one class are given to that class
+ */
+public record MaskFilter(int openRadius, int closeRadius, boolean fillHoles) {
+    public static final MaskFilter NONE = new MaskFilter(0, 0, false);
+
+    public MaskFilter {
+        if (openRadius < 0 || closeRadius < 0) {
+            throw new IllegalArgumentException("Filter radii must not be negative");
+        }
+    }
+
+    /**
+     * Parses {@code open,close} or {@code open,close,holes}, as taken on the command line.
+     */
+    public static MaskFilter parse(String spec) {
+        String[] parts = spec.split(",");
+        if (parts.length < 2 || parts.length > 3 || (parts.length == 3 && !parts[2].equals("holes"))) {
+            throw new IllegalArgumentException("Filter must be open,close or open,close,holes: " + spec);
+        }
+        try {
+            return new MaskFilter(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    parts.length == 3);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Filter radii are not integers: " + spec);
+        }
+    }
+
+    public boolean isIdentity() {
+        return openRadius == 0 && closeRadius == 0 && !fillHoles;
+    }
+
+    /**
+     * Filters the label map in place and returns it.
+     */
+    public LabelMap apply(LabelMap labelMap) {
+        if (isIdentity() || labelMap.getWidth() == 0 || labelMap.getHeight() == 0) {
+            return labelMap;
+        }
+        Planes planes = new Planes(labelMap.getWidth(), labelMap.getHeight());
+        int size = planes.words * planes.height;
+        long[] red0 = new long[size];
+        long[] purple0 = new long[size];
+        planes.pack(labelMap.getLabels(), red0, purple0);
+
+        long[] red = red0.clone();
+        long[] purple = purple0.clone();
+        long[] scratch = new long[size];
+        long[] spare = new long[size];
+        if (openRadius > 0) {
+            planes.open(red, scratch, spare, openRadius);
+            planes.open(purple, scratch, spare, openRadius);
+        }
+        if (closeRadius > 0) {
+            long[] closed = purple.clone();
+            planes.close(closed, scratch, spare, closeRadius);
+            planes.andNot(closed, red);
+            purple = closed;
+            closed = red.clone();
+            planes.close(closed, scratch, spare, closeRadius);
+            planes.andNot(closed, purple);
+            red = closed;
+        }
+        if (fillHoles) {
+            planes.fillHoles(purple, red, scratch, spare);
+            planes.fillHoles(red, purple, scratch, spare);
+        }
+
+        planes.unpack(labelMap.getLabels(), red0, purple0, red, purple);
+        return labelMap;
+    }
+
+    /**
+     * Geometry of the bit planes of one image, with the word-wide operations on them.
+     */
+    private static final class Planes {
+        final int width;
+        final int height;
+        final int words;
+        // Valid pixels of the last word in a row
+        final long lastMask;
+
+        Planes(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.words = (width + 63) >>> 6;
+            this.lastMask = (width & 63) == 0 ? -1L : (1L << (width & 63)) - 1;
+        }
+
+        void pack(byte[] labels, long[] red, long[] purple) {
+            for (int y = 0; y < height; y++) {
+                int offset = y * width;
+                for (int w = 0; w < words; w++) {
+                    int from = offset + (w << 6);
+                    int count = Math.min(64, width - (w << 6));
+                    long redBits = 0;
+                    long purpleBits = 0;
+                    // RED is 1 and PURPLE is 2, so each class is one bit of the label
+                    for (int b = 0; b < count; b++) {
+                        int label = labels[from + b];
+                        redBits |= (long) (label & 1) << b;
+                        purpleBits |= (long) ((label >>> 1) & 1) << b;
+                    }
+                    red[y * words + w] = redBits;
+                    purple[y * words + w] = purpleBits;
+                }
+            }
+        }
+
+        // Only pixels whose class changed are written back
+        void unpack(byte[] labels, long[] red0, long[] purple0, long[] red, long[] purple) {
+            for (int i = 0; i < red.length; i++) {
+                long changed = (red0[i] ^ red[i]) | (purple0[i] ^ purple[i]);
+                if (changed == 0) continue;
+                int base = (i / words) * width + ((i % words) << 6);
+                while (changed != 0) {
+                    int b = Long.numberOfTrailingZeros(changed);
+                    changed &= changed - 1;
+                    labels[base + b] = ((red[i] >>> b) & 1) != 0 ? LabelMap.RED
+                            : ((purple[i] >>> b) & 1) != 0 ? LabelMap.PURPLE : LabelMap.WHITE;
+                }
+            }
+        }
+
+        // Opening and closing leave their result in mask, using the other two buffers as scratch
+        void open(long[] mask, long[] scratch, long[] spare, int radius) {
+            long[] result = morph(mask, scratch, spare, radius, true);
+            result = morph(result, result == mask ? spare : mask, scratch, radius, false);
+            if (result != mask) {
+                System.arraycopy(result, 0, mask, 0, mask.length);
+            }
+        }
+
+        void close(long[] mask, long[] scratch, long[] spare, int radius) {
+            long[] result = morph(mask, scratch, spare, radius, false);
+            result = morph(result, result == mask ? spare : mask, scratch, radius, true);
+            if (result != mask) {
+                System.arraycopy(result, 0, mask, 0, mask.length);
+            }
+        }
+
+        // Runs radius 3x3 steps, ping-ponging between the buffers; returns the one holding the result
+        private long[] morph(long[] mask, long[] a, long[] b, int radius, boolean erode) {
+            long[] source = mask;
+            for (int i = 0; i < radius; i++) {
+                rows(source, a, erode);
+                columns(a, source == mask ? b : mask, erode);
+                source = source == mask ? b : mask;
+            }
+            return source;
+        }
+
+        // Each pixel combined with its left and right neighbours
+        private void rows(long[] source, long[] target, boolean erode) {
+            long outside = erode ? -1L : 0L;
+            for (int y = 0; y < height; y++) {
+                int row = y * words;
+                for (int w = 0; w < words; w++) {
+                    boolean last = w == words - 1;
+                    long bits = source[row + w];
+                    if (last && erode) {
+                        bits |= ~lastMask;
+                    }
+                    long before = w > 0 ? source[row + w - 1] >>> 63 : outside & 1;
+                    long after = last ? outside << 63 : source[row + w + 1] << 63;
+                    long left = (bits << 1) | before;
+                    long right = (bits >>> 1) | after;
+                    long result = erode ? bits & left & right : bits | left | right;
+                    target[row + w] = last ? result & lastMask : result;
+                }
+            }
+        }
+
+        // Each pixel combined with its neighbours above and below
+        private void columns(long[] source, long[] target, boolean erode) {
+            for (int y = 0; y < height; y++) {
+                int row = y * words;
+                int above = y > 0 ? row - words : -1;
+                int below = y < height - 1 ? row + words : -1;
+                for (int w = 0; w < words; w++) {
+                    long bits = source[row + w];
+                    if (erode) {
+                        if (above >= 0) bits &= source[above + w];
+                        if (below >= 0) bits &= source[below + w];
+                    } else {
+                        if (above >= 0) bits |= source[above + w];
+                        if (below >= 0) bits |= source[below + w];
+                    }
+                    target[row + w] = bits;
+                }
+            }
+        }
+
+        void andNot(long[] mask, long[] other) {
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] &= ~other[i];
+            }
+        }
+
+        /**
+         * Adds to {@code mask} the pixels of neither class that cannot reach the image border
+         * through pixels outside {@code mask}.
+         */
+        void fillHoles(long[] mask, long[] other, long[] open, long[] reach) {
+            for (int i = 0; i < mask.length; i++) {
+                open[i] = ~mask[i] & ((i % words) == words - 1 ? lastMask : -1L);
+            }
+            floodFromBorder(open, reach);
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] |= open[i] & ~reach[i] & ~other[i];
+            }
+        }
+
+        // Sweeps down and up, spreading reach vertically from the previous row and then along
+        // each row, until a pair of sweeps changes nothing
+        private void floodFromBorder(long[] open, long[] reach) {
+            for (int y = 0; y < height; y++) {
+                int row = y * words;
+                boolean edge = y == 0 || y == height - 1;
+                for (int w = 0; w < words; w++) {
+                    long seeds = edge ? -1L : 0L;
+                    if (w == 0) seeds |= 1L;
+                    if (w == words - 1) seeds |= 1L << ((width - 1) & 63);
+                    reach[row + w] = seeds & open[row + w];
+                }
+                spreadAlongRow(open, reach, row);
+            }
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int y = 1; y < height; y++) {
+                    changed |= spreadFromRow(open, reach, y * words, (y - 1) * words);
+                }
+                for (int y = height - 2; y >= 0; y--) {
+                    changed |= spreadFromRow(open, reach, y * words, (y + 1) * words);
+                }
+            }
+        }
+
+        private boolean spreadFromRow(long[] open, long[] reach, int row, int from) {
+            boolean grown = false;
+            for (int w = 0; w < words; w++) {
+                long added = reach[from + w] & open[row + w] & ~reach[row + w];
+                if (added != 0) {
+                    reach[row + w] |= added;
+                    grown = true;
+                }
+            }
+            if (grown) {
+                spreadAlongRow(open, reach, row);
+            }
+            return grown;
+        }
+
+        // Extends each reached pixel over the rest of its run of open pixels in both directions.
+        // Adding the seeds to the open bits carries through the run above each seed.
+        private void spreadAlongRow(long[] open, long[] reach, int row) {
+            long carry = 0;
+            for (int w = 0; w < words; w++) {
+                long allowed = open[row + w];
+                long seeds = reach[row + w] | (carry & allowed & 1);
+                long filled = seeds | (allowed & ((allowed + seeds) ^ allowed));
+                reach[row + w] = filled;
+                carry = filled >>> 63;
+            }
+            carry = 0;
+            for (int w = words - 1; w >= 0; w--) {
+                long allowed = Long.reverse(open[row + w]);
+                long seeds = Long.reverse(reach[row + w]) | (carry & allowed & 1);
+                long filled = seeds | (allowed & ((allowed + seeds) ^ allowed));
+                reach[row + w] = Long.reverse(filled);
+                carry = filled >>> 63;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Analyses a slide whose label map and union-find live off-heap, for slides beyond
+ * 2^31 pixels or too large to keep on the heap. The slide is decoded and classified band by
+ * band into an {@link OffHeapLabelMap} and then labelled with an {@link OffHeapLabeller}.
+ * The heap holds a band of pixels and per-component statistics; everything per pixel is
+ * in native memory, or in memory-mapped scratch files when a scratch directory is given.
+ * Like {@link StreamingAnalyser}, clusters keep the size-based estimate.
+ */
+public class OffHeapAnalyser {
+    private final ImageProcessor processor;
+    private final BloodCellAnalyser analyser;
+    private final Path scratchDirectory;
+    private final int bandHeight;
+
+    public OffHeapAnalyser(ImageProcessor processor, BloodCellAnalyser analyser, Path scratchDirectory) {
+        this(processor, analyser, scratchDirectory, StreamingAnalyser.DEFAULT_BAND_HEIGHT);
+    }
+
+    /**
+     * @param scratchDirectory where to create the files backing the off-heap storage; null keeps
+     *                         it in native memory
+     */
+    public OffHeapAnalyser(ImageProcessor processor, BloodCellAnalyser analyser, Path scratchDirectory,
+                           int bandHeight) {
+        this.processor = processor;
+        this.analyser = analyser;
+        this.scratchDirectory = scratchDirectory;
+        this.bandHeight = bandHeight;
+    }
+
+    public BloodCellAnalyser.AnalysisResult analyse(RowBandSource source) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int band = Math.max(1, Math.min(bandHeight, height));
+
+        List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>();
+        try (OffHeapLabelMap labelMap = scratchDirectory == null
+                ? OffHeapLabelMap.allocate(width, height)
+                : OffHeapLabelMap.map(width, height, scratchDirectory)) {
+            int[] argb = new int[Math.multiplyExact(width, band)];
+            byte[] labels = new byte[width * band];
+            for (int y = 0; y < height; y += band) {
+                int rows = Math.min(band, height - y);
+                source.readRows(y, rows, argb);
+                processor.classifyRange(argb, labels, 0, rows * width);
+                labelMap.writeRows(y, rows, labels);
+            }
+
+            new OffHeapLabeller(scratchDirectory).label(labelMap, cell -> {
+                if (analyser.isValidSize(cell)) {
+                    cells.add(cell);
+                }
+            });
+        }
+
+        return analyser.analyseComponents(cells, width);
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+
+/**
+ * Per-pixel colour classes like {@link LabelMap}, stored off-heap and indexed with {@code long},
+ * so the pixel count is not limited to what a Java array can hold. Rows are copied in and out
+ * through small heap buffers. The storage is freed on {@link #close()}; instances may be read
+ * from several threads, but rows must not be written concurrently with reads of them.
+ */
+public class OffHeapLabelMap implements AutoCloseable {
+    private final int width;
+    private final int height;
+    private final Arena arena;
+    private final MemorySegment labels;
+
+    private OffHeapLabelMap(int width, int height, Path scratchDirectory) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.arena = Arena.ofShared();
+        try {
+            labels = ScratchMemory.allocate(arena, Math.max(1, (long) width * height), scratchDirectory);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * An all-white label map in native memory.
+     */
+    public static OffHeapLabelMap allocate(int width, int height) throws IOException {
+        return new OffHeapLabelMap(width, height, null);
+    }
+
+    /**
+     * An all-white label map in a memory-mapped scratch file created in {@code scratchDirectory}.
+     */
+    public static OffHeapLabelMap map(int width, int height, Path scratchDirectory) throws IOException {
+        return new OffHeapLabelMap(width, height, scratchDirectory);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getPixelCount() {
+        return (long) width * height;
+    }
+
+    public byte get(int x, int y) {
+        return labels.get(ValueLayout.JAVA_BYTE, (long) y * width + x);
+    }
+
+    /**
+     * Copies row {@code y} into {@code row}, which must hold at least the image width.
+     */
+    public void readRow(int y, byte[] row) {
+        MemorySegment.copy(labels, ValueLayout.JAVA_BYTE, (long) y * width, row, 0, width);
+    }
+
+    /**
+     * Stores rows {@code [y, y + rows)} from {@code band}, row-major with a stride of the image width.
+     */
+    public void writeRows(int y, int rows, byte[] band) {
+        MemorySegment.copy(band, 0, labels, ValueLayout.JAVA_BYTE, (long) y * width, rows * width);
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Labels an {@link OffHeapLabelMap} with an {@link OffHeapUnionFind}, the same way
+ * {@link UnionFindLabeller} labels a {@link LabelMap}: every foreground pixel is unioned with
+ * its right and bottom neighbours. Only three rows of labels are on the heap at a time.
+ */
+public class OffHeapLabeller {
+    private final Path scratchDirectory;
+
+    /**
+     * @param scratchDirectory where to create the file backing the union-find; null keeps it
+     *                         in native memory
+     */
+    public OffHeapLabeller(Path scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    /**
+     * Hands every component, unfiltered, to {@code sink} in the raster order of its first pixel.
+     */
+    public void label(OffHeapLabelMap labelMap, Consumer<BloodCellAnalyser.CellInfo> sink) throws IOException {
+        int width = labelMap.getWidth();
+        int height = labelMap.getHeight();
+        if (width == 0 || height == 0) return;
+
+        byte[] above = new byte[width];
+        byte[] row = new byte[width];
+        byte[] below = new byte[width];
+        labelMap.readRow(0, row);
+
+        try (OffHeapUnionFind unionFind = new OffHeapUnionFind(width, height, scratchDirectory)) {
+            for (int y = 0; y < height; y++) {
+                boolean hasBelow = y + 1 < height;
+                if (hasBelow) {
+                    labelMap.readRow(y + 1, below);
+                }
+                long rowStart = (long) y * width;
+                for (int x = 0; x < width; x++) {
+                    byte label = row[x];
+
+                    if (label == LabelMap.WHITE) continue;
+
+                    long p = rowStart + x;
+                    unionFind.add(p, label);
+                    if (x == 0 || x + 1 == width || y == 0 || !hasBelow
+                            || row[x - 1] != label || row[x + 1] != label
+                            || above[x] != label || below[x] != label) {
+                        unionFind.addBoundaryPixel(p);
+                    }
+
+                    if (x + 1 < width && row[x + 1] == label) {
+                        unionFind.add(p + 1, label);
+                        unionFind.union(p, p + 1);
+                    }
+
+                    if (hasBelow && below[x] == label) {
+                        unionFind.add(p + width, label);
+                        unionFind.union(p, p + width);
+                    }
+                }
+
+                byte[] recycled = above;
+                above = row;
+                row = below;
+                below = recycled;
+            }
+
+            for (long root : unionFind.roots()) {
+                sink.accept(unionFind.toCell(root));
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * {@link UnionFind} for images of any pixel count: pixels are {@code long} indices and the
+ * parent of each pixel lives in an off-heap segment, optionally backed by a scratch file.
+ * <p>
+ * As in {@link UnionFind}, a zero parent means an implicit singleton, so background pixels are
+ * never written and their pages of a file-backed segment are never touched. Root statistics
+ * stay on the heap in slots, so the heap holds one slot per component rather than anything
+ * per pixel. The segment is freed on {@link #close()}; instances are not thread-safe.
+ */
+public class OffHeapUnionFind implements AutoCloseable {
+    private static final int INITIAL_SLOTS = 1024;
+    private static final ValueLayout.OfLong PARENT = ValueLayout.JAVA_LONG;
+
+    // 0: implicit singleton; > 0: parent index + 1; < 0: root with slot -(value + 1)
+    private final Arena arena;
+    private final MemorySegment parent;
+    private final int width;
+
+    private long[] slotRoot = new long[INITIAL_SLOTS];
+    private long[] size = new long[INITIAL_SLOTS];
+    private int[] minX = new int[INITIAL_SLOTS];
+    private int[] maxX = new int[INITIAL_SLOTS];
+    private int[] minY = new int[INITIAL_SLOTS];
+    private int[] maxY = new int[INITIAL_SLOTS];
+    private long[] first = new long[INITIAL_SLOTS];
+    private byte[] colourClass = new byte[INITIAL_SLOTS];
+    private final ShapeAccumulator shape = new ShapeAccumulator(INITIAL_SLOTS);
+    private int[] freeSlots = new int[INITIAL_SLOTS];
+    private int slotCount;
+    private int freeCount;
+
+    /**
+     * @param scratchDirectory where to create the file backing the parent storage; null keeps
+     *                         it in native memory
+     */
+    public OffHeapUnionFind(int width, int height, Path scratchDirectory) throws IOException {
+        this.width = width;
+        this.arena = Arena.ofConfined();
+        try {
+            parent = ScratchMemory.allocate(arena, Math.max(1, (long) width * height) * Long.BYTES,
+                    scratchDirectory);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Materialises pixel {@code p} as a tracked singleton of the given colour class.
+     * Does nothing if the pixel already belongs to a tracked set.
+     */
+    public void add(long p, byte colour) {
+        if (parentOf(p) != 0) return;
+
+        int slot = allocateSlot();
+        int x = (int) (p % width);
+        int y = (int) (p / width);
+        slotRoot[slot] = p;
+        size[slot] = 1;
+        minX[slot] = maxX[slot] = x;
+        minY[slot] = maxY[slot] = y;
+        first[slot] = p;
+        colourClass[slot] = colour;
+        shape.setRun(slot, y, x, x, 0);
+        setParent(p, -(slot + 1L));
+    }
+
+    /**
+     * Counts tracked pixel {@code p} towards the boundary pixels of its set.
+     */
+    public void addBoundaryPixel(long p) {
+        shape.perimeter[slotOf(find(p))]++;
+    }
+
+    public long find(long p) {
+        while (true) {
+            long up = parentOf(p);
+            if (up <= 0) return p;
+
+            long q = up - 1;
+            long grandParent = parentOf(q);
+            if (grandParent <= 0) return q;
+
+            setParent(p, grandParent);
+            p = grandParent - 1;
+        }
+    }
+
+    public void union(long p, long q) {
+        long rootP = find(p);
+        long rootQ = find(q);
+
+        if (rootP == rootQ) return;
+
+        add(rootP, (byte) 0);
+        add(rootQ, (byte) 0);
+        int slotP = slotOf(rootP);
+        int slotQ = slotOf(rootQ);
+
+        if (size[slotP] < size[slotQ]) {
+            long swap = rootP; rootP = rootQ; rootQ = swap;
+            int swapSlot = slotP; slotP = slotQ; slotQ = swapSlot;
+        }
+
+        setParent(rootQ, rootP + 1);
+        size[slotP] += size[slotQ];
+        minX[slotP] = Math.min(minX[slotP], minX[slotQ]);
+        maxX[slotP] = Math.max(maxX[slotP], maxX[slotQ]);
+        minY[slotP] = Math.min(minY[slotP], minY[slotQ]);
+        maxY[slotP] = Math.max(maxY[slotP], maxY[slotQ]);
+        first[slotP] = Math.min(first[slotP], first[slotQ]);
+        shape.merge(slotP, slotQ);
+        freeSlot(slotQ);
+    }
+
+    /**
+     * Roots of all tracked sets, ordered by the raster position of each set's first pixel.
+     */
+    public long[] roots() {
+        long[] firsts = new long[slotCount - freeCount];
+        int n = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slotRoot[slot] >= 0) {
+                firsts[n++] = first[slot];
+            }
+        }
+        // First pixels are distinct, so sorting them orders the sets without carrying slots along
+        Arrays.sort(firsts);
+        for (int i = 0; i < n; i++) {
+            firsts[i] = find(firsts[i]);
+        }
+        return firsts;
+    }
+
+    /**
+     * The tracked root's component as an unmeasured cell. Sizes beyond {@code int} saturate.
+     */
+    public BloodCellAnalyser.CellInfo toCell(long root) {
+        int slot = slotOf(root);
+        BloodCellAnalyser.CellInfo cell = new BloodCellAnalyser.CellInfo();
+        cell.color = BloodCellAnalyser.CellType.of(colourClass[slot]);
+        cell.size = (int) Math.min(Integer.MAX_VALUE, size[slot]);
+        cell.minX = minX[slot];
+        cell.maxX = maxX[slot];
+        cell.minY = minY[slot];
+        cell.maxY = maxY[slot];
+        shape.writeTo(slot, cell);
+        return cell;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    private long parentOf(long p) {
+        return parent.getAtIndex(PARENT, p);
+    }
+
+    private void setParent(long p, long value) {
+        parent.setAtIndex(PARENT, p, value);
+    }
+
+    private int slotOf(long root) {
+        return (int) (-parentOf(root) - 1);
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (slotCount == slotRoot.length) {
+            int capacity = slotRoot.length * 2;
+            slotRoot = Arrays.copyOf(slotRoot, capacity);
+            size = Arrays.copyOf(size, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            first = Arrays.copyOf(first, capacity);
+            colourClass = Arrays.copyOf(colourClass, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+            shape.ensureCapacity(capacity);
+        }
+        return slotCount++;
+    }
+
+    private void freeSlot(int slot) {
+        slotRoot[slot] = -1;
+        freeSlots[freeCount++] = slot;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.bloodanalyser;
+
+import java.util.List;
+
+/**
+ * Draws cell bounding boxes and id numbers straight into ARGB int buffers.
+ * <p>
+ * The target buffer can cover the whole image or any rectangular window of it (a tile),
+ * and drawing is clipped to both the image and the window.
+ */
+public class OverlayRenderer {
+    private static final int GREEN = 0xFF008000;
+    private static final int BLUE = 0xFF0000FF;
+    private static final int PURPLE = 0xFF800080;
+    private static final int BLACK = 0xFF000000;
+    private static final int WHITE = 0xFFFFFFFF;
+
+    private static final int DIGIT_WIDTH = 3;
+    private static final int DIGIT_HEIGHT = 5;
+    private static final int DIGIT_SPACING = 1;
+
+    // One 3x5 glyph per digit, row-major from the top-left, bit 14 first
+    private static final int[] DIGIT_GLYPHS = {
+            0b111_101_101_101_111,
+            0b010_110_010_010_111,
+            0b111_001_111_100_111,
+            0b111_001_111_001_111,
+            0b101_101_111_001_001,
+            0b111_100_111_001_111,
+            0b111_100_111_101_111,
+            0b111_001_010_100_100,
+            0b111_101_111_101_111,
+            0b111_101_111_001_111
+    };
+
+    private final boolean showNumbering;
+
+    public OverlayRenderer(boolean showNumbering) {
+        this.showNumbering = showNumbering;
+    }
+
+    /**
+     * Draws the cells into {@code target}, a {@code targetWidth} x {@code targetHeight} window of
+     * the image whose top-left pixel is at ({@code originX}, {@code originY}).
+     */
+    public void draw(int[] target, int originX, int originY, int targetWidth, int targetHeight,
+                     int imageWidth, int imageHeight, List<BloodCellAnalyser.CellInfo> cells) {
+        Canvas canvas = new Canvas(target, originX, originY, targetWidth, targetHeight, imageWidth, imageHeight);
+
+        for (BloodCellAnalyser.CellInfo cell : cells) {
+            int minX = Math.max(0, cell.minX - 1);
+            int minY = Math.max(0, cell.minY - 1);
+            int maxX = Math.min(imageWidth - 1, cell.maxX + 1);
+            int maxY = Math.min(imageHeight - 1, cell.maxY + 1);
+            int numberWidth = showNumbering ? numberWidth(cell.id) : 0;
+
+            boolean visible = maxX >= originX && minX < originX + targetWidth
+                    && maxY >= originY && minY < originY + targetHeight;
+            if (!visible && !showNumbering) continue;
+
+            if (visible) {
+                drawRectangle(canvas, minX, minY, maxX, maxY, colourOf(cell));
+            }
+
+            if (showNumbering) {
+                int centerX = cell.minX + (cell.maxX - cell.minX) / 2;
+                int centerY = cell.minY + (cell.maxY - cell.minY) / 2;
+                drawNumber(canvas, cell.id, centerX - numberWidth / 2, centerY - DIGIT_HEIGHT / 2, numberWidth);
+            }
+        }
+    }
+
+    public void draw(int[] target, int imageWidth, int imageHeight, List<BloodCellAnalyser.CellInfo> cells) {
+        draw(target, 0, 0, imageWidth, imageHeight, imageWidth, imageHeight, cells);
+    }
+
+    private static int colourOf(BloodCellAnalyser.CellInfo cell) {
+        if (cell.color == BloodCellAnalyser.CellType.RED) {
+            return cell.isCluster ? BLUE : GREEN;
+        }
+        return PURPLE;
+    }
+
+    private static void drawRectangle(Canvas canvas, int minX, int minY, int maxX, int maxY, int argb) {
+        canvas.fillRect(minX, minY, maxX, minY, argb);
+        canvas.fillRect(minX, maxY, maxX, maxY, argb);
+        canvas.fillRect(minX, minY, minX, maxY, argb);
+        canvas.fillRect(maxX, minY, maxX, maxY, argb);
+    }
+
+    private static int numberWidth(int number) {
+        int digits = 1;
+        for (int n = Math.abs(number); n >= 10; n /= 10) {
+            digits++;
+        }
+        if (number < 0) {
+            digits++;
+        }
+        return digits * (DIGIT_WIDTH + DIGIT_SPACING) - DIGIT_SPACING;
+    }
+
+    private static void drawNumber(Canvas canvas, int number, int startX, int startY, int totalWidth) {
+        canvas.fillRect(startX - 1, startY - 1, startX + totalWidth, startY + DIGIT_HEIGHT, BLACK);
+
+        String text = String.valueOf(number);
+        for (int i = 0; i < text.length(); i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) continue;
+
+            int glyph = DIGIT_GLYPHS[digit];
+            int digitX = startX + i * (DIGIT_WIDTH + DIGIT_SPACING);
+            for (int dy = 0; dy < DIGIT_HEIGHT; dy++) {
+                for (int dx = 0; dx < DIGIT_WIDTH; dx++) {
+                    int bit = 14 - (dy * DIGIT_WIDTH + dx);
+                    if ((glyph >> bit & 1) != 0) {
+                        canvas.set(digitX + dx, startY + dy, WHITE);
+                    }
+                }
+            }
+        }
+    }
+
+    private record Canvas(int[] pixels, int originX, int originY, int width, int height,
+                          int imageWidth, int imageHeight) {
+
+        // Inclusive image coordinates, clipped to the image and to this window.
+        void fillRect(int x0, int y0, int x1, int y1, int argb) {
+            int fromX = Math.max(Math.max(x0, 0), originX);
+            int toX = Math.min(Math.min(x1, imageWidth - 1), originX + width - 1);
+            int fromY = Math.max(Math.max(y0, 0), originY);
+            int toY = Math.min(Math.min(y1, imageHeight - 1), originY + height - 1);
+            for (int y = fromY; y <= toY; y++) {
+                int row = (y - originY) * width - originX;
+                for (int x = fromX; x <= toX; x++) {
+                    pixels[row + x] = argb;
+                }
+            }
+        }
+
+        void set(int x, int y, int argb) {
+            if (x >= originX && x < originX + width && x < imageWidth && x >= 0
+                    && y >= originY && y < originY + height && y < imageHeight && y >= 0) {
+                pixels[(y - originY) * width + (x - originX)] = argb;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.bloodanalyser;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-image timing of the analysis stages: wall time, CPU time and bytes allocated by the
+ * calling thread, plus an item count (pixels, components, cells) per stage.
+ * <p>
+ * CPU time and allocation are those of the thread that opened the stage, so work a stage
+ * hands to a fork/join pool only shows up in its wall time. Instances are not thread-safe.
+ */
+public class PipelineMetrics {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final List<StageTiming> stages = new ArrayList<>();
+    private long pixels;
+
+    public record StageTiming(String name, long wallNanos, long cpuNanos, long allocatedBytes, long items) {
+    }
+
+    /**
+     * Starts timing a stage; closing the returned handle records it.
+     */
+    public Stage begin(String name) {
+        return new Stage(name);
+    }
+
+    public void setPixels(long pixels) {
+        this.pixels = pixels;
+    }
+
+    public long getPixels() {
+        return pixels;
+    }
+
+    public List<StageTiming> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (StageTiming stage : stages) {
+            total += stage.wallNanos();
+        }
+        return total;
+    }
+
+    public double getMegapixelsPerSecond() {
+        long nanos = getTotalNanos();
+        return nanos == 0 ? 0 : pixels * 1e3 / nanos;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "{\"pixels\":%d,\"millis\":%.3f,\"megapixelsPerSecond\":%.2f,\"stages\":[",
+                pixels, getTotalNanos() / 1e6, getMegapixelsPerSecond()));
+        for (int i = 0; i < stages.size(); i++) {
+            StageTiming stage = stages.get(i);
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.ROOT,
+                    "{\"name\":\"%s\",\"millis\":%.3f,\"cpuMillis\":%.3f,\"allocatedBytes\":%d,\"items\":%d}",
+                    BatchAnalyser.escapeJson(stage.name()), stage.wallNanos() / 1e6, stage.cpuNanos() / 1e6,
+                    stage.allocatedBytes(), stage.items()));
+        }
+        return sb.append("]}").toString();
+    }
+
+    public class Stage implements AutoCloseable {
+        private final String name;
+        private final long startWall;
+        private final long startCpu;
+        private final long startAllocated;
+        private long items;
+
+        private Stage(String name) {
+            this.name = name;
+            this.startCpu = cpuTime();
+            this.startAllocated = allocatedBytes();
+            this.startWall = System.nanoTime();
+        }
+
+        public void setItems(long items) {
+            this.items = items;
+        }
+
+        @Override
+        public void close() {
+            long wall = System.nanoTime() - startWall;
+            stages.add(new StageTiming(name, wall, cpuTime() - startCpu, allocatedBytes() - startAllocated, items));
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS != null && THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS != null && THREADS.isThreadAllocatedMemoryEnabled() ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() ? bean : null;
+    }
+}
@@ -0,0 +1,351 @@
+package com.example.bloodanalyser;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a non-interlaced PNG in a single forward pass, inflating and unfiltering one row at a
+ * time, so each band costs only its own rows. Bands must be read in order from the top.
+ * Handles every bit depth and colour type of the PNG specification, with transparency from
+ * {@code tRNS}. Colours match ImageIO's {@code getRGB}, including its linear treatment of 8 and
+ * 16-bit grey. Adam7-interlaced files cannot be decoded row by row and are rejected.
+ */
+public class PngRowBandSource implements RowBandSource {
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+
+    private final DataInputStream file;
+    private final InputStream pixels;
+    private final Inflater inflater = new Inflater();
+    private final Path path;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int colourType;
+    private final int bytesPerPixel;
+    private int[] palette;
+    // 8-bit sRGB value of each 8 or 16-bit grey sample, as ImageIO's linear grey converts it
+    private int[] greyLevels;
+    // Colour key of grey and RGB images without alpha, as 16-bit samples; -1 if there is none
+    private int transparentGrey = -1;
+    private int transparentRed = -1;
+    private int transparentGreen;
+    private int transparentBlue;
+
+    // The previous row is needed for unfiltering
+    private byte[] previous;
+    private byte[] current;
+    private int nextRow;
+
+    // Bytes of the IDAT chunk being read that are still to come
+    private int idatRemaining;
+
+    public PngRowBandSource(Path path) throws IOException {
+        this.path = path;
+        file = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            file.readFully(signature);
+            if (!Arrays.equals(signature, SIGNATURE)) {
+                throw new IOException("Not a PNG file: " + path);
+            }
+
+            int length = file.readInt();
+            if (file.readInt() != IHDR || length != 13) {
+                throw new IOException("PNG without a header: " + path);
+            }
+            width = file.readInt();
+            height = file.readInt();
+            bitDepth = file.readUnsignedByte();
+            colourType = file.readUnsignedByte();
+            int compression = file.readUnsignedByte();
+            int filter = file.readUnsignedByte();
+            int interlace = file.readUnsignedByte();
+            file.readInt(); // CRC
+            if (width <= 0 || height <= 0 || compression != 0 || filter != 0) {
+                throw new IOException("Unsupported PNG header: " + path);
+            }
+            if (interlace != 0) {
+                throw new IOException("Interlaced PNG cannot be read band by band: " + path);
+            }
+            int channels = switch (colourType) {
+                case GREY, PALETTE -> 1;
+                case RGB -> 3;
+                case GREY_ALPHA -> 2;
+                case 6 -> 4;
+                default -> throw new IOException("Unsupported PNG colour type " + colourType + ": " + path);
+            };
+            int bitsPerPixel = channels * bitDepth;
+            bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+            int rowBytes = Math.toIntExact(((long) width * bitsPerPixel + 7) / 8);
+            previous = new byte[rowBytes];
+            current = new byte[rowBytes];
+
+            if ((colourType == GREY || colourType == GREY_ALPHA) && bitDepth >= 8) {
+                greyLevels = greyLevels(bitDepth);
+            }
+            readChunksUntilPixels();
+            pixels = new InflaterInputStream(new IdatStream(), inflater, 1 << 16);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRows(int y, int rows, int[] argb) throws IOException {
+        if (y != nextRow) {
+            throw new IllegalStateException("PNG bands must be read in order; expected row " + nextRow + ", got " + y);
+        }
+        for (int row = 0; row < rows; row++) {
+            int filter = pixels.read();
+            if (filter < 0 || pixels.readNBytes(current, 0, current.length) != current.length) {
+                throw new EOFException("PNG image data ends early: " + path);
+            }
+            unfilter(filter);
+            toArgb(argb, row * width);
+
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        nextRow += rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+
+    // Reads ancillary chunks up to the first IDAT, keeping the palette and transparency
+    private void readChunksUntilPixels() throws IOException {
+        while (true) {
+            int length = file.readInt();
+            int type = file.readInt();
+            if (type == IDAT) {
+                idatRemaining = length;
+                if (colourType == PALETTE && palette == null) {
+                    throw new IOException("Palette PNG without a palette: " + path);
+                }
+                return;
+            }
+            if (type == IEND) {
+                throw new IOException("PNG without image data: " + path);
+            }
+            if (type == PLTE) {
+                palette = new int[256];
+                Arrays.fill(palette, 0xFF000000);
+                for (int i = 0; i < length / 3; i++) {
+                    palette[i] = 0xFF000000 | file.readUnsignedByte() << 16
+                            | file.readUnsignedByte() << 8 | file.readUnsignedByte();
+                }
+                file.skipNBytes(length - length / 3 * 3);
+            } else if (type == TRNS) {
+                readTransparency(length);
+            } else {
+                file.skipNBytes(length);
+            }
+            file.readInt(); // CRC
+        }
+    }
+
+    private void readTransparency(int length) throws IOException {
+        if (colourType == PALETTE && palette != null) {
+            for (int i = 0; i < length; i++) {
+                int alpha = file.readUnsignedByte();
+                if (i < palette.length) {
+                    palette[i] = (palette[i] & 0xFFFFFF) | alpha << 24;
+                }
+            }
+        } else if (colourType == GREY && length >= 2) {
+            transparentGrey = file.readUnsignedShort();
+            file.skipNBytes(length - 2);
+        } else if (colourType == RGB && length >= 6) {
+            transparentRed = file.readUnsignedShort();
+            transparentGreen = file.readUnsignedShort();
+            transparentBlue = file.readUnsignedShort();
+            file.skipNBytes(length - 6);
+        } else {
+            file.skipNBytes(length);
+        }
+    }
+
+    private void unfilter(int filter) throws IOException {
+        byte[] row = current;
+        byte[] up = previous;
+        int bpp = bytesPerPixel;
+        switch (filter) {
+            case 0 -> {
+            }
+            case 1 -> {
+                for (int i = bpp; i < row.length; i++) {
+                    row[i] += row[i - bpp];
+                }
+            }
+            case 2 -> {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] += up[i];
+                }
+            }
+            case 3 -> {
+                for (int i = 0; i < row.length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((left + (up[i] & 0xFF)) >>> 1);
+                }
+            }
+            case 4 -> {
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = up[i] & 0xFF;
+                    int c = i >= bpp ? up[i - bpp] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    row[i] += (byte) (pa <= pb && pa <= pc ? a : pb <= pc ? b : c);
+                }
+            }
+            default -> throw new IOException("Invalid PNG row filter " + filter + ": " + path);
+        }
+    }
+
+    private void toArgb(int[] argb, int offset) {
+        byte[] row = current;
+        int sample = bitDepth / 8;
+        switch (colourType) {
+            case RGB -> {
+                for (int x = 0, i = 0; x < width; x++, i += 3 * sample) {
+                    int alpha = transparentRed >= 0 && sample16(row, i, sample) == transparentRed
+                            && sample16(row, i + sample, sample) == transparentGreen
+                            && sample16(row, i + 2 * sample, sample) == transparentBlue ? 0 : 0xFF;
+                    argb[offset + x] = alpha << 24 | sample8(row, i, sample) << 16
+                            | sample8(row, i + sample, sample) << 8 | sample8(row, i + 2 * sample, sample);
+                }
+            }
+            case 6 -> {
+                for (int x = 0, i = 0; x < width; x++, i += 4 * sample) {
+                    argb[offset + x] = sample8(row, i + 3 * sample, sample) << 24 | sample8(row, i, sample) << 16
+                            | sample8(row, i + sample, sample) << 8 | sample8(row, i + 2 * sample, sample);
+                }
+            }
+            case GREY_ALPHA -> {
+                for (int x = 0, i = 0; x < width; x++, i += 2 * sample) {
+                    argb[offset + x] = sample8(row, i + sample, sample) << 24
+                            | greyLevels[sample16(row, i, sample)] * 0x010101;
+                }
+            }
+            case PALETTE -> {
+                for (int x = 0; x < width; x++) {
+                    argb[offset + x] = palette[packedSample(row, x)];
+                }
+            }
+            default -> {
+                for (int x = 0; x < width; x++) {
+                    int value;
+                    int key;
+                    if (bitDepth >= 8) {
+                        key = sample16(row, sample * x, sample);
+                        value = greyLevels[key];
+                    } else {
+                        key = packedSample(row, x);
+                        value = key * 255 / ((1 << bitDepth) - 1);
+                    }
+                    int alpha = key == transparentGrey ? 0 : 0xFF;
+                    argb[offset + x] = alpha << 24 | value * 0x010101;
+                }
+            }
+        }
+    }
+
+    private static int[] greyLevels(int bitDepth) {
+        int count = 1 << bitDepth;
+        BufferedImage ramp = new BufferedImage(count, 1,
+                bitDepth == 8 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_USHORT_GRAY);
+        for (int i = 0; i < count; i++) {
+            ramp.getRaster().setSample(i, 0, 0, i);
+        }
+        int[] levels = ramp.getRGB(0, 0, count, 1, null, 0, count);
+        for (int i = 0; i < count; i++) {
+            levels[i] &= 0xFF;
+        }
+        return levels;
+    }
+
+    // Sample x of a row packed at 1, 2, 4 or 8 bits, most significant bits first
+    private int packedSample(byte[] row, int x) {
+        if (bitDepth == 8) {
+            return row[x] & 0xFF;
+        }
+        int bit = x * bitDepth;
+        int shift = 8 - bitDepth - (bit & 7);
+        return (row[bit >>> 3] >>> shift) & ((1 << bitDepth) - 1);
+    }
+
+    // A sample scaled to 8 bits; 16-bit samples are rounded as ImageIO does
+    private static int sample8(byte[] row, int i, int sampleBytes) {
+        return sampleBytes == 2 ? (sample16(row, i, 2) * 255 + 32767) / 65535 : row[i] & 0xFF;
+    }
+
+    private static int sample16(byte[] row, int i, int sampleBytes) {
+        return sampleBytes == 2 ? (row[i] & 0xFF) << 8 | (row[i + 1] & 0xFF) : row[i] & 0xFF;
+    }
+
+    /**
+     * The concatenated contents of consecutive IDAT chunks.
+     */
+    private final class IdatStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (idatRemaining == 0) {
+                file.readInt(); // CRC of the chunk just finished
+                int next = file.readInt();
+                if (file.readInt() != IDAT) {
+                    return -1;
+                }
+                idatRemaining = next;
+            }
+            int n = file.read(buffer, offset, Math.min(length, idatRemaining));
+            if (n < 0) {
+                throw new EOFException("PNG file ends inside image data: " + path);
+            }
+            idatRemaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.example.bloodanalyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Coarse-to-fine analysis for sparse slides. Every {@code step}-th row and every
+ * {@code step}-th column is classified first, and the pixels found on them are labelled on
+ * a grid of {@code step}-sided blocks; only padded boxes around the components found there
+ * are then classified and labelled at full resolution. A pixel on these lines only counts if
+ * it is connected to at least two more of its class, so noise specks do not become candidates.
+ * <p>
+ * Any component at least {@code step} pixels wide or tall crosses a sampled line, whatever
+ * its shape, and {@link #defaultStep} makes every component of the minimum size that wide or
+ * tall. Boxes that touch are merged, and a box is grown and relabelled while a component
+ * reaches its border, so every component found is complete. With a step no larger than the
+ * default the cells therefore match a full-resolution analysis: only components below the
+ * minimum size, or of fewer than three pixels, can be missed. Pixels outside the refined boxes
+ * are left white in the returned label map. A larger step trades the guarantee for speed and
+ * can miss thin or elongated cells.
+ */
+public class PyramidAnalyser {
+    private static final int MAX_REFINED_PERCENT = 25;
+    private static final int[] DX = {1, -1, 0, 0};
+    private static final int[] DY = {0, 0, 1, -1};
+    private static final int[] ALONG_ROW = {0, 1, 2, 3};
+    private static final int[] ALONG_COLUMN = {2, 3, 0, 1};
+
+    private final ImageProcessor processor;
+    private final BloodCellAnalyser analyser;
+    private final int step;
+
+    public PyramidAnalyser(ImageProcessor processor, BloodCellAnalyser analyser, int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("Pyramid step must be at least 1: " + step);
+        }
+        this.processor = processor;
+        this.analyser = analyser;
+        this.step = step;
+    }
+
+    /**
+     * Largest step that every component of {@code minCellSize} pixels spans in width or height:
+     * one whose bounding box is narrower and shorter than the step holds fewer pixels.
+     */
+    public static int defaultStep(int minCellSize) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(minCellSize)));
+    }
+
+    public BloodCellAnalyser.AnalysisResult analyse(int[] argb, int width, int height) {
+        return analyse(argb, width, height, new PipelineMetrics());
+    }
+
+    public BloodCellAnalyser.AnalysisResult analyse(int[] argb, int width, int height, PipelineMetrics metrics) {
+        return analyser.analyseSegmentation(segment(argb, width, height, metrics), metrics);
+    }
+
+    public Segmentation segment(int[] argb, int width, int height, PipelineMetrics metrics) {
+        return segment(argb, new LabelMap(width, height), metrics);
+    }
+
+    /**
+     * Segments into {@code labelMap}, which is cleared first.
+     */
+    public Segmentation segment(int[] argb, LabelMap labelMap, PipelineMetrics metrics) {
+        int width = labelMap.getWidth();
+        int height = labelMap.getHeight();
+
+        List<Region> regions;
+        try (PipelineMetrics.Stage stage = metrics.begin("coarse label")) {
+            regions = findCandidates(argb, width, height, labelMap.getLabels());
+            Arrays.fill(labelMap.getLabels(), 0, width * height, LabelMap.WHITE);
+            stage.setItems(regions.size());
+        }
+
+        try (PipelineMetrics.Stage stage = metrics.begin("refine")) {
+            RunLengthLabeller labeller = new RunLengthLabeller();
+            long refined = 0;
+            long budget = (long) width * height * MAX_REFINED_PERCENT / 100;
+            regions = merge(regions);
+            boolean grown = true;
+            while (grown) {
+                long pending = 0;
+                for (Region region : regions) {
+                    if (region.components == null) {
+                        pending += region.area();
+                    }
+                }
+                if (refined + pending > budget && regions.size() > 1) {
+                    // Dense slide: refining box by box would cost more than the whole slide
+                    regions = List.of(new Region(0, 0, width - 1, height - 1));
+                }
+
+                grown = false;
+                for (Region region : regions) {
+                    if (region.components == null) {
+                        refined += region.area();
+                        grown |= refine(region, argb, labelMap, labeller);
+                    }
+                }
+                if (grown) {
+                    regions = merge(regions);
+                }
+            }
+            stage.setItems(refined);
+        }
+
+        return new Segmentation(labelMap, collect(regions, width));
+    }
+
+    /*
+     * Classifies every line pixel once, in place in labels, in a single row-major pass: sampled
+     * rows whole, and the column pixels of the rows in between. The line pixels are left in labels.
+     */
+    private List<Region> findCandidates(int[] argb, int width, int height, byte[] labels) {
+        int coarseWidth = (width - 1) / step + 1;
+        int coarseHeight = (height - 1) / step + 1;
+        LabelMap coarse = new LabelMap(coarseWidth, coarseHeight);
+        byte[] blocks = coarse.getLabels();
+
+        // The noise check of a pixel reaches two rows down, so rows are checked two behind
+        for (int y = 0; y < height + 2; y++) {
+            if (y < height) {
+                int from = y * width;
+                if (y % step == 0) {
+                    processor.classifyRange(argb, labels, from, from + width);
+                } else {
+                    for (int i = from; i < from + width; i += step) {
+                        labels[i] = processor.classifyPixel(argb[i]);
+                    }
+                }
+            }
+            int checked = y - 2;
+            if (checked >= 0) {
+                boolean wholeRow = checked % step == 0;
+                int[] order = wholeRow ? ALONG_ROW : ALONG_COLUMN;
+                int blockRow = (checked / step) * coarseWidth;
+                for (int x = 0; x < width; x += wholeRow ? 1 : step) {
+                    byte label = labels[checked * width + x];
+                    int block = blockRow + x / step;
+                    if (label != LabelMap.WHITE && blocks[block] != label
+                            && !isNoise(argb, labels, width, height, x, checked, label, order)) {
+                        blocks[block] = label;
+                    }
+                }
+            }
+        }
+
+        List<Region> regions = new ArrayList<>();
+        for (BloodCellAnalyser.CellInfo candidate : new RunLengthLabeller().label(coarse)) {
+            // Reaches one step past the outermost blocks; refine() grows the box if a component goes further
+            regions.add(new Region(
+                    Math.max(0, (candidate.minX - 1) * step), Math.max(0, (candidate.minY - 1) * step),
+                    Math.min(width - 1, (candidate.maxX + 2) * step - 1),
+                    Math.min(height - 1, (candidate.maxY + 2) * step - 1)));
+        }
+        return regions;
+    }
+
+    /*
+     * Whether the pixel is connected to fewer than two others of its class. Never true for a
+     * pixel of a component of three or more pixels. Neighbours along the pixel's own line come
+     * first, so a pixel inside a run of three on its line is settled from labels alone.
+     */
+    private boolean isNoise(int[] argb, byte[] labels, int width, int height, int x, int y, byte label, int[] order) {
+        int neighbours = 0;
+        for (int d : order) {
+            int nx = x + DX[d];
+            int ny = y + DY[d];
+            if (!hasClass(argb, labels, width, height, nx, ny, label)) continue;
+            if (++neighbours == 2) return false;
+            for (int e : order) {
+                // e ^ 1 leads back to the pixel itself
+                if (e != (d ^ 1) && hasClass(argb, labels, width, height, nx + DX[e], ny + DY[e], label)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Line pixels are read from labels; only pixels off the lines are classified again
+    private boolean hasClass(int[] argb, byte[] labels, int width, int height, int x, int y, byte label) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return false;
+        }
+        int i = y * width + x;
+        return (y % step == 0 || x % step == 0 ? labels[i] : processor.classifyPixel(argb[i])) == label;
+    }
+
+    /*
+     * Classifies and labels the region at full resolution. Returns true, and grows the region
+     * over the offending components, if any of them reaches a border that is not the image edge.
+     */
+    private boolean refine(Region region, int[] argb, LabelMap labelMap, RunLengthLabeller labeller) {
+        int width = labelMap.getWidth();
+        int height = labelMap.getHeight();
+        int regionWidth = region.maxX - region.minX + 1;
+        int regionHeight = region.maxY - region.minY + 1;
+        byte[] labels = labelMap.getLabels();
+        LabelMap crop;
+        if (regionWidth == width && regionHeight == height) {
+            processor.classifyRange(argb, labels, 0, width * height);
+            crop = labelMap;
+        } else {
+            crop = new LabelMap(regionWidth, regionHeight);
+            for (int y = region.minY; y <= region.maxY; y++) {
+                int from = y * width + region.minX;
+                processor.classifyRange(argb, labels, from, from + regionWidth);
+                System.arraycopy(labels, from, crop.getLabels(), (y - region.minY) * regionWidth, regionWidth);
+            }
+        }
+
+        RunLengthLabeller.RunTable table = labeller.labelRuns(crop);
+        List<BloodCellAnalyser.CellInfo> components = table.cells;
+        int[] firstX = new int[components.size()];
+        boolean[] seen = new boolean[components.size()];
+        for (int run = 0; run < table.component.length; run++) {
+            int c = table.component[run];
+            if (!seen[c]) {
+                seen[c] = true;
+                firstX[c] = region.minX + table.start[run];
+            }
+        }
+
+        // Specks cut by the border need not be followed: any component that can be a cell has a
+        // candidate box of its own, which grows over it and is then merged with this one
+        Region grown = region.copy();
+        for (BloodCellAnalyser.CellInfo c : components) {
+            c.translate(region.minX, region.minY);
+            if (c.size < 3) continue;
+            if ((c.minX == region.minX && c.minX > 0) || (c.maxX == region.maxX && c.maxX < width - 1)
+                    || (c.minY == region.minY && c.minY > 0) || (c.maxY == region.maxY && c.maxY < height - 1)) {
+                grown.minX = Math.min(grown.minX, Math.max(0, c.minX - step));
+                grown.minY = Math.min(grown.minY, Math.max(0, c.minY - step));
+                grown.maxX = Math.max(grown.maxX, Math.min(width - 1, c.maxX + step));
+                grown.maxY = Math.max(grown.maxY, Math.min(height - 1, c.maxY + step));
+            }
+        }
+
+        if (grown.area() != region.area()) {
+            region.minX = grown.minX;
+            region.minY = grown.minY;
+            region.maxX = grown.maxX;
+            region.maxY = grown.maxY;
+            return true;
+        }
+        region.components = components;
+        region.firstX = firstX;
+        return false;
+    }
+
+    /*
+     * Merges regions that overlap or share an edge until all of them are apart. A merged
+     * region has to be labelled again.
+     */
+    private static List<Region> merge(List<Region> regions) {
+        List<Region> merged = new ArrayList<>(regions);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            merged.sort(Comparator.comparingInt(r -> r.minX));
+            List<Region> next = new ArrayList<>(merged.size());
+            boolean[] absorbed = new boolean[merged.size()];
+            for (int i = 0; i < merged.size(); i++) {
+                if (absorbed[i]) continue;
+                Region region = merged.get(i);
+                for (int j = i + 1; j < merged.size() && merged.get(j).minX <= region.maxX + 1; j++) {
+                    Region other = merged.get(j);
+                    if (absorbed[j] || other.minY > region.maxY + 1 || other.maxY < region.minY - 1) continue;
+                    region = region.union(other);
+                    absorbed[j] = true;
+                    changed = true;
+                }
+                next.add(region);
+            }
+            merged = next;
+        }
+        return merged;
+    }
+
+    // Orders the components as a full-image labeller would: by the raster position of their first pixel
+    private static List<BloodCellAnalyser.CellInfo> collect(List<Region> regions, int width) {
+        List<BloodCellAnalyser.CellInfo> components = new ArrayList<>();
+        for (Region region : regions) {
+            components.addAll(region.components);
+        }
+        long[] firstPixel = new long[components.size()];
+        int n = 0;
+        for (Region region : regions) {
+            for (int i = 0; i < region.firstX.length; i++, n++) {
+                firstPixel[n] = (long) components.get(n).minY * width + region.firstX[i];
+            }
+        }
+
+        Integer[] order = new Integer[components.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> firstPixel[i]));
+
+        List<BloodCellAnalyser.CellInfo> sorted = new ArrayList<>(order.length);
+        for (int i : order) {
+            sorted.add(components.get(i));
+        }
+        return sorted;
+    }
+
+    private static class Region {
+        int minX, minY, maxX, maxY;
+        List<BloodCellAnalyser.CellInfo> components;
+        int[] firstX;
+
+        Region(int minX, int minY, int maxX, int maxY) {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        long area() {
+            return (long) (maxX - minX + 1) * (maxY - minY + 1);
+        }
+
+        Region copy() {
+            return new Region(minX, minY, maxX, maxY);
+        }
+
+        Region union(Region other) {
+            return new Region(Math.min(minX, other.minX), Math.min(minY, other.minY),
+                    Math.max(maxX, other.maxX), Math.max(maxY, other.maxY));
+        }
+    }
+}
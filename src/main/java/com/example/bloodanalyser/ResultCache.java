@@ -0,0 +1,392 @@
+package com.example.bloodanalyser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Remembers analysis results by image content hash and analysis parameters.
+ * <p>
+ * Results live in a size-bounded in-memory LRU tier backed by one compact binary file per
+ * key in the cache directory. The label map can be stored alongside, packed to two bits
+ * per pixel. The directory is bounded too: the least recently used files are deleted once
+ * they add up to more than the disk budget. Files written by other instances sharing the
+ * directory are only counted when an instance opens it. Instances are thread-safe.
+ */
+public class ResultCache {
+    private static final int MAGIC = 0x42414352; // "BACR"
+    // Bumped whenever the analysis changes its results, so older entries are recomputed
+    private static final int VERSION = 7;
+    private static final String SUFFIX = ".bac";
+
+    private final Path directory;
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final LinkedHashMap<Key, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsed;
+    // File name to size, least recently used first
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskUsed;
+
+    /**
+     * @param directory  where entries are persisted; null keeps them in memory only
+     * @param diskBudget bytes of entry files the directory may hold
+     */
+    public ResultCache(Path directory, long memoryBudget, long diskBudget) throws IOException {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            scanDirectory();
+        }
+    }
+
+    /**
+     * @param filter        clean-up applied to the label map before labelling; null means none
+     * @param splitClusters false for results that keep the size-based estimate for clusters, as
+     *                      {@link StreamingAnalyser} and {@link OffHeapAnalyser} do
+     * @param pyramidStep   the {@link PyramidAnalyser} step the cells were found with; 0 if every
+     *                      pixel was analysed
+     */
+    public record Key(long contentHash, int redThreshold, int purpleThreshold, int minCellSize, int maxCellSize,
+                      MaskFilter filter, boolean splitClusters, int pyramidStep) {
+        public Key {
+            if (filter == null) {
+                filter = MaskFilter.NONE;
+            }
+        }
+
+        public Key(long contentHash, int redThreshold, int purpleThreshold, int minCellSize, int maxCellSize,
+                   MaskFilter filter) {
+            this(contentHash, redThreshold, purpleThreshold, minCellSize, maxCellSize, filter, true, 0);
+        }
+
+        public Key(long contentHash, int redThreshold, int purpleThreshold, int minCellSize, int maxCellSize) {
+            this(contentHash, redThreshold, purpleThreshold, minCellSize, maxCellSize, MaskFilter.NONE);
+        }
+
+        String fileName() {
+            // Unfiltered whole-slide entries keep the names they had before filters and modes existed
+            String filterPart = filter.isIdentity() ? "" : String.format(Locale.ROOT, "-o%dc%d%s",
+                    filter.openRadius(), filter.closeRadius(), filter.fillHoles() ? "h" : "");
+            String modePart = (splitClusters ? "" : "-u") + (pyramidStep > 0 ? "-p" + pyramidStep : "");
+            return String.format(Locale.ROOT, "%016x-%d-%d-%d-%d%s%s%s", contentHash,
+                    redThreshold, purpleThreshold, minCellSize, maxCellSize, filterPart, modePart, SUFFIX);
+        }
+    }
+
+    public static class Entry {
+        private final int width;
+        private final int height;
+        private final BloodCellAnalyser.AnalysisResult result;
+        private final LabelMap labelMap;
+
+        public Entry(int width, int height, BloodCellAnalyser.AnalysisResult result, LabelMap labelMap) {
+            this.width = width;
+            this.height = height;
+            this.result = result;
+            this.labelMap = labelMap;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public BloodCellAnalyser.AnalysisResult getResult() {
+            return result;
+        }
+
+        /** The label map the result was computed from, or null if it was not stored. */
+        public LabelMap getLabelMap() {
+            return labelMap;
+        }
+
+        long estimatedBytes() {
+            long bytes = 64 + 48L * result.getCells().size();
+            if (labelMap != null) {
+                bytes += (long) labelMap.getWidth() * labelMap.getHeight();
+            }
+            return bytes;
+        }
+    }
+
+    public Entry get(Key key) throws IOException {
+        synchronized (this) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (directory == null) {
+            return null;
+        }
+
+        String name = key.fileName();
+        Entry entry;
+        try {
+            entry = read(directory.resolve(name));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (entry != null) {
+            remember(key, entry);
+            touch(name);
+        }
+        return entry;
+    }
+
+    public void put(Key key, Entry entry) throws IOException {
+        remember(key, entry);
+        if (directory == null) {
+            return;
+        }
+
+        String name = key.fileName();
+        Path temp = Files.createTempFile(directory, "entry", ".tmp");
+        long bytes;
+        try {
+            write(temp, entry);
+            bytes = Files.size(temp);
+            Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict(name, bytes);
+    }
+
+    private synchronized void remember(Key key, Entry entry) {
+        long bytes = entry.estimatedBytes();
+        if (bytes > memoryBudget) {
+            return;
+        }
+
+        Entry previous = memory.put(key, entry);
+        if (previous != null) {
+            memoryUsed -= previous.estimatedBytes();
+        }
+        memoryUsed += bytes;
+
+        Iterator<Map.Entry<Key, Entry>> eldest = memory.entrySet().iterator();
+        while (memoryUsed > memoryBudget && eldest.hasNext()) {
+            memoryUsed -= eldest.next().getValue().estimatedBytes();
+            eldest.remove();
+        }
+    }
+
+    private void scanDirectory() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).toList();
+        }
+        // Modification times are refreshed on hits, so they order the files by last use
+        List<Map.Entry<Long, Path>> byTime = new ArrayList<>(files.size());
+        for (Path file : files) {
+            try {
+                byTime.add(Map.entry(Files.getLastModifiedTime(file).toMillis(), file));
+            } catch (NoSuchFileException e) {
+                // deleted by another instance meanwhile
+            }
+        }
+        byTime.sort(Map.Entry.comparingByKey());
+        for (Map.Entry<Long, Path> file : byTime) {
+            try {
+                long bytes = Files.size(file.getValue());
+                disk.put(file.getValue().getFileName().toString(), bytes);
+                diskUsed += bytes;
+            } catch (NoSuchFileException e) {
+                // deleted by another instance meanwhile
+            }
+        }
+    }
+
+    private void touch(String name) throws IOException {
+        synchronized (this) {
+            disk.get(name);
+        }
+        try {
+            Files.setLastModifiedTime(directory.resolve(name), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // evicted meanwhile
+        }
+    }
+
+    private void evict(String name, long bytes) throws IOException {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long previous = disk.put(name, bytes);
+            diskUsed += bytes - (previous == null ? 0 : previous);
+
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskUsed > diskBudget && eldest.hasNext()) {
+                Map.Entry<String, Long> file = eldest.next();
+                diskUsed -= file.getValue();
+                evicted.add(file.getKey());
+                eldest.remove();
+            }
+        }
+        for (String file : evicted) {
+            Files.deleteIfExists(directory.resolve(file));
+        }
+    }
+
+    private static void write(Path file, Entry entry) throws IOException {
+        BloodCellAnalyser.AnalysisResult result = entry.getResult();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entry.getWidth());
+            out.writeInt(entry.getHeight());
+            out.writeInt(result.getRedCellCount());
+            out.writeInt(result.getWhiteCellCount());
+
+            List<BloodCellAnalyser.CellInfo> cells = result.getCells();
+            out.writeInt(cells.size());
+            for (BloodCellAnalyser.CellInfo cell : cells) {
+                out.writeByte(cell.color.ordinal());
+                out.writeInt(cell.id);
+                out.writeInt(cell.size);
+                out.writeInt(cell.minX);
+                out.writeInt(cell.minY);
+                out.writeInt(cell.maxX);
+                out.writeInt(cell.maxY);
+                out.writeBoolean(cell.isCluster);
+                out.writeInt(cell.estimatedCellCount);
+                writeShape(out, cell);
+                out.writeInt(cell.subCells.size());
+                for (BloodCellAnalyser.CellInfo part : cell.subCells) {
+                    out.writeInt(part.size);
+                    out.writeInt(part.minX);
+                    out.writeInt(part.minY);
+                    out.writeInt(part.maxX);
+                    out.writeInt(part.maxY);
+                    writeShape(out, part);
+                }
+            }
+
+            LabelMap labelMap = entry.getLabelMap();
+            out.writeBoolean(labelMap != null);
+            if (labelMap != null) {
+                out.write(pack(labelMap.getLabels(), labelMap.getWidth() * labelMap.getHeight()));
+            }
+        }
+    }
+
+    private static Entry read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a result cache file: " + file);
+            }
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int redCount = in.readInt();
+            int whiteCount = in.readInt();
+
+            int cellCount = in.readInt();
+            BloodCellAnalyser.CellType[] types = BloodCellAnalyser.CellType.values();
+            List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>(cellCount);
+            for (int i = 0; i < cellCount; i++) {
+                BloodCellAnalyser.CellInfo cell = new BloodCellAnalyser.CellInfo();
+                cell.color = types[in.readByte()];
+                cell.id = in.readInt();
+                cell.size = in.readInt();
+                cell.minX = in.readInt();
+                cell.minY = in.readInt();
+                cell.maxX = in.readInt();
+                cell.maxY = in.readInt();
+                cell.isCluster = in.readBoolean();
+                cell.estimatedCellCount = in.readInt();
+                readShape(in, cell);
+                cell.subCells = readSubCells(in, cell.color);
+                cells.add(cell);
+            }
+
+            LabelMap labelMap = null;
+            if (in.readBoolean()) {
+                byte[] packed = new byte[(width * height + 3) / 4];
+                in.readFully(packed);
+                labelMap = new LabelMap(width, height, unpack(packed, width * height));
+            }
+
+            return new Entry(width, height,
+                    new BloodCellAnalyser.AnalysisResult(List.copyOf(cells), redCount, whiteCount), labelMap);
+        }
+    }
+
+    private static List<BloodCellAnalyser.CellInfo> readSubCells(DataInputStream in, BloodCellAnalyser.CellType color)
+            throws IOException {
+        int count = in.readInt();
+        if (count == 0) {
+            return List.of();
+        }
+        BloodCellAnalyser.CellInfo[] parts = new BloodCellAnalyser.CellInfo[count];
+        for (int i = 0; i < count; i++) {
+            parts[i] = new BloodCellAnalyser.CellInfo();
+            parts[i].color = color;
+            parts[i].size = in.readInt();
+            parts[i].minX = in.readInt();
+            parts[i].minY = in.readInt();
+            parts[i].maxX = in.readInt();
+            parts[i].maxY = in.readInt();
+            readShape(in, parts[i]);
+        }
+        return List.of(parts);
+    }
+
+    private static void writeShape(DataOutputStream out, BloodCellAnalyser.CellInfo cell) throws IOException {
+        out.writeLong(cell.sumX);
+        out.writeLong(cell.sumY);
+        out.writeLong(cell.sumXX);
+        out.writeLong(cell.sumYY);
+        out.writeLong(cell.sumXY);
+        out.writeInt(cell.perimeter);
+    }
+
+    private static void readShape(DataInputStream in, BloodCellAnalyser.CellInfo cell) throws IOException {
+        cell.sumX = in.readLong();
+        cell.sumY = in.readLong();
+        cell.sumXX = in.readLong();
+        cell.sumYY = in.readLong();
+        cell.sumXY = in.readLong();
+        cell.perimeter = in.readInt();
+    }
+
+    // Labels are 0..2, so four fit in a byte
+    private static byte[] pack(byte[] labels, int count) {
+        byte[] packed = new byte[(count + 3) / 4];
+        for (int i = 0; i < count; i++) {
+            packed[i >> 2] |= (byte) (labels[i] << ((i & 3) << 1));
+        }
+        return packed;
+    }
+
+    private static byte[] unpack(byte[] packed, int count) {
+        byte[] labels = new byte[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = (byte) (packed[i >> 2] >> ((i & 3) << 1) & 3);
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Supplies an image as consecutive bands of ARGB rows, so it never has to be held in memory whole.
+ */
+public interface RowBandSource extends AutoCloseable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Decodes rows {@code [y, y + rows)} into {@code argb}, row-major with a stride of the image width.
+     * Bands are read in order from the top, and sources may rely on that.
+     */
+    void readRows(int y, int rows, int[] argb) throws IOException;
+
+    @Override
+    void close() throws IOException;
+
+    /**
+     * A band source for an image file that decodes each row once: PNG files are decoded in a
+     * single forward pass and TIFF files by strip or tile. Other formats are rejected.
+     */
+    static RowBandSource open(Path file) throws IOException {
+        byte[] head = new byte[PngRowBandSource.SIGNATURE.length];
+        try (InputStream in = Files.newInputStream(file)) {
+            head = Arrays.copyOf(head, in.readNBytes(head, 0, head.length));
+        }
+        if (Arrays.equals(head, PngRowBandSource.SIGNATURE)) {
+            return new PngRowBandSource(file);
+        }
+        return new ImageIORowBandSource(file);
+    }
+}
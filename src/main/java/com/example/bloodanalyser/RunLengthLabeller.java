@@ -0,0 +1,246 @@
+package com.example.bloodanalyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scan-based two-pass labeller working on horizontal runs of same-class pixels.
+ * Background pixels are only skipped over, and size, bounding box and shape moments
+ * are merged into the component roots as runs are joined, so no second image pass is needed.
+ * Instances reuse their run tables between calls and are not thread-safe.
+ */
+public class RunLengthLabeller implements ComponentLabeller {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] parent = new int[INITIAL_CAPACITY];
+    private byte[] type = new byte[INITIAL_CAPACITY];
+    private int[] size = new int[INITIAL_CAPACITY];
+    private int[] minX = new int[INITIAL_CAPACITY];
+    private int[] maxX = new int[INITIAL_CAPACITY];
+    private int[] minY = new int[INITIAL_CAPACITY];
+    private int[] maxY = new int[INITIAL_CAPACITY];
+    private int[] start = new int[INITIAL_CAPACITY];
+    private int[] end = new int[INITIAL_CAPACITY];
+    private final ShapeAccumulator shape = new ShapeAccumulator(INITIAL_CAPACITY);
+    private int count;
+    private int[] componentOf = new int[INITIAL_CAPACITY];
+    // Start, end and run of the previous and the current row
+    private final int[][] rowRuns = new int[6][0];
+    private int[] rowFirstRun;
+
+    @Override
+    public List<BloodCellAnalyser.CellInfo> label(LabelMap labelMap) {
+        return labelRows(labelMap, 0, labelMap.getHeight()).cells;
+    }
+
+    /**
+     * Labels the whole map and also returns every run with the index of its component.
+     */
+    RunTable labelRuns(LabelMap labelMap) {
+        int height = labelMap.getHeight();
+        rowFirstRun = new int[height + 1];
+        try {
+            Strip strip = labelRows(labelMap, 0, height);
+            rowFirstRun[height] = count;
+
+            RunTable table = new RunTable();
+            table.cells = strip.cells;
+            table.rowFirstRun = rowFirstRun;
+            table.start = Arrays.copyOf(start, count);
+            table.end = Arrays.copyOf(end, count);
+            table.component = new int[count];
+            for (int i = 0; i < count; i++) {
+                table.component[i] = componentOf[find(i)];
+            }
+            return table;
+        } finally {
+            rowFirstRun = null;
+        }
+    }
+
+    Strip labelRows(LabelMap labelMap, int fromY, int toY) {
+        int width = labelMap.getWidth();
+        int height = labelMap.getHeight();
+        byte[] labels = labelMap.getLabels();
+        Strip strip = new Strip();
+
+        count = 0;
+        if (rowRuns[0].length < width) {
+            for (int i = 0; i < rowRuns.length; i++) {
+                rowRuns[i] = new int[width];
+            }
+        }
+        int[] prevStart = rowRuns[0];
+        int[] prevEnd = rowRuns[1];
+        int[] prevRun = rowRuns[2];
+        int[] curStart = rowRuns[3];
+        int[] curEnd = rowRuns[4];
+        int[] curRun = rowRuns[5];
+        int prevCount = 0;
+
+        for (int y = fromY; y < toY; y++) {
+            if (rowFirstRun != null) {
+                rowFirstRun[y - fromY] = count;
+            }
+            int rowStart = y * width;
+            // Rows outside the strip still belong to the map, so boundaries match a whole-map labelling
+            byte[] above = y > 0 ? labels : null;
+            byte[] below = y + 1 < height ? labels : null;
+            int curCount = 0;
+            int j = 0;
+            int x = 0;
+
+            while (x < width) {
+                byte label = labels[rowStart + x];
+                if (label == LabelMap.WHITE) {
+                    x++;
+                    continue;
+                }
+
+                int start = x;
+                while (x < width && labels[rowStart + x] == label) {
+                    x++;
+                }
+                int end = x - 1;
+
+                int run = newRun(label, start, end, y,
+                        ShapeAccumulator.boundaryPixels(label, start, end, above, rowStart - width, below, rowStart + width));
+                curStart[curCount] = start;
+                curEnd[curCount] = end;
+                curRun[curCount] = run;
+                curCount++;
+
+                while (j < prevCount && prevEnd[j] < start) {
+                    j++;
+                }
+                for (int k = j; k < prevCount && prevStart[k] <= end; k++) {
+                    if (type[prevRun[k]] == label) {
+                        union(prevRun[k], run);
+                    }
+                }
+            }
+
+            if (y == fromY) {
+                strip.topStart = Arrays.copyOf(curStart, curCount);
+                strip.topEnd = Arrays.copyOf(curEnd, curCount);
+                strip.topComponent = Arrays.copyOf(curRun, curCount);
+            }
+
+            int[] swap = prevStart; prevStart = curStart; curStart = swap;
+            swap = prevEnd; prevEnd = curEnd; curEnd = swap;
+            swap = prevRun; prevRun = curRun; curRun = swap;
+            prevCount = curCount;
+        }
+
+        if (componentOf.length < count) {
+            componentOf = new int[Math.max(count, componentOf.length * 2)];
+        }
+        strip.cells = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (parent[i] != i) continue;
+
+            BloodCellAnalyser.CellInfo ci = new BloodCellAnalyser.CellInfo();
+            ci.color = BloodCellAnalyser.CellType.of(type[i]);
+            ci.size = size[i];
+            ci.minX = minX[i];
+            ci.maxX = maxX[i];
+            ci.minY = minY[i];
+            ci.maxY = maxY[i];
+            shape.writeTo(i, ci);
+            componentOf[i] = strip.cells.size();
+            strip.cells.add(ci);
+        }
+
+        if (strip.topStart == null) {
+            strip.topStart = strip.topEnd = strip.topComponent = new int[0];
+        }
+        for (int i = 0; i < strip.topComponent.length; i++) {
+            strip.topComponent[i] = componentOf[find(strip.topComponent[i])];
+        }
+        strip.bottomStart = Arrays.copyOf(prevStart, prevCount);
+        strip.bottomEnd = Arrays.copyOf(prevEnd, prevCount);
+        strip.bottomComponent = new int[prevCount];
+        for (int i = 0; i < prevCount; i++) {
+            strip.bottomComponent[i] = componentOf[find(prevRun[i])];
+        }
+        return strip;
+    }
+
+    private int newRun(byte label, int start, int end, int y, int boundaryPixels) {
+        if (count == parent.length) {
+            grow();
+        }
+        int run = count++;
+        parent[run] = run;
+        type[run] = label;
+        size[run] = end - start + 1;
+        minX[run] = start;
+        maxX[run] = end;
+        minY[run] = y;
+        maxY[run] = y;
+        this.start[run] = start;
+        this.end[run] = end;
+        shape.setRun(run, y, start, end, boundaryPixels);
+        return run;
+    }
+
+    private int find(int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    // The lower (earlier) run always becomes the root, so roots stay in raster order.
+    private void union(int p, int q) {
+        int rootP = find(p);
+        int rootQ = find(q);
+        if (rootP == rootQ) return;
+
+        int root = Math.min(rootP, rootQ);
+        int child = Math.max(rootP, rootQ);
+        parent[child] = root;
+        size[root] += size[child];
+        minX[root] = Math.min(minX[root], minX[child]);
+        maxX[root] = Math.max(maxX[root], maxX[child]);
+        minY[root] = Math.min(minY[root], minY[child]);
+        maxY[root] = Math.max(maxY[root], maxY[child]);
+        shape.merge(root, child);
+    }
+
+    private void grow() {
+        int capacity = parent.length * 2;
+        parent = Arrays.copyOf(parent, capacity);
+        type = Arrays.copyOf(type, capacity);
+        size = Arrays.copyOf(size, capacity);
+        minX = Arrays.copyOf(minX, capacity);
+        maxX = Arrays.copyOf(maxX, capacity);
+        minY = Arrays.copyOf(minY, capacity);
+        maxY = Arrays.copyOf(maxY, capacity);
+        start = Arrays.copyOf(start, capacity);
+        end = Arrays.copyOf(end, capacity);
+        shape.ensureCapacity(capacity);
+    }
+
+    /**
+     * Components of a band of rows, plus the runs of its first and last row
+     * (as indices into {@code cells}) so neighbouring bands can be stitched together.
+     */
+    static class Strip {
+        List<BloodCellAnalyser.CellInfo> cells;
+        int[] topStart, topEnd, topComponent;
+        int[] bottomStart, bottomEnd, bottomComponent;
+    }
+
+    /**
+     * All foreground runs in raster order; the runs of row {@code y} are
+     * {@code rowFirstRun[y]} (inclusive) to {@code rowFirstRun[y + 1]} (exclusive).
+     */
+    static class RunTable {
+        List<BloodCellAnalyser.CellInfo> cells;
+        int[] rowFirstRun;
+        int[] start, end, component;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Zeroed off-heap storage for the off-heap analysis backend, owned by an arena.
+ * <p>
+ * Without a directory the memory is allocated natively, which counts against the JVM's direct
+ * memory limit ({@code -XX:MaxDirectMemorySize}, by default the maximum heap size). With a
+ * directory it is a shared mapping of a new scratch file there, which the OS pages in and out
+ * as needed and which is not subject to that limit. The file is unlinked as soon as it is
+ * mapped, so nothing is left behind even if the process dies; the mapping lives until the
+ * arena is closed.
+ */
+final class ScratchMemory {
+    private ScratchMemory() {
+    }
+
+    static MemorySegment allocate(Arena arena, long bytes, Path directory) throws IOException {
+        if (directory == null) {
+            return arena.allocate(bytes, Long.BYTES);
+        }
+        Path file = Files.createTempFile(directory, "blood-analyser-", ".scratch");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            // Mapping past the end grows the file sparsely, so untouched pages take no disk space
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes, arena);
+        }
+    }
+}
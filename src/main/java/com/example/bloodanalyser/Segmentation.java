@@ -0,0 +1,24 @@
+package com.example.bloodanalyser;
+
+import java.util.List;
+
+/**
+ * A classified slide together with all of its connected components, before any size filtering.
+ */
+public class Segmentation {
+    private final LabelMap labelMap;
+    private final List<BloodCellAnalyser.CellInfo> components;
+
+    public Segmentation(LabelMap labelMap, List<BloodCellAnalyser.CellInfo> components) {
+        this.labelMap = labelMap;
+        this.components = components;
+    }
+
+    public LabelMap getLabelMap() {
+        return labelMap;
+    }
+
+    public List<BloodCellAnalyser.CellInfo> getComponents() {
+        return components;
+    }
+}
@@ -0,0 +1,344 @@
+package com.example.bloodanalyser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persisted segmentation: the per-pixel labelling of a slide plus its component table.
+ * <p>
+ * The file holds a fixed header, the component table as one column per field, a row index
+ * and the foreground runs of every row, varint encoded as (gap, length - 1, component).
+ * Files are opened with {@link FileChannel#map}, so opening is instant regardless of the
+ * slide size and looking up the component under a pixel only decodes that pixel's row.
+ * Components that were filtered out of the analysis keep id 0. Reads are thread-safe.
+ */
+public class SegmentationFile {
+    private static final int MAGIC = 0x42415347; // "BASG"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int INT_COLUMNS = 7;
+    private static final BloodCellAnalyser.CellType[] TYPES = BloodCellAnalyser.CellType.values();
+
+    private final MappedByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final int componentCount;
+    private final int redCellCount;
+    private final int whiteCellCount;
+    private final int typeColumn;
+    private final int clusterColumn;
+    private final int rowIndex;
+    private final int runs;
+
+    private SegmentationFile(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a segmentation file");
+        }
+        width = buffer.getInt(8);
+        height = buffer.getInt(12);
+        componentCount = buffer.getInt(16);
+        redCellCount = buffer.getInt(20);
+        whiteCellCount = buffer.getInt(24);
+
+        typeColumn = HEADER_BYTES + INT_COLUMNS * 4 * componentCount;
+        clusterColumn = typeColumn + componentCount;
+        rowIndex = align8(clusterColumn + componentCount);
+        runs = rowIndex + 8 * (height + 1);
+        if (runs > buffer.capacity()) {
+            throw new IOException("Truncated segmentation file");
+        }
+    }
+
+    public static SegmentationFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Segmentation file is larger than 2 GB: " + file);
+            }
+            return new SegmentationFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes the labelling of {@code labelMap} together with the result analysed from it.
+     * The file is written next to its destination and moved into place, so readers and
+     * concurrent writers never see a partial file.
+     */
+    public static void write(Path file, LabelMap labelMap, BloodCellAnalyser.AnalysisResult result)
+            throws IOException {
+        int width = labelMap.getWidth();
+        int height = labelMap.getHeight();
+        RunLengthLabeller.RunTable table = new RunLengthLabeller().labelRuns(labelMap);
+        List<BloodCellAnalyser.CellInfo> components = table.cells;
+        BloodCellAnalyser.CellInfo[] analysed = matchAnalysedCells(components, result.getCells(), width);
+
+        VarintBuffer encoded = new VarintBuffer();
+        long[] rowOffsets = new long[height + 1];
+        for (int y = 0; y < height; y++) {
+            rowOffsets[y] = encoded.size;
+            int previousEnd = -1;
+            for (int run = table.rowFirstRun[y]; run < table.rowFirstRun[y + 1]; run++) {
+                encoded.put(table.start[run] - previousEnd - 1);
+                encoded.put(table.end[run] - table.start[run]);
+                encoded.put(table.component[run]);
+                previousEnd = table.end[run];
+            }
+        }
+        rowOffsets[height] = encoded.size;
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "segmentation", ".tmp");
+        try {
+            write(temp, width, height, result, components, analysed, rowOffsets, encoded);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void write(Path file, int width, int height, BloodCellAnalyser.AnalysisResult result,
+                              List<BloodCellAnalyser.CellInfo> components, BloodCellAnalyser.CellInfo[] analysed,
+                              long[] rowOffsets, VarintBuffer encoded) throws IOException {
+        int n = components.size();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(n);
+            out.writeInt(result.getRedCellCount());
+            out.writeInt(result.getWhiteCellCount());
+            out.writeInt(0);
+
+            for (int i = 0; i < n; i++) out.writeInt(analysed[i] == null ? 0 : analysed[i].id);
+            for (BloodCellAnalyser.CellInfo c : components) out.writeInt(c.size);
+            for (BloodCellAnalyser.CellInfo c : components) out.writeInt(c.minX);
+            for (BloodCellAnalyser.CellInfo c : components) out.writeInt(c.minY);
+            for (BloodCellAnalyser.CellInfo c : components) out.writeInt(c.maxX);
+            for (BloodCellAnalyser.CellInfo c : components) out.writeInt(c.maxY);
+            for (int i = 0; i < n; i++) out.writeInt(analysed[i] == null ? 0 : analysed[i].estimatedCellCount);
+            for (BloodCellAnalyser.CellInfo c : components) out.writeByte(c.color.ordinal());
+            for (int i = 0; i < n; i++) out.writeBoolean(analysed[i] != null && analysed[i].isCluster);
+
+            int written = HEADER_BYTES + (INT_COLUMNS * 4 + 2) * n;
+            for (int i = written; i < align8(written); i++) out.writeByte(0);
+            for (long offset : rowOffsets) out.writeLong(offset);
+            out.write(encoded.bytes, 0, encoded.size);
+        }
+    }
+
+    /*
+     * analyseComponents keeps the size-valid components and stable-sorts them by their top-left
+     * corner, so the analysed cells are a subsequence of the components in that same order.
+     */
+    private static BloodCellAnalyser.CellInfo[] matchAnalysedCells(List<BloodCellAnalyser.CellInfo> components,
+                                                                   List<BloodCellAnalyser.CellInfo> cells, int width) {
+        Integer[] order = new Integer[components.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> (long) components.get(i).minY * width + components.get(i).minX));
+
+        BloodCellAnalyser.CellInfo[] analysed = new BloodCellAnalyser.CellInfo[order.length];
+        int j = 0;
+        for (BloodCellAnalyser.CellInfo cell : cells) {
+            while (j < order.length && !sameComponent(components.get(order[j]), cell)) {
+                j++;
+            }
+            if (j == order.length) {
+                throw new IllegalArgumentException("Analysis result does not belong to this label map");
+            }
+            analysed[order[j++]] = cell;
+        }
+        return analysed;
+    }
+
+    private static boolean sameComponent(BloodCellAnalyser.CellInfo a, BloodCellAnalyser.CellInfo b) {
+        return a.color == b.color && a.size == b.size && a.minX == b.minX && a.minY == b.minY
+                && a.maxX == b.maxX && a.maxY == b.maxY;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getComponentCount() {
+        return componentCount;
+    }
+
+    /**
+     * Index of the component covering pixel (x, y), or -1 for background.
+     */
+    public int componentAt(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return -1;
+        }
+        int position = runs + (int) buffer.getLong(rowIndex + 8 * y);
+        int rowEnd = runs + (int) buffer.getLong(rowIndex + 8 * (y + 1));
+        int previousEnd = -1;
+        int[] value = new int[1];
+        while (position < rowEnd) {
+            position = readVarint(position, value);
+            int start = previousEnd + 1 + value[0];
+            if (start > x) {
+                return -1;
+            }
+            position = readVarint(position, value);
+            int end = start + value[0];
+            position = readVarint(position, value);
+            if (x <= end) {
+                return value[0];
+            }
+            previousEnd = end;
+        }
+        return -1;
+    }
+
+    public byte labelAt(int x, int y) {
+        int component = componentAt(x, y);
+        return component < 0 ? LabelMap.WHITE : getLabel(component);
+    }
+
+    /** Analysis id of the component, or 0 if it was filtered out by size. */
+    public int getId(int component) {
+        return intColumn(0, component);
+    }
+
+    public int getSize(int component) {
+        return intColumn(1, component);
+    }
+
+    public int getMinX(int component) {
+        return intColumn(2, component);
+    }
+
+    public int getMinY(int component) {
+        return intColumn(3, component);
+    }
+
+    public int getMaxX(int component) {
+        return intColumn(4, component);
+    }
+
+    public int getMaxY(int component) {
+        return intColumn(5, component);
+    }
+
+    public int getEstimatedCellCount(int component) {
+        return intColumn(6, component);
+    }
+
+    public BloodCellAnalyser.CellType getType(int component) {
+        return TYPES[buffer.get(typeColumn + component)];
+    }
+
+    public boolean isCluster(int component) {
+        return buffer.get(clusterColumn + component) != 0;
+    }
+
+    public BloodCellAnalyser.CellInfo getCell(int component) {
+        BloodCellAnalyser.CellInfo cell = new BloodCellAnalyser.CellInfo();
+        cell.id = getId(component);
+        cell.color = getType(component);
+        cell.size = getSize(component);
+        cell.minX = getMinX(component);
+        cell.minY = getMinY(component);
+        cell.maxX = getMaxX(component);
+        cell.maxY = getMaxY(component);
+        cell.isCluster = isCluster(component);
+        cell.estimatedCellCount = getEstimatedCellCount(component);
+        return cell;
+    }
+
+    /**
+     * Rebuilds the analysis result: the analysed components in id order.
+     */
+    public BloodCellAnalyser.AnalysisResult readResult() {
+        List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>();
+        for (int i = 0; i < componentCount; i++) {
+            if (getId(i) != 0) {
+                cells.add(getCell(i));
+            }
+        }
+        cells.sort(Comparator.comparingInt(c -> c.id));
+        return new BloodCellAnalyser.AnalysisResult(cells, redCellCount, whiteCellCount);
+    }
+
+    /**
+     * Decodes the full per-pixel label map.
+     */
+    public LabelMap readLabelMap() {
+        LabelMap labelMap = new LabelMap(width, height);
+        byte[] labels = labelMap.getLabels();
+        int[] value = new int[1];
+        for (int y = 0; y < height; y++) {
+            int position = runs + (int) buffer.getLong(rowIndex + 8 * y);
+            int rowEnd = runs + (int) buffer.getLong(rowIndex + 8 * (y + 1));
+            int rowStart = y * width;
+            int previousEnd = -1;
+            while (position < rowEnd) {
+                position = readVarint(position, value);
+                int start = previousEnd + 1 + value[0];
+                position = readVarint(position, value);
+                int end = start + value[0];
+                position = readVarint(position, value);
+                Arrays.fill(labels, rowStart + start, rowStart + end + 1, getLabel(value[0]));
+                previousEnd = end;
+            }
+        }
+        return labelMap;
+    }
+
+    private byte getLabel(int component) {
+        return getType(component) == BloodCellAnalyser.CellType.RED ? LabelMap.RED : LabelMap.PURPLE;
+    }
+
+    private int intColumn(int column, int component) {
+        return buffer.getInt(HEADER_BYTES + 4 * (column * componentCount + component));
+    }
+
+    private int readVarint(int position, int[] value) {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(position++);
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        value[0] = result;
+        return position;
+    }
+
+    private static int align8(int offset) {
+        return (offset + 7) & ~7;
+    }
+
+    private static class VarintBuffer {
+        byte[] bytes = new byte[1 << 16];
+        int size;
+
+        void put(int value) {
+            if (size + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.bloodanalyser;
+
+import java.util.Arrays;
+
+/**
+ * Running shape statistics for many components at once, one slot per component in parallel
+ * primitive arrays: the raw moments up to second order and the number of boundary pixels.
+ * Labellers fill a slot run by run and merge slots as components join, so the features need
+ * no image pass of their own.
+ * <p>
+ * A boundary pixel is a foreground pixel with a 4-neighbour outside its component or outside
+ * the image. Since same-class 4-neighbours always share a component, this only needs the
+ * class labels of the rows above and below a run.
+ */
+class ShapeAccumulator {
+    long[] sumX;
+    long[] sumY;
+    long[] sumXX;
+    long[] sumYY;
+    long[] sumXY;
+    int[] perimeter;
+
+    ShapeAccumulator(int capacity) {
+        sumX = new long[capacity];
+        sumY = new long[capacity];
+        sumXX = new long[capacity];
+        sumYY = new long[capacity];
+        sumXY = new long[capacity];
+        perimeter = new int[capacity];
+    }
+
+    void ensureCapacity(int capacity) {
+        if (sumX.length >= capacity) return;
+        sumX = Arrays.copyOf(sumX, capacity);
+        sumY = Arrays.copyOf(sumY, capacity);
+        sumXX = Arrays.copyOf(sumXX, capacity);
+        sumYY = Arrays.copyOf(sumYY, capacity);
+        sumXY = Arrays.copyOf(sumXY, capacity);
+        perimeter = Arrays.copyOf(perimeter, capacity);
+    }
+
+    /** Starts a slot from the run of pixels {@code start..end} on row {@code y}. */
+    void setRun(int slot, int y, int start, int end, int boundaryPixels) {
+        long n = end - start + 1;
+        long xs = n * (start + end) / 2;
+        sumX[slot] = xs;
+        sumY[slot] = n * y;
+        sumXX[slot] = squares(end) - squares(start - 1);
+        sumYY[slot] = n * y * y;
+        sumXY[slot] = xs * y;
+        perimeter[slot] = boundaryPixels;
+    }
+
+    void merge(int into, int from) {
+        sumX[into] += sumX[from];
+        sumY[into] += sumY[from];
+        sumXX[into] += sumXX[from];
+        sumYY[into] += sumYY[from];
+        sumXY[into] += sumXY[from];
+        perimeter[into] += perimeter[from];
+    }
+
+    void copy(int from, ShapeAccumulator target, int to) {
+        target.sumX[to] = sumX[from];
+        target.sumY[to] = sumY[from];
+        target.sumXX[to] = sumXX[from];
+        target.sumYY[to] = sumYY[from];
+        target.sumXY[to] = sumXY[from];
+        target.perimeter[to] = perimeter[from];
+    }
+
+    void writeTo(int slot, BloodCellAnalyser.CellInfo cell) {
+        cell.sumX = sumX[slot];
+        cell.sumY = sumY[slot];
+        cell.sumXX = sumXX[slot];
+        cell.sumYY = sumYY[slot];
+        cell.sumXY = sumXY[slot];
+        cell.perimeter = perimeter[slot];
+    }
+
+    /**
+     * Boundary pixels of the run {@code start..end} of class {@code label}. The rows above and
+     * below are read at the given offsets; a null row lies outside the image.
+     */
+    static int boundaryPixels(byte label, int start, int end,
+                              byte[] above, int aboveOffset, byte[] below, int belowOffset) {
+        if (above == null || below == null || end - start < 2) {
+            return end - start + 1;
+        }
+        // The run's ends border pixels of another class
+        int count = 2;
+        for (int x = start + 1; x < end; x++) {
+            if (above[aboveOffset + x] != label || below[belowOffset + x] != label) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // 0^2 + 1^2 + ... + k^2
+    private static long squares(long k) {
+        return k * (k + 1) * (2 * k + 1) / 6;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.bloodanalyser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Analyses a slide band by band with a {@link StreamingLabeller}. Peak memory is a few
+ * bands of pixels plus the cells that pass the size filter, independent of image height.
+ */
+public class StreamingAnalyser {
+    public static final int DEFAULT_BAND_HEIGHT = 256;
+
+    private final ImageProcessor processor;
+    private final BloodCellAnalyser analyser;
+    private final int bandHeight;
+
+    public StreamingAnalyser(ImageProcessor processor, BloodCellAnalyser analyser) {
+        this(processor, analyser, DEFAULT_BAND_HEIGHT);
+    }
+
+    public StreamingAnalyser(ImageProcessor processor, BloodCellAnalyser analyser, int bandHeight) {
+        this.processor = processor;
+        this.analyser = analyser;
+        this.bandHeight = bandHeight;
+    }
+
+    public BloodCellAnalyser.AnalysisResult analyse(RowBandSource source) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int band = Math.max(1, Math.min(bandHeight, height));
+
+        List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>();
+        StreamingLabeller labeller = new StreamingLabeller(width, cell -> {
+            if (analyser.isValidSize(cell)) {
+                cells.add(cell);
+            }
+        });
+
+        int[] argb = new int[width * band];
+        byte[] labels = new byte[width * band];
+        for (int y = 0; y < height; y += band) {
+            int rows = Math.min(band, height - y);
+            source.readRows(y, rows, argb);
+            processor.classifyRange(argb, labels, 0, rows * width);
+            for (int row = 0; row < rows; row++) {
+                labeller.pushRow(labels, row * width);
+            }
+        }
+        labeller.finish();
+
+        return analyser.analyseComponents(cells, width);
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.bloodanalyser;
+
+import java.util.function.Consumer;
+
+/**
+ * Labels a slide one row at a time while keeping only the previous row's runs and the
+ * components still open on it. A component is handed to the sink as soon as a row no
+ * longer touches it, so memory is proportional to the image width, not its area.
+ */
+public class StreamingLabeller {
+    private final int width;
+    private final Consumer<BloodCellAnalyser.CellInfo> sink;
+
+    private int[] prevStart, prevEnd, prevComp;
+    private int[] curStart, curEnd, curComp;
+    private int prevCount;
+
+    // Ids [0, openCount) are the components open on the previous row; the
+    // current row's runs take the ids after them until the row is compacted.
+    private final int[] parent;
+    private final int[] remap;
+    private final boolean[] alive;
+    private byte[] type, nextType;
+    private int[] size, nextSize;
+    private int[] minX, nextMinX;
+    private int[] maxX, nextMaxX;
+    private int[] minY, nextMinY;
+    private int[] maxY, nextMaxY;
+    private ShapeAccumulator shape, nextShape;
+    // Copies of the last two rows; a row's boundary pixels are only known once the next row is in
+    private byte[] aboveRow, previousRow;
+    private int openCount;
+    private int y;
+
+    public StreamingLabeller(int width, Consumer<BloodCellAnalyser.CellInfo> sink) {
+        this.width = width;
+        this.sink = sink;
+
+        prevStart = new int[width];
+        prevEnd = new int[width];
+        prevComp = new int[width];
+        curStart = new int[width];
+        curEnd = new int[width];
+        curComp = new int[width];
+
+        int capacity = 2 * width;
+        parent = new int[capacity];
+        remap = new int[capacity];
+        alive = new boolean[width];
+        type = new byte[capacity];
+        size = new int[capacity];
+        minX = new int[capacity];
+        maxX = new int[capacity];
+        minY = new int[capacity];
+        maxY = new int[capacity];
+        nextType = new byte[capacity];
+        nextSize = new int[capacity];
+        nextMinX = new int[capacity];
+        nextMaxX = new int[capacity];
+        nextMinY = new int[capacity];
+        nextMaxY = new int[capacity];
+        shape = new ShapeAccumulator(capacity);
+        nextShape = new ShapeAccumulator(capacity);
+        aboveRow = new byte[width];
+        previousRow = new byte[width];
+    }
+
+    public void pushRow(byte[] labels, int offset) {
+        addPreviousRowBoundary(labels, offset);
+        int open = openCount;
+        int curCount = 0;
+        int j = 0;
+        int x = 0;
+
+        while (x < width) {
+            byte label = labels[offset + x];
+            if (label == LabelMap.WHITE) {
+                x++;
+                continue;
+            }
+
+            int start = x;
+            while (x < width && labels[offset + x] == label) {
+                x++;
+            }
+            int end = x - 1;
+
+            int id = open + curCount;
+            parent[id] = id;
+            type[id] = label;
+            size[id] = end - start + 1;
+            minX[id] = start;
+            maxX[id] = end;
+            minY[id] = y;
+            maxY[id] = y;
+            shape.setRun(id, y, start, end, 0);
+            curStart[curCount] = start;
+            curEnd[curCount] = end;
+            curCount++;
+
+            while (j < prevCount && prevEnd[j] < start) {
+                j++;
+            }
+            for (int k = j; k < prevCount && prevStart[k] <= end; k++) {
+                if (type[prevComp[k]] == label) {
+                    union(prevComp[k], id);
+                }
+            }
+        }
+
+        for (int i = 0; i < open; i++) {
+            alive[i] = false;
+        }
+        for (int i = 0; i < curCount; i++) {
+            int root = find(open + i);
+            if (root < open) {
+                alive[root] = true;
+            }
+        }
+        for (int i = 0; i < open; i++) {
+            if (parent[i] == i && !alive[i]) {
+                emit(i);
+            }
+        }
+
+        compact(open + curCount, curCount, open);
+
+        int[] swap = prevStart; prevStart = curStart; curStart = swap;
+        swap = prevEnd; prevEnd = curEnd; curEnd = swap;
+        swap = prevComp; prevComp = curComp; curComp = swap;
+        prevCount = curCount;
+        byte[] swapRow = aboveRow; aboveRow = previousRow; previousRow = swapRow;
+        System.arraycopy(labels, offset, previousRow, 0, width);
+        y++;
+    }
+
+    public void finish() {
+        addPreviousRowBoundary(null, 0);
+        for (int i = 0; i < openCount; i++) {
+            emit(i);
+        }
+        openCount = 0;
+        prevCount = 0;
+        y = 0;
+    }
+
+    // Counts the boundary pixels of the previous row's runs into their components; null is below the image
+    private void addPreviousRowBoundary(byte[] below, int belowOffset) {
+        byte[] above = y >= 2 ? aboveRow : null;
+        for (int k = 0; k < prevCount; k++) {
+            int id = prevComp[k];
+            shape.perimeter[id] += ShapeAccumulator.boundaryPixels(type[id], prevStart[k], prevEnd[k],
+                    above, 0, below, belowOffset);
+        }
+    }
+
+    // Renumbers the components touched by the current row to 0..n-1 for the next row.
+    private void compact(int used, int curCount, int open) {
+        for (int i = 0; i < used; i++) {
+            remap[i] = -1;
+        }
+
+        int next = 0;
+        for (int i = 0; i < curCount; i++) {
+            int root = find(open + i);
+            if (remap[root] < 0) {
+                remap[root] = next;
+                nextType[next] = type[root];
+                nextSize[next] = size[root];
+                nextMinX[next] = minX[root];
+                nextMaxX[next] = maxX[root];
+                nextMinY[next] = minY[root];
+                nextMaxY[next] = maxY[root];
+                shape.copy(root, nextShape, next);
+                next++;
+            }
+            curComp[i] = remap[root];
+        }
+
+        byte[] swapType = type; type = nextType; nextType = swapType;
+        int[] swap = size; size = nextSize; nextSize = swap;
+        swap = minX; minX = nextMinX; nextMinX = swap;
+        swap = maxX; maxX = nextMaxX; nextMaxX = swap;
+        swap = minY; minY = nextMinY; nextMinY = swap;
+        swap = maxY; maxY = nextMaxY; nextMaxY = swap;
+        ShapeAccumulator swapShape = shape; shape = nextShape; nextShape = swapShape;
+
+        for (int i = 0; i < next; i++) {
+            parent[i] = i;
+        }
+        openCount = next;
+    }
+
+    private void emit(int id) {
+        BloodCellAnalyser.CellInfo ci = new BloodCellAnalyser.CellInfo();
+        ci.color = BloodCellAnalyser.CellType.of(type[id]);
+        ci.size = size[id];
+        ci.minX = minX[id];
+        ci.maxX = maxX[id];
+        ci.minY = minY[id];
+        ci.maxY = maxY[id];
+        shape.writeTo(id, ci);
+        sink.accept(ci);
+    }
+
+    private int find(int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    private void union(int p, int q) {
+        int rootP = find(p);
+        int rootQ = find(q);
+        if (rootP == rootQ) return;
+
+        int root = Math.min(rootP, rootQ);
+        int child = Math.max(rootP, rootQ);
+        parent[child] = root;
+        size[root] += size[child];
+        minX[root] = Math.min(minX[root], minX[child]);
+        maxX[root] = Math.max(maxX[root], maxX[child]);
+        minY[root] = Math.min(minY[root], minY[child]);
+        maxY[root] = Math.max(maxY[root], maxY[child]);
+        shape.merge(root, child);
+    }
+}
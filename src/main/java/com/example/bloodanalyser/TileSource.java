@@ -0,0 +1,92 @@
+package com.example.bloodanalyser;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+
+import java.util.List;
+
+/**
+ * Full-resolution pixels of an image, read a rectangular region at a time, for
+ * {@link TiledImageView}. Implementations must allow reads from several threads at once.
+ */
+public interface TileSource {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Writes the region at ({@code x}, {@code y}) of {@code width} x {@code height} pixels into
+     * {@code argb}, row-major with a stride of {@code width}.
+     */
+    void read(int x, int y, int width, int height, int[] argb);
+
+    static TileSource of(Image image) {
+        return new TileSource() {
+            @Override
+            public int getWidth() {
+                return (int) image.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return (int) image.getHeight();
+            }
+
+            @Override
+            public void read(int x, int y, int width, int height, int[] argb) {
+                image.getPixelReader().getPixels(x, y, width, height,
+                        PixelFormat.getIntArgbInstance(), argb, 0, width);
+            }
+        };
+    }
+
+    /** The tricolour rendering of a label map. */
+    static TileSource of(LabelMap labelMap) {
+        return new TileSource() {
+            @Override
+            public int getWidth() {
+                return labelMap.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return labelMap.getHeight();
+            }
+
+            @Override
+            public void read(int x, int y, int width, int height, int[] argb) {
+                ImageProcessor.toTriColour(labelMap, x, y, width, height, argb);
+            }
+        };
+    }
+
+    /**
+     * The base image with the result's cells drawn over it; each region only draws the cells
+     * the result's index finds near it.
+     */
+    static TileSource overlay(TileSource base, BloodCellAnalyser.AnalysisResult result, boolean showNumbering) {
+        OverlayRenderer renderer = new OverlayRenderer(showNumbering);
+        CellIndex index = result.getCellIndex();
+        // Box outlines sit one pixel outside the cell; id numbers may stick out further
+        int margin = showNumbering ? 32 : 1;
+        return new TileSource() {
+            @Override
+            public int getWidth() {
+                return base.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return base.getHeight();
+            }
+
+            @Override
+            public void read(int x, int y, int width, int height, int[] argb) {
+                base.read(x, y, width, height, argb);
+                List<BloodCellAnalyser.CellInfo> cells = index.within(x - margin, y - margin,
+                        x + width - 1 + margin, y + height - 1 + margin);
+                renderer.draw(argb, x, y, width, height, getWidth(), getHeight(), cells);
+            }
+        };
+    }
+}
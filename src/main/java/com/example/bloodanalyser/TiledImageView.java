@@ -0,0 +1,403 @@
+package com.example.bloodanalyser;
+
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Zoomable, pannable view of a {@link TileSource} that only ever draws the tiles in view.
+ * <p>
+ * The image is cut into square tiles at a pyramid of mip levels, level n holding the image
+ * downsampled by 2^n; each view draws the level nearest its zoom. Tiles are made on
+ * background threads, level 0 from the source and each higher level from the four tiles
+ * below it, and kept in a least recently used cache of fixed size, so memory stays bounded
+ * however large the image. Until a tile is ready its area shows the nearest coarser tile
+ * that is cached.
+ * <p>
+ * Scrolling zooms around the cursor and dragging pans; drags with Shift held are left to
+ * the caller, such as for selecting a region.
+ */
+public final class TiledImageView extends Region {
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_CACHED_TILES = 384;
+    private static final int WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final double ZOOM_STEP = 1.005;
+    private static final double MAX_SCALE = 16;
+    private static final Color BACKGROUND = Color.gray(0.85);
+    private static final Color SELECTION = Color.DARKORANGE;
+
+    private static final ExecutorService TILE_EXECUTOR = Executors.newFixedThreadPool(WORKERS, r -> {
+        Thread thread = new Thread(r, "tile-render");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Canvas canvas = new Canvas();
+    private final Map<TileKey, WritableImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    // Tiles the current view is missing, in drawing order; replaced on every redraw
+    private final LinkedHashSet<TileKey> wanted = new LinkedHashSet<>();
+    private int busyWorkers;
+    private boolean redrawQueued;
+
+    private TileSource source;
+    // Bumped whenever the source changes, so tiles of an old source are dropped
+    private int generation;
+    private int levels;
+    // View pixels per image pixel, and the image point at the view's top-left corner
+    private double scale = 1;
+    private double originX;
+    private double originY;
+    private Rectangle2D selection;
+    private boolean fitPending;
+
+    private double dragX;
+    private double dragY;
+    private boolean panning;
+
+    public TiledImageView() {
+        getChildren().add(canvas);
+        setMinSize(0, 0);
+        setPrefSize(200, 150);
+
+        setOnScroll(this::zoom);
+        addEventHandler(MouseEvent.MOUSE_PRESSED, e -> {
+            panning = e.getButton() == MouseButton.PRIMARY && !e.isShiftDown();
+            dragX = e.getX();
+            dragY = e.getY();
+        });
+        addEventHandler(MouseEvent.MOUSE_DRAGGED, e -> {
+            if (!panning) return;
+            originX -= (e.getX() - dragX) / scale;
+            originY -= (e.getY() - dragY) / scale;
+            dragX = e.getX();
+            dragY = e.getY();
+            clampOrigin();
+            redraw();
+        });
+        addEventHandler(MouseEvent.MOUSE_RELEASED, e -> panning = false);
+    }
+
+    /**
+     * Shows a new image, or nothing if {@code source} is null. The zoom and position are kept
+     * when the new image has the same size as the old one, such as for a re-analysis of the
+     * same slide; otherwise the whole image is fitted into the view.
+     */
+    public void setSource(TileSource source) {
+        boolean sameSize = this.source != null && source != null
+                && this.source.getWidth() == source.getWidth() && this.source.getHeight() == source.getHeight();
+        synchronized (tiles) {
+            this.source = source;
+            generation++;
+            tiles.clear();
+            wanted.clear();
+        }
+        if (source != null) {
+            int longest = Math.max(source.getWidth(), source.getHeight());
+            levels = 1;
+            while ((long) TILE_SIZE << (levels - 1) < longest) {
+                levels++;
+            }
+            if (!sameSize) {
+                fit();
+            }
+        }
+        selection = null;
+        redraw();
+    }
+
+    public TileSource getSource() {
+        return source;
+    }
+
+    /** Zooms so the whole image fits in the view, without magnifying it. */
+    public void fit() {
+        if (source == null) return;
+        // A view in a hidden tab has no size yet; it fits once it is laid out
+        fitPending = getWidth() <= 0 || getHeight() <= 0;
+        if (fitPending) return;
+        scale = Math.min(1, Math.min(getWidth() / source.getWidth(), getHeight() / source.getHeight()));
+        clampOrigin();
+        redraw();
+    }
+
+    /** The image x coordinate shown at view x coordinate {@code viewX}. */
+    public double toImageX(double viewX) {
+        return originX + viewX / scale;
+    }
+
+    /** The image y coordinate shown at view y coordinate {@code viewY}. */
+    public double toImageY(double viewY) {
+        return originY + viewY / scale;
+    }
+
+    /** Outlines a rectangle given in image coordinates, or removes the outline if null. */
+    public void setSelection(Rectangle2D selection) {
+        this.selection = selection;
+        redraw();
+    }
+
+    @Override
+    protected void layoutChildren() {
+        canvas.setWidth(getWidth());
+        canvas.setHeight(getHeight());
+        if (fitPending) {
+            fit();
+        } else {
+            clampOrigin();
+        }
+        redraw();
+    }
+
+    private void zoom(ScrollEvent event) {
+        if (source == null || event.getDeltaY() == 0) return;
+        double imageX = toImageX(event.getX());
+        double imageY = toImageY(event.getY());
+        double fitScale = Math.min(getWidth() / source.getWidth(), getHeight() / source.getHeight());
+        double minScale = Math.min(1, fitScale);
+        scale = Math.max(minScale, Math.min(MAX_SCALE, scale * Math.pow(ZOOM_STEP, event.getDeltaY())));
+        originX = imageX - event.getX() / scale;
+        originY = imageY - event.getY() / scale;
+        clampOrigin();
+        redraw();
+        event.consume();
+    }
+
+    // Keeps the image in view, centring it along any side where it is smaller than the view
+    private void clampOrigin() {
+        if (source == null) return;
+        originX = clampAxis(originX, getWidth() / scale, source.getWidth());
+        originY = clampAxis(originY, getHeight() / scale, source.getHeight());
+    }
+
+    private static double clampAxis(double origin, double visible, int size) {
+        if (visible >= size) {
+            return (size - visible) / 2;
+        }
+        return Math.max(0, Math.min(size - visible, origin));
+    }
+
+    private void redraw() {
+        GraphicsContext graphics = canvas.getGraphicsContext2D();
+        graphics.setFill(BACKGROUND);
+        graphics.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        if (source == null) return;
+
+        int level = 0;
+        while (level + 1 < levels && scale * (1 << (level + 1)) <= 1) {
+            level++;
+        }
+        graphics.setImageSmoothing(scale * (1 << level) < 1);
+
+        double span = (double) TILE_SIZE * (1 << level);
+        int firstColumn = Math.max(0, (int) Math.floor(originX / span));
+        int firstRow = Math.max(0, (int) Math.floor(originY / span));
+        int lastColumn = Math.min(columns(level) - 1, (int) Math.floor(toImageX(canvas.getWidth()) / span));
+        int lastRow = Math.min(rows(level) - 1, (int) Math.floor(toImageY(canvas.getHeight()) / span));
+
+        List<TileKey> missing = new ArrayList<>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                TileKey key = new TileKey(level, column, row);
+                if (!drawTile(graphics, key)) {
+                    missing.add(key);
+                    drawFallback(graphics, key);
+                }
+            }
+        }
+
+        if (selection != null) {
+            graphics.setStroke(SELECTION);
+            graphics.setLineWidth(1);
+            graphics.strokeRect((selection.getMinX() - originX) * scale, (selection.getMinY() - originY) * scale,
+                    selection.getWidth() * scale, selection.getHeight() * scale);
+        }
+        request(missing);
+    }
+
+    // Draws the tile if it is cached
+    private boolean drawTile(GraphicsContext graphics, TileKey key) {
+        WritableImage tile;
+        synchronized (tiles) {
+            tile = tiles.get(key);
+        }
+        if (tile == null) return false;
+        double span = (double) TILE_SIZE * (1 << key.level);
+        graphics.drawImage(tile, (key.column * span - originX) * scale, (key.row * span - originY) * scale,
+                tile.getWidth() * (1 << key.level) * scale, tile.getHeight() * (1 << key.level) * scale);
+        return true;
+    }
+
+    // Draws the part of the nearest cached coarser tile that covers the missing one
+    private void drawFallback(GraphicsContext graphics, TileKey key) {
+        for (int up = 1; key.level + up < levels; up++) {
+            TileKey parent = new TileKey(key.level + up, key.column >> up, key.row >> up);
+            WritableImage tile;
+            synchronized (tiles) {
+                tile = tiles.get(parent);
+            }
+            if (tile == null) continue;
+
+            double part = (double) TILE_SIZE / (1 << up);
+            double sourceX = (key.column - (parent.column << up)) * part;
+            double sourceY = (key.row - (parent.row << up)) * part;
+            double sourceWidth = Math.min(part, tile.getWidth() - sourceX);
+            double sourceHeight = Math.min(part, tile.getHeight() - sourceY);
+            if (sourceWidth <= 0 || sourceHeight <= 0) return;
+            double factor = (1 << parent.level) * scale;
+            graphics.drawImage(tile, sourceX, sourceY, sourceWidth, sourceHeight,
+                    (parent.column * (double) TILE_SIZE * (1 << parent.level) - originX) * scale + sourceX * factor,
+                    (parent.row * (double) TILE_SIZE * (1 << parent.level) - originY) * scale + sourceY * factor,
+                    sourceWidth * factor, sourceHeight * factor);
+            return;
+        }
+    }
+
+    private void request(List<TileKey> missing) {
+        synchronized (tiles) {
+            wanted.clear();
+            wanted.addAll(missing);
+            while (busyWorkers < WORKERS && busyWorkers < wanted.size()) {
+                busyWorkers++;
+                TILE_EXECUTOR.execute(this::renderWanted);
+            }
+        }
+    }
+
+    private void renderWanted() {
+        while (true) {
+            TileKey key;
+            TileSource tileSource;
+            int tileGeneration;
+            synchronized (tiles) {
+                if (wanted.isEmpty()) {
+                    busyWorkers--;
+                    return;
+                }
+                key = wanted.iterator().next();
+                wanted.remove(key);
+                tileSource = source;
+                tileGeneration = generation;
+            }
+            if (render(tileSource, tileGeneration, key) != null) {
+                queueRedraw();
+            }
+        }
+    }
+
+    // Makes a tile and its missing descendants; returns null if the source changed meanwhile
+    private WritableImage render(TileSource tileSource, int tileGeneration, TileKey key) {
+        synchronized (tiles) {
+            if (generation != tileGeneration) return null;
+            WritableImage cached = tiles.get(key);
+            if (cached != null) return cached;
+        }
+
+        int span = TILE_SIZE << key.level;
+        int x = key.column * span;
+        int y = key.row * span;
+        int width = Math.min(TILE_SIZE, ceilShift(tileSource.getWidth() - x, key.level));
+        int height = Math.min(TILE_SIZE, ceilShift(tileSource.getHeight() - y, key.level));
+        int[] argb = new int[width * height];
+
+        if (key.level == 0) {
+            tileSource.read(x, y, width, height, argb);
+        } else {
+            int[] children = new int[4 * TILE_SIZE * TILE_SIZE];
+            int childrenWidth = 0;
+            int childrenHeight = 0;
+            for (int part = 0; part < 4; part++) {
+                TileKey childKey = new TileKey(key.level - 1, key.column * 2 + (part & 1), key.row * 2 + (part >> 1));
+                if (childKey.column >= columns(childKey.level) || childKey.row >= rows(childKey.level)) continue;
+                WritableImage child = render(tileSource, tileGeneration, childKey);
+                if (child == null) return null;
+                int childWidth = (int) child.getWidth();
+                int childHeight = (int) child.getHeight();
+                int offsetX = (part & 1) * TILE_SIZE;
+                int offsetY = (part >> 1) * TILE_SIZE;
+                child.getPixelReader().getPixels(0, 0, childWidth, childHeight, PixelFormat.getIntArgbInstance(),
+                        children, offsetY * 2 * TILE_SIZE + offsetX, 2 * TILE_SIZE);
+                childrenWidth = Math.max(childrenWidth, offsetX + childWidth);
+                childrenHeight = Math.max(childrenHeight, offsetY + childHeight);
+            }
+            downsample(children, 2 * TILE_SIZE, childrenWidth, childrenHeight, argb, width, height);
+        }
+
+        WritableImage tile = new WritableImage(width, height);
+        tile.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+        synchronized (tiles) {
+            if (generation != tileGeneration) return null;
+            tiles.put(key, tile);
+            while (tiles.size() > MAX_CACHED_TILES) {
+                tiles.remove(tiles.keySet().iterator().next());
+            }
+        }
+        return tile;
+    }
+
+    // Averages each 2x2 block of the source into one pixel; blocks cut by the edge average what is there
+    private static void downsample(int[] from, int stride, int fromWidth, int fromHeight,
+                                   int[] to, int toWidth, int toHeight) {
+        for (int y = 0; y < toHeight; y++) {
+            for (int x = 0; x < toWidth; x++) {
+                int a = 0, r = 0, g = 0, b = 0, count = 0;
+                for (int dy = 0; dy < 2 && 2 * y + dy < fromHeight; dy++) {
+                    for (int dx = 0; dx < 2 && 2 * x + dx < fromWidth; dx++) {
+                        int pixel = from[(2 * y + dy) * stride + 2 * x + dx];
+                        a += pixel >>> 24;
+                        r += pixel >> 16 & 0xFF;
+                        g += pixel >> 8 & 0xFF;
+                        b += pixel & 0xFF;
+                        count++;
+                    }
+                }
+                to[y * toWidth + x] = count == 0 ? 0
+                        : (a / count) << 24 | (r / count) << 16 | (g / count) << 8 | b / count;
+            }
+        }
+    }
+
+    private void queueRedraw() {
+        synchronized (tiles) {
+            if (redrawQueued) return;
+            redrawQueued = true;
+        }
+        Platform.runLater(() -> {
+            synchronized (tiles) {
+                redrawQueued = false;
+            }
+            redraw();
+        });
+    }
+
+    private int columns(int level) {
+        return (ceilShift(source.getWidth(), level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    private int rows(int level) {
+        return (ceilShift(source.getHeight(), level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    // value / 2^shift, rounded up
+    private static int ceilShift(int value, int shift) {
+        return (int) (((long) value + (1L << shift) - 1) >> shift);
+    }
+
+    private record TileKey(int level, int column, int row) {
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.bloodanalyser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Classifies and labels a slide in horizontal strips on a ForkJoinPool, then joins
+ * components that touch across strip borders. Results are identical to the
+ * sequential {@link RunLengthLabeller}, including component order.
+ */
+public class TiledSegmenter implements ComponentLabeller {
+    private static final int MIN_STRIP_HEIGHT = 64;
+
+    private final ForkJoinPool pool;
+    private final int stripHeight;
+
+    public TiledSegmenter() {
+        this(ForkJoinPool.commonPool(), 0);
+    }
+
+    public TiledSegmenter(ForkJoinPool pool, int stripHeight) {
+        this.pool = pool;
+        this.stripHeight = stripHeight;
+    }
+
+    public LabelMap classify(ImageProcessor processor, int[] argb, int width, int height) {
+        return classifyStrips(width, height, (labels, from, to) -> processor.classifyRange(argb, labels, from, to));
+    }
+
+    public LabelMap classify(ColourFeatureMap features, int redThreshold, int purpleThreshold) {
+        return classifyStrips(features.getWidth(), features.getHeight(),
+                (labels, from, to) -> features.classifyRange(redThreshold, purpleThreshold, labels, from, to));
+    }
+
+    private LabelMap classifyStrips(int width, int height, RangeClassifier classifier) {
+        byte[] labels = new byte[width * height];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int step = stripHeight(height);
+        for (int fromY = 0; fromY < height; fromY += step) {
+            int from = fromY * width;
+            int to = Math.min(height, fromY + step) * width;
+            tasks.add(() -> {
+                classifier.classify(labels, from, to);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+        return new LabelMap(width, height, labels);
+    }
+
+    @Override
+    public List<BloodCellAnalyser.CellInfo> label(LabelMap labelMap) {
+        int height = labelMap.getHeight();
+        List<Callable<RunLengthLabeller.Strip>> tasks = new ArrayList<>();
+        int step = stripHeight(height);
+        for (int fromY = 0; fromY < height; fromY += step) {
+            int from = fromY;
+            int to = Math.min(height, fromY + step);
+            tasks.add(() -> new RunLengthLabeller().labelRows(labelMap, from, to));
+        }
+        return merge(invokeAll(tasks));
+    }
+
+    /**
+     * Classifies every strip before labelling any: labelling a strip reads the rows next to it
+     * for boundary pixels, which belong to the neighbouring strips.
+     */
+    public Segmentation segment(ImageProcessor processor, int[] argb, int width, int height) {
+        LabelMap labelMap = classify(processor, argb, width, height);
+        return new Segmentation(labelMap, label(labelMap));
+    }
+
+    private int stripHeight(int height) {
+        if (stripHeight > 0) {
+            return stripHeight;
+        }
+        int strips = pool.getParallelism() * 4;
+        return Math.max(MIN_STRIP_HEIGHT, (height + strips - 1) / strips);
+    }
+
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Segmentation was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Segmentation failed", e.getCause());
+        }
+        return results;
+    }
+
+    // Components are numbered strip by strip, so the lowest id of a merged set is
+    // the part whose first pixel comes first in raster order.
+    private List<BloodCellAnalyser.CellInfo> merge(List<RunLengthLabeller.Strip> strips) {
+        List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>();
+        int[] offset = new int[strips.size()];
+        for (int i = 0; i < strips.size(); i++) {
+            offset[i] = cells.size();
+            cells.addAll(strips.get(i).cells);
+        }
+
+        int[] parent = new int[cells.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        for (int i = 0; i + 1 < strips.size(); i++) {
+            RunLengthLabeller.Strip upper = strips.get(i);
+            RunLengthLabeller.Strip lower = strips.get(i + 1);
+            int j = 0;
+            for (int r = 0; r < lower.topStart.length; r++) {
+                while (j < upper.bottomStart.length && upper.bottomEnd[j] < lower.topStart[r]) {
+                    j++;
+                }
+                for (int k = j; k < upper.bottomStart.length && upper.bottomStart[k] <= lower.topEnd[r]; k++) {
+                    int a = offset[i] + upper.bottomComponent[k];
+                    int b = offset[i + 1] + lower.topComponent[r];
+                    if (cells.get(a).color == cells.get(b).color) {
+                        union(parent, a, b);
+                    }
+                }
+            }
+        }
+
+        List<BloodCellAnalyser.CellInfo> merged = new ArrayList<>();
+        for (int i = 0; i < parent.length; i++) {
+            int root = find(parent, i);
+            if (root == i) {
+                merged.add(cells.get(i));
+                continue;
+            }
+            BloodCellAnalyser.CellInfo target = cells.get(root);
+            BloodCellAnalyser.CellInfo part = cells.get(i);
+            target.size += part.size;
+            target.minX = Math.min(target.minX, part.minX);
+            target.maxX = Math.max(target.maxX, part.maxX);
+            target.minY = Math.min(target.minY, part.minY);
+            target.maxY = Math.max(target.maxY, part.maxY);
+            target.sumX += part.sumX;
+            target.sumY += part.sumY;
+            target.sumXX += part.sumXX;
+            target.sumYY += part.sumYY;
+            target.sumXY += part.sumXY;
+            target.perimeter += part.perimeter;
+        }
+        return merged;
+    }
+
+    private static int find(int[] parent, int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    private static void union(int[] parent, int p, int q) {
+        int rootP = find(parent, p);
+        int rootQ = find(parent, q);
+        if (rootP == rootQ) return;
+        parent[Math.max(rootP, rootQ)] = Math.min(rootP, rootQ);
+    }
+
+    private interface RangeClassifier {
+        void classify(byte[] labels, int from, int to);
+    }
+}
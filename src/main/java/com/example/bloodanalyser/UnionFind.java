@@ -1,28 +1,82 @@
 package com.example.bloodanalyser;
 
+import java.util.Arrays;
+
+/**
+ * Union-find over the pixels of an image, with union by size and iterative path halving.
+ * <p>
+ * Every pixel starts as an implicit singleton, so constructing the structure writes
+ * nothing and background pixels that are never added or unioned cost no array write.
+ * Each root carries its component's pixel count, bounding box, shape moments, colour class
+ * and first pixel in parallel primitive arrays indexed by a slot, and slots are recycled when
+ * roots are merged, so the statistics only take space for live roots.
+ */
 public class UnionFind {
+    private static final int INITIAL_SLOTS = 1024;
+
+    // 0: implicit singleton; > 0: parent index + 1; < 0: root with slot -(value + 1)
     private final int[] parent;
-    private final int[] rank;
     private final int width;
     private final int height;
 
+    private int[] slotRoot = new int[INITIAL_SLOTS];
+    private int[] size = new int[INITIAL_SLOTS];
+    private int[] minX = new int[INITIAL_SLOTS];
+    private int[] maxX = new int[INITIAL_SLOTS];
+    private int[] minY = new int[INITIAL_SLOTS];
+    private int[] maxY = new int[INITIAL_SLOTS];
+    private int[] first = new int[INITIAL_SLOTS];
+    private byte[] colourClass = new byte[INITIAL_SLOTS];
+    private final ShapeAccumulator shape = new ShapeAccumulator(INITIAL_SLOTS);
+    private int[] freeSlots = new int[INITIAL_SLOTS];
+    private int slotCount;
+    private int freeCount;
+
     public UnionFind(int width, int height){
         this.width = width;
         this.height = height;
-        int n = width * height;
-        parent = new int[n];
-        rank = new int[n];
+        parent = new int[width * height];
+    }
 
-        for(int i = 0; i < n; i++){
-            parent[i] = i;
-            rank[i] = 0;
-        }
+    /**
+     * Materialises pixel {@code p} as a tracked singleton of the given colour class.
+     * Does nothing if the pixel already belongs to a tracked set.
+     */
+    public void add(int p, byte colour){
+        if (parent[p] != 0) return;
+
+        int slot = allocateSlot();
+        int x = p % width;
+        int y = p / width;
+        slotRoot[slot] = p;
+        size[slot] = 1;
+        minX[slot] = maxX[slot] = x;
+        minY[slot] = maxY[slot] = y;
+        first[slot] = p;
+        colourClass[slot] = colour;
+        shape.setRun(slot, y, x, x, 0);
+        parent[p] = -(slot + 1);
+    }
+
+    /**
+     * Counts tracked pixel {@code p} towards the boundary pixels of its set.
+     */
+    public void addBoundaryPixel(int p) {
+        shape.perimeter[slotOf(find(p))]++;
     }
 
     public int find(int p){
-        if (p != parent[p])
-            parent[p] = find(parent[p]);
-        return parent[p];
+        while (true) {
+            int up = parent[p];
+            if (up <= 0) return p;
+
+            int q = up - 1;
+            int grandParent = parent[q];
+            if (grandParent <= 0) return q;
+
+            parent[p] = grandParent;
+            p = grandParent - 1;
+        }
     }
 
     public void union(int p, int q){
@@ -31,13 +85,25 @@ public class UnionFind {
 
         if (rootP == rootQ) return;
 
-        if (rank[rootP] < rank[rootQ]){
-            parent[rootP] = rootQ;
-        } else {
-            parent[rootQ] = rootP;
-            if (rank[rootP] == rank[rootQ])
-                rank[rootP]++;
+        add(rootP, (byte) 0);
+        add(rootQ, (byte) 0);
+        int slotP = slotOf(rootP);
+        int slotQ = slotOf(rootQ);
+
+        if (size[slotP] < size[slotQ]){
+            int swap = rootP; rootP = rootQ; rootQ = swap;
+            swap = slotP; slotP = slotQ; slotQ = swap;
         }
+
+        parent[rootQ] = rootP + 1;
+        size[slotP] += size[slotQ];
+        minX[slotP] = Math.min(minX[slotP], minX[slotQ]);
+        maxX[slotP] = Math.max(maxX[slotP], maxX[slotQ]);
+        minY[slotP] = Math.min(minY[slotP], minY[slotQ]);
+        maxY[slotP] = Math.max(maxY[slotP], maxY[slotQ]);
+        first[slotP] = Math.min(first[slotP], first[slotQ]);
+        shape.merge(slotP, slotQ);
+        freeSlot(slotQ);
     }
 
     public int coordToIndex(int x, int y){
@@ -47,4 +113,84 @@ public class UnionFind {
     public boolean connected(int p, int q) {
         return find(p) == find(q);
     }
-}
\ No newline at end of file
+
+    /**
+     * Roots of all tracked sets, ordered by the raster position of each set's first pixel.
+     */
+    public int[] roots() {
+        long[] order = new long[slotCount - freeCount];
+        int n = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slotRoot[slot] >= 0) {
+                order[n++] = ((long) first[slot] << 32) | slot;
+            }
+        }
+        Arrays.sort(order);
+
+        int[] roots = new int[n];
+        for (int i = 0; i < n; i++) {
+            roots[i] = slotRoot[(int) order[i]];
+        }
+        return roots;
+    }
+
+    public int getSize(int root) {
+        return parent[root] == 0 ? 1 : size[slotOf(root)];
+    }
+
+    public int getMinX(int root) {
+        return parent[root] == 0 ? root % width : minX[slotOf(root)];
+    }
+
+    public int getMaxX(int root) {
+        return parent[root] == 0 ? root % width : maxX[slotOf(root)];
+    }
+
+    public int getMinY(int root) {
+        return parent[root] == 0 ? root / width : minY[slotOf(root)];
+    }
+
+    public int getMaxY(int root) {
+        return parent[root] == 0 ? root / width : maxY[slotOf(root)];
+    }
+
+    /**
+     * Copies the shape moments and boundary pixel count of a tracked root into {@code cell}.
+     */
+    public void writeShape(int root, BloodCellAnalyser.CellInfo cell) {
+        shape.writeTo(slotOf(root), cell);
+    }
+
+    public byte getColourClass(int root) {
+        return parent[root] == 0 ? 0 : colourClass[slotOf(root)];
+    }
+
+    private int slotOf(int root) {
+        return -parent[root] - 1;
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (slotCount == slotRoot.length) {
+            int capacity = slotRoot.length * 2;
+            slotRoot = Arrays.copyOf(slotRoot, capacity);
+            size = Arrays.copyOf(size, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            first = Arrays.copyOf(first, capacity);
+            colourClass = Arrays.copyOf(colourClass, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+            shape.ensureCapacity(capacity);
+        }
+        return slotCount++;
+    }
+
+    private void freeSlot(int slot) {
+        slotRoot[slot] = -1;
+        freeSlots[freeCount++] = slot;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.bloodanalyser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reference labeller: unions every foreground pixel with its right and bottom
+ * neighbours; size, bounding box and shape are read from the union-find roots afterwards.
+ */
+public class UnionFindLabeller implements ComponentLabeller {
+
+    @Override
+    public List<BloodCellAnalyser.CellInfo> label(LabelMap labelMap) {
+        int width = labelMap.getWidth();
+        int height = labelMap.getHeight();
+        byte[] labels = labelMap.getLabels();
+
+        UnionFind unionFind = new UnionFind(width, height);
+
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            for (int x = 0; x < width; x++) {
+                int currentIndex = rowStart + x;
+                byte label = labels[currentIndex];
+
+                if (label == LabelMap.WHITE) continue;
+
+                unionFind.add(currentIndex, label);
+                if (x == 0 || x + 1 == width || y == 0 || y + 1 == height
+                        || labels[currentIndex - 1] != label || labels[currentIndex + 1] != label
+                        || labels[currentIndex - width] != label || labels[currentIndex + width] != label) {
+                    unionFind.addBoundaryPixel(currentIndex);
+                }
+
+                if (x + 1 < width && labels[currentIndex + 1] == label) {
+                    unionFind.add(currentIndex + 1, label);
+                    unionFind.union(currentIndex, currentIndex + 1);
+                }
+
+                if (y + 1 < height && labels[currentIndex + width] == label) {
+                    unionFind.add(currentIndex + width, label);
+                    unionFind.union(currentIndex, currentIndex + width);
+                }
+            }
+        }
+
+        int[] roots = unionFind.roots();
+        List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>(roots.length);
+        for (int root : roots) {
+            BloodCellAnalyser.CellInfo ci = new BloodCellAnalyser.CellInfo();
+            ci.color = BloodCellAnalyser.CellType.of(unionFind.getColourClass(root));
+            ci.size = unionFind.getSize(root);
+            ci.minX = unionFind.getMinX(root);
+            ci.maxX = unionFind.getMaxX(root);
+            ci.minY = unionFind.getMinY(root);
+            ci.maxY = unionFind.getMaxY(root);
+            unionFind.writeShape(root, ci);
+            cells.add(ci);
+        }
+        return cells;
+    }
+}
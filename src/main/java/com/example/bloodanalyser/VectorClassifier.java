@@ -0,0 +1,63 @@
+package com.example.bloodanalyser;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of {@link ImageProcessor#classifyRange}: unpacks R, G and B into int lanes,
+ * evaluates the same scaled integer tests on whole vectors and narrows the blended labels
+ * to bytes. Only loaded when the {@code jdk.incubator.vector} module is present.
+ */
+final class VectorClassifier {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    // One label byte per int lane; a byte vector needs at least 64 bits, so 8 int lanes
+    private static final VectorSpecies<Byte> BYTES = INTS.length() >= 8
+            ? ByteVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(INTS.length() * 8))
+            : null;
+
+    private VectorClassifier() {
+    }
+
+    /**
+     * Whether the platform has vectors wide enough to beat the scalar loop (256 bits or more).
+     */
+    static boolean isSupported() {
+        return BYTES != null;
+    }
+
+    /**
+     * Classifies whole vectors from {@code from} on and returns the index of the first pixel
+     * left for the scalar loop.
+     */
+    static int classifyRange(int[] argb, byte[] labels, int from, int to, int redThreshold, int purpleThreshold) {
+        int i = from;
+        int upper = from + INTS.loopBound(to - from);
+        for (; i < upper; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, i);
+            IntVector red = pixels.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector green = pixels.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector blue = pixels.and(0xFF);
+
+            IntVector luminance = red.mul(299).add(green.mul(587)).add(blue.mul(114));
+            IntVector redness = red.mul(2).sub(green).sub(blue);
+            IntVector purpleness = red.add(blue).mul(2).sub(green.mul(3));
+
+            VectorMask<Integer> purple = purpleness.compare(VectorOperators.GT, 2 * purpleThreshold)
+                    .and(luminance.compare(VectorOperators.LT, 200_000));
+            VectorMask<Integer> isRed = redness.compare(VectorOperators.GT, 2 * redThreshold)
+                    .and(luminance.compare(VectorOperators.GT, 100_000))
+                    .and(luminance.compare(VectorOperators.LT, 220_000));
+
+            IntVector label = IntVector.zero(INTS)
+                    .blend(LabelMap.RED, isRed)
+                    .blend(LabelMap.PURPLE, purple);
+            ((ByteVector) label.castShape(BYTES, 0)).intoArray(labels, i);
+        }
+
+        return i;
+    }
+}
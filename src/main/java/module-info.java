@@ -1,6 +1,11 @@
 module com.example.bloodanalyser {
     requires javafx.controls;
     requires javafx.fxml;
+    requires java.desktop;
+    requires java.management;
+    requires jdk.management;
+    requires jdk.httpserver;
+    requires static jdk.incubator.vector;
 
 
     opens com.example.bloodanalyser to javafx.fxml;
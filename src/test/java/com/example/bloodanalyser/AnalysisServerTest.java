@@ -0,0 +1,75 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AnalysisServerTest {
+
+    @Test
+    void parsesPyramidSteps() {
+        assertEquals(0, AnalysisServer.Parameters.parse(null).pyramidStep());
+        assertEquals(1, AnalysisServer.Parameters.parse("pyramid=1").pyramidStep());
+        assertEquals(10, AnalysisServer.Parameters.parse("min=100&pyramid=auto").pyramidStep());
+        assertThrows(IllegalArgumentException.class, () -> AnalysisServer.Parameters.parse("pyramid=0"));
+        assertThrows(IllegalArgumentException.class, () -> AnalysisServer.Parameters.parse("pyramid=-2"));
+        assertThrows(IllegalArgumentException.class, () -> AnalysisServer.Parameters.parse("pyramid=1&filter=1,1"));
+    }
+
+    @Test
+    void analysesUploadsUpToThePixelLimit() throws Exception {
+        LabelMap labelMap = LabelMaps.discs(20, 200, 150, 40);
+        BloodCellAnalyser.AnalysisResult expected = new BloodCellAnalyser(30, 3000, false).analyseImage(labelMap);
+        byte[] png = png(LabelMaps.toArgb(labelMap), 200, 150);
+
+        AnalysisServer server = new AnalysisServer(new InetSocketAddress("127.0.0.1", 0), 1, 1, 1 << 20,
+                200 * 150, null);
+        server.start();
+        try {
+            HttpResponse<String> response = post(server, "", png);
+            assertEquals(200, response.statusCode(), response.body());
+            assertTrue(response.body().contains("\"redCells\":" + expected.getRedCellCount() + ","), response.body());
+            assertTrue(response.body().contains("\"whiteCells\":" + expected.getWhiteCellCount() + ","),
+                    response.body());
+
+            assertEquals(400, post(server, "pyramid=0", png).statusCode());
+        } finally {
+            server.stop(0);
+        }
+
+        server = new AnalysisServer(new InetSocketAddress("127.0.0.1", 0), 1, 1, 1 << 20, 200 * 150 - 1, null);
+        server.start();
+        try {
+            assertEquals(413, post(server, "", png).statusCode());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static HttpResponse<String> post(AnalysisServer server, String query, byte[] body)
+            throws IOException, InterruptedException {
+        URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/analyse?" + query);
+        return HttpClient.newHttpClient().send(HttpRequest.newBuilder(uri)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static byte[] png(int[] argb, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
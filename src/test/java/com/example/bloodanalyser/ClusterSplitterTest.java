@@ -0,0 +1,119 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterSplitterTest {
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void splitsTwoTouchingCells() {
+        LabelMap labelMap = new LabelMap(100, 60);
+        LabelMaps.fillDisc(labelMap.getLabels(), 100, 60, 35, 30, 14, LabelMap.RED);
+        LabelMaps.fillDisc(labelMap.getLabels(), 100, 60, 60, 30, 14, LabelMap.RED);
+
+        BloodCellAnalyser.AnalysisResult result = analyse(labelMap);
+        assertEquals(1, result.getCells().size());
+        BloodCellAnalyser.CellInfo cluster = result.getCells().get(0);
+        assertTrue(cluster.isCluster);
+        assertEquals(2, cluster.estimatedCellCount);
+        assertEquals(2, result.getRedCellCount());
+        assertPartition(cluster);
+        // The watershed line runs between the two centres
+        for (BloodCellAnalyser.CellInfo part : cluster.subCells) {
+            assertTrue(part.maxX < 60 || part.minX > 35, part::toString);
+        }
+    }
+
+    @Test
+    void splitsARowOfThree() {
+        LabelMap labelMap = new LabelMap(140, 50);
+        for (int cx : new int[] {30, 55, 80}) {
+            LabelMaps.fillDisc(labelMap.getLabels(), 140, 50, cx, 25, 14, LabelMap.RED);
+        }
+
+        BloodCellAnalyser.AnalysisResult result = analyse(labelMap);
+        assertEquals(3, result.getRedCellCount());
+        assertPartition(result.getCells().get(0));
+    }
+
+    @Test
+    void keepsALargeRoundCellWhole() {
+        LabelMap labelMap = new LabelMap(80, 80);
+        LabelMaps.fillDisc(labelMap.getLabels(), 80, 80, 40, 40, 20, LabelMap.RED);
+
+        BloodCellAnalyser.CellInfo cell = analyse(labelMap).getCells().get(0);
+        // Flagged as a cluster by size and bounding box, but it has a single distance maximum
+        assertFalse(cell.isCluster);
+        assertEquals(1, cell.estimatedCellCount);
+    }
+
+    @Test
+    void ignoresOtherComponentsInTheBoundingBox() {
+        LabelMap labelMap = new LabelMap(100, 60);
+        LabelMaps.fillDisc(labelMap.getLabels(), 100, 60, 35, 30, 14, LabelMap.RED);
+        LabelMaps.fillDisc(labelMap.getLabels(), 100, 60, 60, 30, 14, LabelMap.RED);
+        // A separate cell in the cluster's bounding box corner, and a white cell over the other corner
+        LabelMaps.fillDisc(labelMap.getLabels(), 100, 60, 68, 10, 6, LabelMap.RED);
+        LabelMaps.fillDisc(labelMap.getLabels(), 100, 60, 27, 50, 5, LabelMap.PURPLE);
+
+        BloodCellAnalyser.AnalysisResult result = analyse(labelMap);
+        BloodCellAnalyser.CellInfo cluster = result.getCells().stream().filter(c -> c.isCluster).findFirst()
+                .orElseThrow();
+        assertEquals(2, cluster.estimatedCellCount);
+        assertPartition(cluster);
+        assertEquals(3, result.getRedCellCount());
+        assertEquals(1, result.getWhiteCellCount());
+    }
+
+    @Test
+    void splitsTheSameOnAnyPool() {
+        LabelMap labelMap = LabelMaps.discs(16, 400, 300, 250);
+        BloodCellAnalyser.AnalysisResult parallel = analyse(labelMap);
+        ForkJoinPool single = new ForkJoinPool(1);
+        BloodCellAnalyser.AnalysisResult sequential;
+        try {
+            sequential = new BloodCellAnalyser(30, 5000, false, new RunLengthLabeller(),
+                    new ClusterSplitter(single, 3)).analyseImage(labelMap);
+        } finally {
+            single.shutdown();
+        }
+
+        assertEquals(sequential.getRedCellCount(), parallel.getRedCellCount());
+        assertEquals(sequential.getCells().size(), parallel.getCells().size());
+        for (int i = 0; i < parallel.getCells().size(); i++) {
+            assertEquals(LabelMaps.describe(sequential.getCells().get(i).subCells),
+                    LabelMaps.describe(parallel.getCells().get(i).subCells));
+        }
+    }
+
+    private BloodCellAnalyser.AnalysisResult analyse(LabelMap labelMap) {
+        return new BloodCellAnalyser(30, 5000, false, new RunLengthLabeller(), new ClusterSplitter(pool, 3))
+                .analyseImage(labelMap);
+    }
+
+    // The sub-cells of a cluster cover it exactly once
+    private static void assertPartition(BloodCellAnalyser.CellInfo cluster) {
+        List<BloodCellAnalyser.CellInfo> parts = cluster.subCells;
+        assertEquals(cluster.estimatedCellCount, parts.size());
+        assertEquals(cluster.size, parts.stream().mapToInt(p -> p.size).sum());
+        assertEquals(cluster.sumX, parts.stream().mapToLong(p -> p.sumX).sum());
+        assertEquals(cluster.sumY, parts.stream().mapToLong(p -> p.sumY).sum());
+        for (BloodCellAnalyser.CellInfo part : parts) {
+            assertTrue(part.minX >= cluster.minX && part.maxX <= cluster.maxX
+                    && part.minY >= cluster.minY && part.maxY <= cluster.maxY);
+        }
+    }
+}
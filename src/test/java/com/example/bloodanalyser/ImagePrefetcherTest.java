@@ -0,0 +1,100 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@Timeout(30)
+class ImagePrefetcherTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void handsOutFilesInOrder() throws Exception {
+        Path first = slide("first", LabelMaps.RED_ARGB);
+        Path second = slide("second", LabelMaps.PURPLE_ARGB);
+        try (ImagePrefetcher prefetcher = new ImagePrefetcher(List.of(first, second, first), 1)) {
+            for (Path file : List.of(first, second, first)) {
+                try (ImagePrefetcher.Decoded decoded = prefetcher.next()) {
+                    assertEquals(file, decoded.getFile());
+                    int colour = file == first ? LabelMaps.RED_ARGB : LabelMaps.PURPLE_ARGB;
+                    assertArrayEquals(new int[] {colour, colour, colour, colour},
+                            Arrays.copyOf(decoded.getPixels(), 4));
+                }
+            }
+            assertNull(prefetcher.next());
+        }
+    }
+
+    @Test
+    void reportsUnreadableFilesAndCarriesOn() throws Exception {
+        Path broken = dir.resolve("broken.png");
+        Files.write(broken, new byte[] {1, 2, 3});
+        Path good = slide("good", LabelMaps.RED_ARGB);
+        try (ImagePrefetcher prefetcher = new ImagePrefetcher(List.of(broken, good), 1)) {
+            try (ImagePrefetcher.Decoded decoded = prefetcher.next()) {
+                assertThrows(IOException.class, decoded::getPixels);
+            }
+            try (ImagePrefetcher.Decoded decoded = prefetcher.next()) {
+                assertEquals(LabelMaps.RED_ARGB, decoded.getPixels()[0]);
+            }
+        }
+    }
+
+    @Test
+    void reportsAnImageTooLargeToAllocate() throws Exception {
+        // No heap holds an int array of Integer.MAX_VALUE elements
+        Path huge = withSize(slide("huge", LabelMaps.RED_ARGB), 1, Integer.MAX_VALUE);
+        Path good = slide("good", LabelMaps.RED_ARGB);
+        try (ImagePrefetcher prefetcher = new ImagePrefetcher(List.of(huge, good), 1)) {
+            try (ImagePrefetcher.Decoded decoded = prefetcher.next()) {
+                IOException error = assertThrows(IOException.class, decoded::getPixels);
+                assertInstanceOf(OutOfMemoryError.class, error.getCause());
+            }
+            try (ImagePrefetcher.Decoded decoded = prefetcher.next()) {
+                assertEquals(LabelMaps.RED_ARGB, decoded.getPixels()[0]);
+            }
+        }
+    }
+
+    private Path slide(String name, int colour) throws IOException {
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                image.setRGB(x, y, colour);
+            }
+        }
+        Path file = dir.resolve(name + ".png");
+        ImageIO.write(image, "png", file.toFile());
+        return file;
+    }
+
+    // Rewrites the size in the PNG header, leaving the image data as it is
+    private static Path withSize(Path png, int width, int height) throws IOException {
+        byte[] bytes = Files.readAllBytes(png);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(16, width);
+        buffer.putInt(20, height);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 12, 17);
+        buffer.putInt(29, (int) crc.getValue());
+        Files.write(png, bytes);
+        return png;
+    }
+}
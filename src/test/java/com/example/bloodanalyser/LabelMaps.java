@@ -0,0 +1,93 @@
+package com.example.bloodanalyser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic label maps and slides for comparing analysis paths against each other.
+ */
+final class LabelMaps {
+    static final int WHITE_ARGB = 0xFFF0F0F0;
+    static final int RED_ARGB = 0xFFC8A028;
+    static final int PURPLE_ARGB = 0xFF702090;
+
+    // Shapes the labellers have to agree on, including single rows and columns
+    static final int[][] SIZES = {{1, 1}, {1, 40}, {40, 1}, {2, 33}, {33, 2}, {37, 23}, {200, 150}};
+
+    private LabelMaps() {
+    }
+
+    /**
+     * Independent random pixels of both colours, so components of every shape touch, nest and
+     * wind across any strip or band border.
+     */
+    static LabelMap random(long seed, int width, int height, double fill) {
+        Random random = new Random(seed);
+        byte[] labels = new byte[width * height];
+        for (int i = 0; i < labels.length; i++) {
+            double d = random.nextDouble();
+            labels[i] = d < fill / 2 ? LabelMap.RED : d < fill ? LabelMap.PURPLE : LabelMap.WHITE;
+        }
+        return new LabelMap(width, height, labels);
+    }
+
+    /**
+     * Overlapping discs of both colours on white, sprinkled with single-pixel noise.
+     */
+    static LabelMap discs(long seed, int width, int height, int count) {
+        Random random = new Random(seed);
+        byte[] labels = new byte[width * height];
+        for (int k = 0; k < count; k++) {
+            int cx = random.nextInt(width);
+            int cy = random.nextInt(height);
+            int radius = 2 + random.nextInt(20);
+            byte colour = random.nextInt(8) == 0 ? LabelMap.PURPLE : LabelMap.RED;
+            fillDisc(labels, width, height, cx, cy, radius, colour);
+        }
+        for (int i = 0; i < width * height / 50; i++) {
+            labels[random.nextInt(width * height)] = (byte) random.nextInt(3);
+        }
+        return new LabelMap(width, height, labels);
+    }
+
+    static void fillDisc(byte[] labels, int width, int height, int cx, int cy, int radius, byte colour) {
+        for (int y = Math.max(0, cy - radius); y < Math.min(height, cy + radius); y++) {
+            for (int x = Math.max(0, cx - radius); x < Math.min(width, cx + radius); x++) {
+                if ((x - cx) * (x - cx) + (y - cy) * (y - cy) < radius * radius) {
+                    labels[y * width + x] = colour;
+                }
+            }
+        }
+    }
+
+    /**
+     * A slide whose pixels classify to {@code labelMap} with the default thresholds.
+     */
+    static int[] toArgb(LabelMap labelMap) {
+        byte[] labels = labelMap.getLabels();
+        int[] argb = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            argb[i] = switch (labels[i]) {
+                case LabelMap.RED -> RED_ARGB;
+                case LabelMap.PURPLE -> PURPLE_ARGB;
+                default -> WHITE_ARGB;
+            };
+        }
+        return argb;
+    }
+
+    /**
+     * Every field a labeller fills in, one line per component in the given order.
+     */
+    static List<String> describe(List<BloodCellAnalyser.CellInfo> cells) {
+        List<String> lines = new ArrayList<>(cells.size());
+        for (BloodCellAnalyser.CellInfo c : cells) {
+            lines.add(String.format(Locale.ROOT, "%s size=%d box=(%d,%d)-(%d,%d) sums=%d,%d,%d,%d,%d perimeter=%d",
+                    c.color, c.size, c.minX, c.minY, c.maxX, c.maxY,
+                    c.sumX, c.sumY, c.sumXX, c.sumYY, c.sumXY, c.perimeter));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PngRowBandSourceTest {
+    // Odd sizes so packed rows end mid-byte and the last band is short
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void decodesEightBitColour() throws IOException {
+        assertDecodesLikeImageIO("rgb", randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR)));
+        assertDecodesLikeImageIO("rgba", randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_4BYTE_ABGR)));
+    }
+
+    @Test
+    void decodesSixteenBitColour() throws IOException {
+        assertDecodesLikeImageIO("rgb16", randomImage(componentImage(ColorSpace.CS_sRGB, false, DataBuffer.TYPE_USHORT)));
+        assertDecodesLikeImageIO("rgba16", randomImage(componentImage(ColorSpace.CS_sRGB, true, DataBuffer.TYPE_USHORT)));
+    }
+
+    @Test
+    void decodesGrey() throws IOException {
+        assertDecodesLikeImageIO("grey", randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY)));
+        assertDecodesLikeImageIO("grey16", randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY)));
+    }
+
+    @Test
+    void decodesGreyWithAlpha() throws IOException {
+        assertDecodesLikeImageIO("grey-alpha", randomImage(componentImage(ColorSpace.CS_GRAY, true, DataBuffer.TYPE_BYTE)));
+        assertDecodesLikeImageIO("grey-alpha16", randomImage(componentImage(ColorSpace.CS_GRAY, true, DataBuffer.TYPE_USHORT)));
+    }
+
+    @Test
+    void decodesPalettes() throws IOException {
+        assertDecodesLikeImageIO("palette", randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED)));
+        for (int bits : new int[] {1, 2, 4}) {
+            assertDecodesLikeImageIO("palette" + bits, randomImage(new BufferedImage(WIDTH, HEIGHT,
+                    BufferedImage.TYPE_BYTE_BINARY, palette(bits))));
+        }
+    }
+
+    @Test
+    void decodesSingleRowsAndColumns() throws IOException {
+        assertDecodesLikeImageIO("row", randomImage(new BufferedImage(WIDTH, 1, BufferedImage.TYPE_3BYTE_BGR)));
+        assertDecodesLikeImageIO("column", randomImage(new BufferedImage(1, HEIGHT, BufferedImage.TYPE_BYTE_BINARY)));
+    }
+
+    @Test
+    void rejectsInterlacedFiles() throws IOException {
+        Path file = dir.resolve("interlaced.png");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.write(null, new IIOImage(randomImage(new BufferedImage(WIDTH, HEIGHT,
+                    BufferedImage.TYPE_3BYTE_BGR)), null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        assertThrows(IOException.class, () -> new PngRowBandSource(file));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotPng() throws IOException {
+        Path file = dir.resolve("slide.bmp");
+        ImageIO.write(randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR)), "bmp", file.toFile());
+        assertThrows(IOException.class, () -> new PngRowBandSource(file));
+
+        Path truncated = dir.resolve("truncated.png");
+        byte[] png = Files.readAllBytes(write("whole", randomImage(new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR))));
+        Files.write(truncated, Arrays.copyOf(png, png.length / 2));
+        assertThrows(IOException.class, () -> {
+            try (PngRowBandSource source = new PngRowBandSource(truncated)) {
+                source.readRows(0, HEIGHT, new int[WIDTH * HEIGHT]);
+            }
+        });
+    }
+
+    @Test
+    void rejectsBandsOutOfOrder() throws IOException {
+        Path file = write("order", randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR)));
+        try (PngRowBandSource source = new PngRowBandSource(file)) {
+            int[] band = new int[WIDTH * 5];
+            source.readRows(0, 5, band);
+            assertThrows(IllegalStateException.class, () -> source.readRows(0, 5, band));
+            assertThrows(IllegalStateException.class, () -> source.readRows(10, 5, band));
+        }
+    }
+
+    @Test
+    void opensPngFilesByContent() throws IOException {
+        Path file = write("slide", randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR)));
+        Path renamed = Files.move(file, dir.resolve("slide.dat"));
+        try (RowBandSource source = RowBandSource.open(renamed)) {
+            assertInstanceOf(PngRowBandSource.class, source);
+        }
+    }
+
+    private void assertDecodesLikeImageIO(String name, BufferedImage image) throws IOException {
+        Path file = write(name, image);
+        BufferedImage reference = ImageIO.read(file.toFile());
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        int[] expected = reference.getRGB(0, 0, width, height, null, 0, width);
+
+        for (int bandHeight : new int[] {1, 7, height}) {
+            int[] actual = new int[width * height];
+            int[] band = new int[width * bandHeight];
+            try (PngRowBandSource source = new PngRowBandSource(file)) {
+                assertEquals(width, source.getWidth());
+                assertEquals(height, source.getHeight());
+                for (int y = 0; y < height; y += bandHeight) {
+                    int rows = Math.min(bandHeight, height - y);
+                    source.readRows(y, rows, band);
+                    System.arraycopy(band, 0, actual, y * width, rows * width);
+                }
+            }
+            assertArrayEquals(expected, actual, name + " in bands of " + bandHeight);
+        }
+    }
+
+    private Path write(String name, BufferedImage image) throws IOException {
+        Path file = dir.resolve(name + ".png");
+        if (!ImageIO.write(image, "png", file.toFile())) {
+            throw new IOException("No PNG writer for " + name);
+        }
+        return file;
+    }
+
+    private static BufferedImage componentImage(int colourSpace, boolean alpha, int dataType) {
+        ColorModel model = new ComponentColorModel(ColorSpace.getInstance(colourSpace), alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, dataType);
+        return new BufferedImage(model, model.createCompatibleWritableRaster(WIDTH, HEIGHT), false, null);
+    }
+
+    private static IndexColorModel palette(int bits) {
+        Random random = new Random(bits);
+        int size = 1 << bits;
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        random.nextBytes(r);
+        random.nextBytes(g);
+        random.nextBytes(b);
+        return new IndexColorModel(bits, size, r, g, b);
+    }
+
+    // Fills every band with random samples, covering the full range of each sample size
+    private static BufferedImage randomImage(BufferedImage image) {
+        Random random = new Random(image.getType() * 31L + image.getWidth());
+        WritableRaster raster = image.getRaster();
+        for (int band = 0; band < raster.getNumBands(); band++) {
+            int max = (1 << raster.getSampleModel().getSampleSize(band)) - 1;
+            for (int y = 0; y < raster.getHeight(); y++) {
+                for (int x = 0; x < raster.getWidth(); x++) {
+                    raster.setSample(x, y, band, random.nextInt(max + 1));
+                }
+            }
+        }
+        return image;
+    }
+}
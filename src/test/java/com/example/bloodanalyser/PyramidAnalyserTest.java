@@ -0,0 +1,128 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PyramidAnalyserTest {
+    private static final int MIN_CELL_SIZE = 30;
+    private static final int WIDTH = 900;
+    private static final int HEIGHT = 700;
+
+    private final ImageProcessor processor = new ImageProcessor(30, 40);
+    private final BloodCellAnalyser analyser = new BloodCellAnalyser(MIN_CELL_SIZE, 3000, false);
+
+    @Test
+    void matchesFullResolutionOnASparseSlide() {
+        int[] argb = sparseSlide(1);
+        PipelineMetrics metrics = new PipelineMetrics();
+        BloodCellAnalyser.AnalysisResult pyramid = pyramid(PyramidAnalyser.defaultStep(MIN_CELL_SIZE))
+                .analyse(argb, WIDTH, HEIGHT, metrics);
+
+        assertSameCells(full(argb), pyramid);
+        // Only boxes around the cells are refined, not the specks between them
+        long refined = metrics.getStages().stream().filter(s -> s.name().equals("refine")).findFirst()
+                .orElseThrow().items();
+        assertTrue(refined < (long) WIDTH * HEIGHT / 4, "refined " + refined);
+    }
+
+    @Test
+    void findsThinCellsBetweenTheSampledLines() {
+        int[] argb = blank();
+        Random random = new Random(2);
+        for (int k = 0; k < 60; k++) {
+            int x = 20 + random.nextInt(WIDTH - 80);
+            int y = 20 + random.nextInt(HEIGHT - 80);
+            int colour = random.nextInt(5) == 0 ? LabelMaps.PURPLE_ARGB : LabelMaps.RED_ARGB;
+            // One pixel wide lines, vertical, horizontal and diagonal, of just over the minimum size
+            int dx = random.nextInt(3) - 1;
+            int dy = dx == 0 ? 1 : random.nextInt(2);
+            for (int t = 0; t < MIN_CELL_SIZE + 2; t++) {
+                argb[(y + dy * t) * WIDTH + x + dx * t] = colour;
+                if (dx != 0 && dy != 0) {
+                    argb[(y + dy * t) * WIDTH + x + dx * t + 1] = colour;
+                }
+            }
+        }
+
+        BloodCellAnalyser.AnalysisResult expected = full(argb);
+        assertTrue(expected.getCells().size() > 30);
+        assertSameCells(expected, pyramid(PyramidAnalyser.defaultStep(MIN_CELL_SIZE)).analyse(argb, WIDTH, HEIGHT));
+    }
+
+    @Test
+    void matchesFullResolutionForEverySmallerStep() {
+        int[] argb = sparseSlide(3);
+        BloodCellAnalyser.AnalysisResult expected = full(argb);
+        for (int step = 1; step <= PyramidAnalyser.defaultStep(MIN_CELL_SIZE); step++) {
+            assertSameCells(expected, pyramid(step).analyse(argb, WIDTH, HEIGHT));
+        }
+    }
+
+    @Test
+    void matchesFullResolutionOnADenseSlide() {
+        int[] argb = LabelMaps.toArgb(LabelMaps.discs(4, WIDTH, HEIGHT, 1500));
+        assertSameCells(full(argb), pyramid(PyramidAnalyser.defaultStep(MIN_CELL_SIZE)).analyse(argb, WIDTH, HEIGHT));
+    }
+
+    @Test
+    void clearsAReusedLabelMap() {
+        int[] argb = sparseSlide(5);
+        LabelMap labelMap = new LabelMap(WIDTH, HEIGHT);
+        Arrays.fill(labelMap.getLabels(), LabelMap.RED);
+
+        Segmentation segmentation = pyramid(PyramidAnalyser.defaultStep(MIN_CELL_SIZE))
+                .segment(argb, labelMap, new PipelineMetrics());
+        assertSameCells(full(argb), analyser.analyseSegmentation(segmentation));
+    }
+
+    private PyramidAnalyser pyramid(int step) {
+        return new PyramidAnalyser(processor, analyser, step);
+    }
+
+    private BloodCellAnalyser.AnalysisResult full(int[] argb) {
+        return analyser.analyseImage(processor.classify(argb, WIDTH, HEIGHT));
+    }
+
+    private static void assertSameCells(BloodCellAnalyser.AnalysisResult expected,
+                                        BloodCellAnalyser.AnalysisResult actual) {
+        assertEquals(expected.getRedCellCount(), actual.getRedCellCount());
+        assertEquals(expected.getWhiteCellCount(), actual.getWhiteCellCount());
+        assertEquals(LabelMaps.describe(expected.getCells()), LabelMaps.describe(actual.getCells()));
+    }
+
+    private static int[] blank() {
+        int[] argb = new int[WIDTH * HEIGHT];
+        Arrays.fill(argb, LabelMaps.WHITE_ARGB);
+        return argb;
+    }
+
+    // A few cells and touching pairs on white, with single-pixel and two-pixel specks everywhere
+    private static int[] sparseSlide(long seed) {
+        Random random = new Random(seed);
+        LabelMap labelMap = new LabelMap(WIDTH, HEIGHT);
+        byte[] labels = labelMap.getLabels();
+        for (int k = 0; k < 40; k++) {
+            int cx = random.nextInt(WIDTH);
+            int cy = random.nextInt(HEIGHT);
+            byte colour = random.nextInt(6) == 0 ? LabelMap.PURPLE : LabelMap.RED;
+            LabelMaps.fillDisc(labels, WIDTH, HEIGHT, cx, cy, 4 + random.nextInt(10), colour);
+            if (random.nextInt(4) == 0) {
+                LabelMaps.fillDisc(labels, WIDTH, HEIGHT, cx + 14, cy, 8, colour);
+            }
+        }
+        for (int k = 0; k < WIDTH * HEIGHT / 400; k++) {
+            int i = random.nextInt(WIDTH * HEIGHT - 1);
+            byte colour = random.nextBoolean() ? LabelMap.RED : LabelMap.PURPLE;
+            labels[i] = colour;
+            if (random.nextBoolean()) {
+                labels[i + 1] = colour;
+            }
+        }
+        return LabelMaps.toArgb(labelMap);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RunLengthLabellerTest {
+
+    @Test
+    void matchesUnionFindOnRandomMaps() {
+        RunLengthLabeller labeller = new RunLengthLabeller();
+        for (int[] size : LabelMaps.SIZES) {
+            for (double fill : new double[] {0.2, 0.5, 0.9}) {
+                for (long seed = 0; seed < 5; seed++) {
+                    LabelMap labelMap = LabelMaps.random(seed, size[0], size[1], fill);
+                    assertEquals(LabelMaps.describe(new UnionFindLabeller().label(labelMap)),
+                            LabelMaps.describe(labeller.label(labelMap)),
+                            () -> size[0] + "x" + size[1] + " fill " + fill);
+                }
+            }
+        }
+    }
+
+    @Test
+    void matchesUnionFindOnDiscs() {
+        LabelMap labelMap = LabelMaps.discs(7, 640, 480, 300);
+        assertEquals(LabelMaps.describe(new UnionFindLabeller().label(labelMap)),
+                LabelMaps.describe(new RunLengthLabeller().label(labelMap)));
+    }
+
+    @Test
+    void labelsEmptyAndFullMaps() {
+        assertEquals(List.of(), new RunLengthLabeller().label(new LabelMap(30, 20)));
+
+        LabelMap full = new LabelMap(30, 20);
+        Arrays.fill(full.getLabels(), LabelMap.RED);
+        List<BloodCellAnalyser.CellInfo> cells = new RunLengthLabeller().label(full);
+        assertEquals(1, cells.size());
+        assertEquals(600, cells.get(0).size);
+        // Every pixel on the image edge is a boundary pixel
+        assertEquals(2 * 30 + 2 * 18, cells.get(0).perimeter);
+    }
+
+    @Test
+    void keepsNoStateBetweenCalls() {
+        RunLengthLabeller labeller = new RunLengthLabeller();
+        LabelMap large = LabelMaps.random(1, 300, 200, 0.5);
+        LabelMap small = LabelMaps.random(2, 20, 10, 0.5);
+        List<String> expected = LabelMaps.describe(labeller.label(small));
+        labeller.label(large);
+        assertEquals(expected, LabelMaps.describe(labeller.label(small)));
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamingLabellerTest {
+
+    @Test
+    void matchesUnionFindOnRandomMaps() {
+        for (int[] size : LabelMaps.SIZES) {
+            for (long seed = 0; seed < 5; seed++) {
+                LabelMap labelMap = LabelMaps.random(seed, size[0], size[1], 0.6);
+                assertEquals(sorted(new UnionFindLabeller().label(labelMap)), sorted(stream(labelMap)),
+                        () -> size[0] + "x" + size[1]);
+            }
+        }
+    }
+
+    @Test
+    void matchesUnionFindOnDiscs() {
+        LabelMap labelMap = LabelMaps.discs(11, 640, 480, 300);
+        assertEquals(sorted(new UnionFindLabeller().label(labelMap)), sorted(stream(labelMap)));
+    }
+
+    @Test
+    void startsOverAfterFinish() {
+        LabelMap first = LabelMaps.random(1, 50, 40, 0.5);
+        LabelMap second = LabelMaps.random(2, 50, 30, 0.5);
+        List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>();
+        StreamingLabeller labeller = new StreamingLabeller(50, cells::add);
+        push(labeller, first);
+        cells.clear();
+        push(labeller, second);
+        assertEquals(sorted(new UnionFindLabeller().label(second)), sorted(cells));
+    }
+
+    @Test
+    void analyserCountsMatchWholeImageAcrossBandHeights() throws Exception {
+        LabelMap labelMap = LabelMaps.discs(4, 300, 220, 150);
+        int[] argb = LabelMaps.toArgb(labelMap);
+        BloodCellAnalyser analyser = new BloodCellAnalyser(20, 2000, false);
+        BloodCellAnalyser.AnalysisResult expected =
+                analyser.analyseComponents(new UnionFindLabeller().label(labelMap), 300);
+
+        for (int bandHeight : new int[] {1, 2, 7, 64, 220, 1000}) {
+            BloodCellAnalyser.AnalysisResult result = new StreamingAnalyser(new ImageProcessor(30, 40), analyser,
+                    bandHeight).analyse(new ArrayBandSource(argb, 300, 220));
+            assertEquals(expected.getRedCellCount(), result.getRedCellCount(), "bands of " + bandHeight);
+            assertEquals(expected.getWhiteCellCount(), result.getWhiteCellCount(), "bands of " + bandHeight);
+            assertEquals(sorted(expected.getCells()), sorted(result.getCells()), "bands of " + bandHeight);
+        }
+    }
+
+    private static List<BloodCellAnalyser.CellInfo> stream(LabelMap labelMap) {
+        List<BloodCellAnalyser.CellInfo> cells = new ArrayList<>();
+        push(new StreamingLabeller(labelMap.getWidth(), cells::add), labelMap);
+        return cells;
+    }
+
+    private static void push(StreamingLabeller labeller, LabelMap labelMap) {
+        for (int y = 0; y < labelMap.getHeight(); y++) {
+            labeller.pushRow(labelMap.getLabels(), y * labelMap.getWidth());
+        }
+        labeller.finish();
+    }
+
+    // Components are emitted as they close rather than in raster order
+    private static List<String> sorted(List<BloodCellAnalyser.CellInfo> cells) {
+        List<String> lines = new ArrayList<>(LabelMaps.describe(cells));
+        lines.sort(null);
+        return lines;
+    }
+
+    private record ArrayBandSource(int[] argb, int width, int height) implements RowBandSource {
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRows(int y, int rows, int[] band) {
+            System.arraycopy(argb, y * width, band, 0, rows * width);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TiledSegmenterTest {
+    // Strips of one and two rows put a seam through nearly every component
+    private static final int[] STRIP_HEIGHTS = {1, 2, 3, 7, 64};
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void labelMatchesSequentialLabellingAcrossSeams() {
+        for (int stripHeight : STRIP_HEIGHTS) {
+            TiledSegmenter segmenter = new TiledSegmenter(pool, stripHeight);
+            for (int[] size : LabelMaps.SIZES) {
+                for (long seed = 0; seed < 3; seed++) {
+                    LabelMap labelMap = LabelMaps.random(seed, size[0], size[1], 0.6);
+                    assertEquals(LabelMaps.describe(new UnionFindLabeller().label(labelMap)),
+                            LabelMaps.describe(segmenter.label(labelMap)),
+                            () -> size[0] + "x" + size[1] + " in strips of " + stripHeight);
+                }
+            }
+        }
+    }
+
+    @Test
+    void segmentMatchesClassifyingThenLabelling() {
+        ImageProcessor processor = new ImageProcessor(30, 40);
+        LabelMap expected = LabelMaps.discs(3, 320, 240, 120);
+        int[] argb = LabelMaps.toArgb(expected);
+        for (int stripHeight : STRIP_HEIGHTS) {
+            // Repeated, as a race between strips would only show up now and then
+            for (int run = 0; run < 5; run++) {
+                Segmentation segmentation = new TiledSegmenter(pool, stripHeight).segment(processor, argb, 320, 240);
+                assertArrayEquals(expected.getLabels(), segmentation.getLabelMap().getLabels());
+                assertEquals(LabelMaps.describe(new UnionFindLabeller().label(expected)),
+                        LabelMaps.describe(segmentation.getComponents()), "strips of " + stripHeight);
+            }
+        }
+    }
+
+    @Test
+    void classifyMatchesSequentialClassification() {
+        ImageProcessor processor = new ImageProcessor(30, 40);
+        LabelMap labelMap = LabelMaps.random(5, 97, 61, 0.7);
+        int[] argb = LabelMaps.toArgb(labelMap);
+        for (int stripHeight : STRIP_HEIGHTS) {
+            LabelMap classified = new TiledSegmenter(pool, stripHeight).classify(processor, argb, 97, 61);
+            assertEquals(Arrays.toString(processor.classify(argb, 97, 61).getLabels()),
+                    Arrays.toString(classified.getLabels()));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.bloodanalyser;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class VectorClassifierTest {
+    private static final int[][] THRESHOLDS = {{30, 40}, {0, 0}, {-10, 255}, {100, 5}, {255, -20}};
+    // Longer than two vectors of the widest species, so every head and tail length comes up
+    private static final int SPAN = 40;
+    private static final int WINDOWS = 8;
+    private static final int[] PIXELS = pixels();
+
+    @Test
+    void classifyRangeMatchesClassifyPixelForEveryHeadAndTail() {
+        for (int[] thresholds : THRESHOLDS) {
+            ImageProcessor processor = new ImageProcessor(thresholds[0], thresholds[1]);
+            for (int window = 0; window < WINDOWS; window++) {
+                int[] pixels = Arrays.copyOfRange(PIXELS, window * SPAN, (window + 1) * SPAN);
+                for (int from = 0; from <= SPAN; from++) {
+                    for (int to = from; to <= SPAN; to++) {
+                        byte[] labels = untouched();
+                        processor.classifyRange(pixels, labels, from, to);
+                        assertArrayEquals(scalar(processor, pixels, from, to), labels,
+                                "[" + from + ", " + to + ") at " + Arrays.toString(thresholds));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void vectorLoopMatchesClassifyPixelAndLeavesTheTail() {
+        assumeTrue(ImageProcessor.isVectorised(), "no vector support on this platform");
+        for (int[] thresholds : THRESHOLDS) {
+            ImageProcessor processor = new ImageProcessor(thresholds[0], thresholds[1]);
+            for (int window = 0; window < WINDOWS; window++) {
+                int[] pixels = Arrays.copyOfRange(PIXELS, window * SPAN, (window + 1) * SPAN);
+                for (int from = 0; from <= SPAN; from++) {
+                    for (int to = from; to <= SPAN; to++) {
+                        byte[] labels = untouched();
+                        int tail = VectorClassifier.classifyRange(pixels, labels, from, to,
+                                thresholds[0], thresholds[1]);
+                        assertTrue(tail >= from && tail <= to, "tail " + tail);
+                        assertArrayEquals(scalar(processor, pixels, from, tail), labels,
+                                "[" + from + ", " + to + ") at " + Arrays.toString(thresholds));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void classifyRangeMatchesClassifyPixelOnEveryPixel() {
+        for (int[] thresholds : THRESHOLDS) {
+            ImageProcessor processor = new ImageProcessor(thresholds[0], thresholds[1]);
+            byte[] expected = new byte[PIXELS.length];
+            for (int i = 0; i < PIXELS.length; i++) {
+                expected[i] = processor.classifyPixel(PIXELS[i]);
+            }
+            byte[] labels = new byte[PIXELS.length];
+            processor.classifyRange(PIXELS, labels, 0, PIXELS.length);
+            assertArrayEquals(expected, labels, Arrays.toString(thresholds));
+        }
+    }
+
+    // Labels outside the range are left at a value no classification produces
+    private static byte[] untouched() {
+        byte[] labels = new byte[SPAN];
+        Arrays.fill(labels, (byte) -1);
+        return labels;
+    }
+
+    private static byte[] scalar(ImageProcessor processor, int[] pixels, int from, int to) {
+        byte[] labels = untouched();
+        for (int i = from; i < to; i++) {
+            labels[i] = processor.classifyPixel(pixels[i]);
+        }
+        return labels;
+    }
+
+    /*
+     * Random colours, the slide colours, and colours exactly on and next to each luminance gate,
+     * where a rounding or comparison slip between the two paths would show.
+     */
+    private static int[] pixels() {
+        Random random = new Random(15);
+        int[] pixels = new int[1 << 16];
+        int n = 0;
+        pixels[n++] = LabelMaps.WHITE_ARGB;
+        pixels[n++] = LabelMaps.RED_ARGB;
+        pixels[n++] = LabelMaps.PURPLE_ARGB;
+        for (int gate : new int[] {100_000, 200_000, 220_000}) {
+            for (int r = 0; r < 256; r++) {
+                for (int g = 0; g < 256; g++) {
+                    for (int delta = -1; delta <= 1; delta++) {
+                        int rest = gate + delta - 299 * r - 587 * g;
+                        if (rest >= 0 && rest % 114 == 0 && rest / 114 < 256 && n < pixels.length / 2) {
+                            pixels[n++] = 0xFF000000 | r << 16 | g << 8 | rest / 114;
+                        }
+                    }
+                }
+            }
+        }
+        while (n < pixels.length) {
+            pixels[n++] = random.nextInt();
+        }
+        // Shuffled so each window of SPAN pixels mixes the kinds of colour
+        for (int i = pixels.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = pixels[i];
+            pixels[i] = pixels[j];
+            pixels[j] = swap;
+        }
+        return pixels;
+    }
+}